@@ -0,0 +1,121 @@
+package activitystreamer.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import activitystreamer.server.Connection;
+import activitystreamer.server.Control;
+import activitystreamer.server.FrameDecoder;
+import activitystreamer.server.MemoryNetwork;
+import activitystreamer.server.MemoryTransport;
+import activitystreamer.server.VirtualClock;
+import activitystreamer.util.Strings;
+
+/**
+ * A single server run in virtual time, with stub clients and peers attached
+ * straight to it. The stubs speak the protocol by hand and count what they
+ * receive, so a benchmark measures one server rather than a whole network.
+ * Virtual time never moves on, so the link probes never run; every task due
+ * now is run after each operation.
+ */
+class BenchmarkServer {
+	private static final int PORT = 1;
+
+	/** Counts the frames a stub receives */
+	static class Sink implements FrameDecoder.Handler {
+		long received = 0;
+
+		public boolean line(String line) {
+			received++;
+			return false;
+		}
+
+		public boolean frame(byte type, byte[] buf, int off, int len) {
+			received++;
+			return false;
+		}
+	}
+
+	private final VirtualClock clock = new VirtualClock(1);
+	private final MemoryNetwork network = new MemoryNetwork(clock);
+	private final Control server;
+	private final List<Connection> stubs = new ArrayList<Connection>();
+	final Sink sink = new Sink();
+
+	BenchmarkServer() {
+		quietLogs();
+		server = new Control(new MemoryTransport(network, PORT), clock);
+		run();
+	}
+
+	/** Stops the servers logging at debug level, which would swamp what is measured */
+	static void quietLogs() {
+		Configurator.setRootLevel(Level.ERROR);
+	}
+
+	/** Runs every task which is due */
+	void run() {
+		clock.advance(0);
+	}
+
+	/** Attaches a chat client */
+	@SuppressWarnings("unchecked")
+	Connection addClient() throws IOException {
+		Connection client = network.connectClient(PORT, sink);
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.CONNECTION_TYPE, Strings.CLIENT);
+		client.writeMsg(jobj);
+		stubs.add(client);
+		run();
+		return client;
+	}
+
+	/**
+	 * Attaches another server, which decides the weight of the link itself. If
+	 * binary is set the link switches to binary frames.
+	 */
+	@SuppressWarnings("unchecked")
+	Connection addPeer(long weight, boolean binary) throws IOException {
+		Connection peer = network.connectClient(PORT, sink);
+		JSONObject type = new JSONObject();
+		type.put(Strings.CONNECTION_TYPE, Strings.SERVER);
+		if (binary) {
+			JSONArray capabilities = new JSONArray();
+			capabilities.add(Strings.BINARY);
+			type.put(Strings.CAPABILITIES, capabilities);
+		}
+		peer.writeMsg(type);
+		JSONObject uuid = new JSONObject();
+		uuid.put(Strings.UUID, clock.randomUUID().toString());
+		peer.writeMsg(uuid);
+		JSONObject linkWeight = new JSONObject();
+		linkWeight.put(Strings.LINK_WEIGHT, weight);
+		peer.writeMsg(linkWeight);
+		stubs.add(peer);
+		run();
+		return peer;
+	}
+
+	Control getServer() {
+		return server;
+	}
+
+	VirtualClock getClock() {
+		return clock;
+	}
+
+	void shutdown() {
+		for (Connection stub : stubs) {
+			stub.closeCon();
+		}
+		server.shutdown();
+		run();
+		network.shutdown();
+	}
+}
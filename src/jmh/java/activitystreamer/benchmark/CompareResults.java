@@ -0,0 +1,77 @@
+package activitystreamer.benchmark;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Compares the JSON results of a JMH run with a baseline, printing the change
+ * in each score. Exits with 1 if any benchmark is slower than its baseline by
+ * more than the threshold, so that a build can fail on a regression.
+ *
+ * Usage: CompareResults baseline.json results.json [threshold percent]
+ */
+public class CompareResults {
+	private static final double DEFAULT_THRESHOLD = 10;
+
+	public static void main(String[] args) throws IOException, ParseException {
+		if (args.length < 2) {
+			System.err.println("usage: CompareResults baseline.json results.json [threshold percent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+		Map<String, Double> baseline = read(args[0]);
+		Map<String, Double> results = read(args[1]);
+
+		int regressions = 0;
+		for (Map.Entry<String, Double> result : new TreeMap<String, Double>(results).entrySet()) {
+			Double before = baseline.get(result.getKey());
+			if (before == null) {
+				System.out.printf("%-70s %12.3f  new%n", result.getKey(), result.getValue());
+				continue;
+			}
+			// Every benchmark measures the average time, so a higher score is slower
+			double change = (result.getValue() - before) * 100 / before;
+			boolean regressed = change > threshold;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.printf("%-70s %12.3f %+7.1f%%%s%n", result.getKey(), result.getValue(), change,
+					regressed ? "  REGRESSION" : "");
+		}
+		System.out.println(regressions + " regressions of more than " + threshold + "%");
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+	/** Reads the score of each benchmark, keyed by its name and parameters */
+	private static Map<String, Double> read(String file) throws IOException, ParseException {
+		Map<String, Double> scores = new LinkedHashMap<String, Double>();
+		try (Reader reader = new FileReader(file)) {
+			for (Object entry : (JSONArray) new JSONParser().parse(reader)) {
+				JSONObject run = (JSONObject) entry;
+				StringBuilder name = new StringBuilder((String) run.get("benchmark"));
+				JSONObject params = (JSONObject) run.get("params");
+				if (params != null) {
+					TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+					for (Object key : params.keySet()) {
+						sorted.put((String) key, params.get(key));
+					}
+					for (Map.Entry<String, Object> param : sorted.entrySet()) {
+						name.append(' ').append(param.getKey()).append('=').append(param.getValue());
+					}
+				}
+				JSONObject metric = (JSONObject) run.get("primaryMetric");
+				scores.put(name.toString(), ((Number) metric.get("score")).doubleValue());
+			}
+		}
+		return scores;
+	}
+}
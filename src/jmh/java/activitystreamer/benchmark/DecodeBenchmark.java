@@ -0,0 +1,130 @@
+package activitystreamer.benchmark;
+
+import java.net.ProtocolException;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import activitystreamer.server.BinaryCodec;
+import activitystreamer.server.ChatHandler;
+import activitystreamer.server.ChatMessage;
+import activitystreamer.server.Connection;
+import activitystreamer.server.ConnectionRegistry;
+import activitystreamer.server.EdgeWeight;
+import activitystreamer.server.Identifier;
+import activitystreamer.server.MessageDispatcher;
+import activitystreamer.server.MessageHandler;
+import activitystreamer.util.Strings;
+
+/**
+ * Decoding and dispatching one message of each type, as JSON lines through the
+ * streaming dispatcher the server uses, as binary frames, and parsed whole by
+ * json-simple for comparison. The handlers do nothing, and run on the calling
+ * thread rather than the control plane.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+	@Param({ "message", "connect", "initiate", "test", "report", "ping", "linkweight", "uuid" })
+	public String type;
+
+	private String line;
+	private byte[] frame;
+	private MessageDispatcher dispatcher;
+	private final JSONParser parser = new JSONParser();
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() {
+		BenchmarkServer.quietLogs();
+		UUID a = new UUID(1, 2);
+		UUID b = new UUID(3, 4);
+		JSONObject fragment = new JSONObject();
+		fragment.put(Strings.UUID1, a.toString());
+		fragment.put(Strings.UUID2, b.toString());
+		fragment.put(Strings.LEVEL, 3);
+		JSONObject message = new JSONObject();
+		if (type.equals(Strings.MESSAGE)) {
+			message.put(Strings.MESSAGE, "the quick brown fox jumps over the lazy dog");
+			message.put(Strings.ORIGIN, a.toString());
+			message.put(Strings.SEQ, 42L);
+		} else if (type.equals(Strings.CONNECT)) {
+			message.put(Strings.CONNECT, 3);
+		} else if (type.equals(Strings.INITIATE)) {
+			fragment.put(Strings.NODE_STATE, Strings.FIND);
+			message.put(Strings.INITIATE, fragment);
+		} else if (type.equals(Strings.TEST)) {
+			message.put(Strings.TEST, fragment);
+		} else if (type.equals(Strings.REPORT)) {
+			message.put(Strings.REPORT, new EdgeWeight(25000, new Identifier(a, b)).toJSON());
+		} else if (type.equals(Strings.PING)) {
+			message.put(Strings.PING, System.nanoTime());
+		} else if (type.equals(Strings.LINK_WEIGHT)) {
+			message.put(Strings.LINK_WEIGHT, 25000L);
+		} else {
+			message.put(Strings.UUID, a.toString());
+		}
+		line = message.toJSONString();
+		frame = BinaryCodec.encode(message);
+
+		Executor direct = new Executor() {
+			public void execute(Runnable task) {
+				task.run();
+			}
+		};
+		dispatcher = new MessageDispatcher(direct, new ConnectionRegistry());
+		dispatcher.setChatHandler(new ChatHandler() {
+			public boolean relay(Connection con, ChatMessage msg) {
+				msg.release();
+				return false;
+			}
+		});
+		MessageHandler ignore = new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+			}
+		};
+		// The same keys and fields the server registers
+		dispatcher.registerDirect(Strings.PING, null, ignore);
+		dispatcher.register(Strings.LINK_WEIGHT, null, ignore);
+		dispatcher.register(Strings.UUID, null, ignore);
+		dispatcher.register(Strings.CONNECT, null, ignore);
+		dispatcher.register(Strings.INITIATE, null, ignore);
+		dispatcher.register(Strings.TEST, null, ignore);
+		dispatcher.register(Strings.REPORT, null, ignore);
+	}
+
+	@Benchmark
+	public boolean dispatchLine() {
+		return dispatcher.dispatch(null, line);
+	}
+
+	@Benchmark
+	public JSONObject decodeFrame() throws ProtocolException {
+		return BinaryCodec.decode(frame[0], frame, BinaryCodec.HEADER_LENGTH, frame.length - BinaryCodec.HEADER_LENGTH);
+	}
+
+	@Benchmark
+	public void parseJsonSimple(Blackhole blackhole) throws ParseException {
+		blackhole.consume(parser.parse(line));
+	}
+}
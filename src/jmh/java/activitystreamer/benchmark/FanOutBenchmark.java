@@ -0,0 +1,65 @@
+package activitystreamer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import activitystreamer.server.Connection;
+import activitystreamer.util.Strings;
+
+/**
+ * Broadcasting a chat message from one client to the others on the same
+ * server: reading it, stamping it, checking it for duplicates, and writing it
+ * to every client, which reads it back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+	@Param({ "1", "10", "100", "1000" })
+	public int clients;
+
+	private BenchmarkServer server;
+	private Connection sender;
+	private JSONObject message;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException {
+		server = new BenchmarkServer();
+		sender = server.addClient();
+		for (int i = 1; i < clients; i++) {
+			server.addClient();
+		}
+		message = new JSONObject();
+		message.put(Strings.MESSAGE, "the quick brown fox jumps over the lazy dog");
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.shutdown();
+	}
+
+	@Benchmark
+	public long broadcast() {
+		sender.writeMsg(message);
+		server.run();
+		return server.sink.received;
+	}
+}
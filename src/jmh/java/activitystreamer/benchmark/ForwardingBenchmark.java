@@ -0,0 +1,73 @@
+package activitystreamer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import activitystreamer.server.Connection;
+import activitystreamer.util.RoutingMode;
+import activitystreamer.util.Settings;
+import activitystreamer.util.Strings;
+
+/**
+ * Forwarding a chat message from a client to every other server, through the
+ * lagged link of each, over JSON or binary frames. The lag is 0, so this
+ * measures the cost of the links rather than waiting on them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingBenchmark {
+	@Param({ "1", "4", "16", "64" })
+	public int peers;
+
+	@Param({ "json", "binary" })
+	public String format;
+
+	private BenchmarkServer server;
+	private Connection sender;
+	private JSONObject message;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException {
+		Settings.setLag(0);
+		Settings.setRoutingMode(RoutingMode.FLOOD);
+		Settings.setBinaryFraming(true);
+		server = new BenchmarkServer();
+		sender = server.addClient();
+		for (int i = 0; i < peers; i++) {
+			server.addPeer(1000 + i, format.equals("binary"));
+		}
+		message = new JSONObject();
+		message.put(Strings.MESSAGE, "the quick brown fox jumps over the lazy dog");
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.shutdown();
+	}
+
+	@Benchmark
+	public long forward() {
+		sender.writeMsg(message);
+		server.run();
+		return server.sink.received;
+	}
+}
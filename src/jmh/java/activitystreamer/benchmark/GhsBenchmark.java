@@ -0,0 +1,77 @@
+package activitystreamer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import activitystreamer.server.Connection;
+import activitystreamer.util.Strings;
+
+/**
+ * Handling a GHS message from another server, on the control plane, including
+ * any answer. The server has one link and has connected over it, so each
+ * message leaves it in the state it found it: a test from another fragment
+ * is accepted, an accept is taken as the best edge so far, and an initiate
+ * over the branch is taken up again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhsBenchmark {
+	@Param({ "test", "accept", "initiate" })
+	public String type;
+
+	private BenchmarkServer server;
+	private Connection peer;
+	private JSONObject message;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException {
+		server = new BenchmarkServer();
+		peer = server.addPeer(1000, false);
+		String fragment = server.getClock().randomUUID().toString();
+		JSONObject body = new JSONObject();
+		body.put(Strings.UUID1, fragment);
+		body.put(Strings.UUID2, fragment);
+		body.put(Strings.LEVEL, 0);
+		message = new JSONObject();
+		if (type.equals(Strings.TEST)) {
+			message.put(Strings.TEST, body);
+		} else if (type.equals(Strings.ACCEPT)) {
+			message.put(Strings.ACCEPT, true);
+		} else {
+			body.put(Strings.LEVEL, 1);
+			body.put(Strings.NODE_STATE, Strings.FOUND);
+			message.put(Strings.INITIATE, body);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.shutdown();
+	}
+
+	@Benchmark
+	public long handle() {
+		peer.writeMsg(message);
+		server.run();
+		return server.sink.received;
+	}
+}
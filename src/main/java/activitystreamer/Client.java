@@ -70,19 +70,16 @@ public class Client {
 
 		ClientSkeleton c = ClientSkeleton.getInstance();
 
-		boolean term = false;
-		
-		while (!term) {
-			try {
-				Thread.sleep(1000);
-				term = c.updateIncomingData();
-			} catch (InterruptedException ex) {
-				break;
-			}
+		// Messages are delivered by the client's reader as they arrive; wait
+		// for it to stop, and exit if the connection was lost
+		try {
+			c.join();
+		} catch (InterruptedException ex) {
+			System.exit(-1);
+		}
+		if (c.hasFailed()) {
+			System.exit(-1);
 		}
-
-		Thread.currentThread().interrupt();
-		System.exit(-1);
 	}
 
 }
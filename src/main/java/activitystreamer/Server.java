@@ -1,5 +1,6 @@
 package activitystreamer;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -13,7 +14,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import activitystreamer.server.Control;
+import activitystreamer.server.MetricsServer;
+import activitystreamer.util.ExecutionMode;
+import activitystreamer.util.LinkModel;
+import activitystreamer.util.RateLimitPolicy;
+import activitystreamer.util.RoutingMode;
 import activitystreamer.util.Settings;
+import activitystreamer.util.SlowConsumerPolicy;
 
 public class Server {
 	private static final Logger log = LogManager.getLogger();
@@ -40,6 +47,30 @@ public class Server {
 		options.addOption("a",true,"activity interval in milliseconds");
 		options.addOption("s",true,"secret for the server to use");
 		options.addOption("lg",true,"Lag to Simulate");
+		options.addOption("lm",true,"impairment of links to other servers, such as dist=normal,jitter=20,bw=1000000,drop=0.01,dup=0.001");
+		options.addOption("nio",false,"use non-blocking selector based I/O");
+		options.addOption("el",true,"number of event loop threads used with -nio");
+		options.addOption("em",true,"execution mode for connection and forwarding tasks: platform or virtual");
+		options.addOption("ohw",true,"bytes queued for a client before it is treated as a slow consumer");
+		options.addOption("olw",true,"bytes a slow consumer's queue must drain to before it recovers");
+		options.addOption("scp",true,"slow consumer policy: drop_oldest, disconnect or redirect");
+		options.addOption("json",false,"only use JSON lines on server links, never binary frames");
+		options.addOption("rm",true,"routing mode for chat between servers: flood or tree");
+		options.addOption("dc",true,"number of recent message ids remembered to drop duplicates");
+		options.addOption("pi",true,"interval in milliseconds between round trip probes of server links");
+		options.addOption("wd",true,"percentage a link's round trip time must drift by before its weight is changed");
+		options.addOption("mp",true,"local port to serve metrics on over HTTP, at /metrics");
+		options.addOption("tr",true,"trace one in every this many chat messages entering the network here");
+		options.addOption("rt",true,"clients this server takes before redirecting new ones to a less loaded server");
+		options.addOption("cr",true,"chat messages per second each client may send, 0 for no limit");
+		options.addOption("cb",true,"chat messages a client may send at once within its rate");
+		options.addOption("cq",true,"chat messages held back for a client beyond its rate before more are dropped");
+		options.addOption("cw",true,"largest weight a client may ask for when it connects, its share of held back chat");
+		options.addOption("rlp",true,"rate limit policy for chat beyond a client's rate: queue, drop or disconnect");
+		options.addOption("hd",true,"directory to keep a history of relayed chat in, for clients to replay");
+		options.addOption("hs",true,"bytes in each segment file of the history");
+		options.addOption("hrb",true,"bytes of history kept before the oldest segments are deleted");
+		options.addOption("hra",true,"minutes history is kept for before it is deleted");
 		
 		
 		// build the parser
@@ -109,10 +140,207 @@ public class Server {
 			}
 		}
 		
+		if (cmd.hasOption("lm")) {
+			try {
+				Settings.setLinkModel(LinkModel.parse(cmd.getOptionValue("lm")));
+			} catch (IllegalArgumentException e) {
+				log.error("-lm requires a link model such as dist=normal,jitter=20, parsed: " + cmd.getOptionValue("lm")
+						+ ": " + e.getMessage());
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("nio")) {
+			Settings.setNonBlockingIO(true);
+		}
+		if (cmd.hasOption("json")) {
+			Settings.setBinaryFraming(false);
+		}
+		if (cmd.hasOption("el")) {
+			try {
+				Settings.setEventLoopThreads(Integer.parseInt(cmd.getOptionValue("el")));
+			} catch (NumberFormatException e) {
+				log.error("-el requires a number of threads, parsed: " + cmd.getOptionValue("el"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("em")) {
+			try {
+				Settings.setExecutionMode(ExecutionMode.fromString(cmd.getOptionValue("em")));
+			} catch (IllegalArgumentException e) {
+				log.error("-em requires platform or virtual, parsed: " + cmd.getOptionValue("em"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("ohw")) {
+			try {
+				Settings.setOutboundHighWatermark(Long.parseLong(cmd.getOptionValue("ohw")));
+			} catch (NumberFormatException e) {
+				log.error("-ohw requires a number of bytes, parsed: " + cmd.getOptionValue("ohw"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("olw")) {
+			try {
+				Settings.setOutboundLowWatermark(Long.parseLong(cmd.getOptionValue("olw")));
+			} catch (NumberFormatException e) {
+				log.error("-olw requires a number of bytes, parsed: " + cmd.getOptionValue("olw"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("scp")) {
+			try {
+				Settings.setSlowConsumerPolicy(SlowConsumerPolicy.fromString(cmd.getOptionValue("scp")));
+			} catch (IllegalArgumentException e) {
+				log.error("-scp requires drop_oldest, disconnect or redirect, parsed: " + cmd.getOptionValue("scp"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("rm")) {
+			try {
+				Settings.setRoutingMode(RoutingMode.fromString(cmd.getOptionValue("rm")));
+			} catch (IllegalArgumentException e) {
+				log.error("-rm requires flood or tree, parsed: " + cmd.getOptionValue("rm"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("dc")) {
+			try {
+				Settings.setDuplicateCacheSize(Integer.parseInt(cmd.getOptionValue("dc")));
+			} catch (NumberFormatException e) {
+				log.error("-dc requires a number of message ids, parsed: " + cmd.getOptionValue("dc"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("pi")) {
+			try {
+				Settings.setProbeInterval(Integer.parseInt(cmd.getOptionValue("pi")));
+			} catch (NumberFormatException e) {
+				log.error("-pi requires a number of milliseconds, parsed: " + cmd.getOptionValue("pi"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("wd")) {
+			try {
+				Settings.setWeightDriftThreshold(Integer.parseInt(cmd.getOptionValue("wd")));
+			} catch (NumberFormatException e) {
+				log.error("-wd requires a percentage, parsed: " + cmd.getOptionValue("wd"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("mp")) {
+			try {
+				Settings.setMetricsPort(Integer.parseInt(cmd.getOptionValue("mp")));
+			} catch (NumberFormatException e) {
+				log.error("-mp requires a port number, parsed: " + cmd.getOptionValue("mp"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("tr")) {
+			try {
+				Settings.setTraceInterval(Integer.parseInt(cmd.getOptionValue("tr")));
+			} catch (NumberFormatException e) {
+				log.error("-tr requires a number of messages, parsed: " + cmd.getOptionValue("tr"));
+				help(options);
+			}
+		}
+		if (cmd.hasOption("rt")) {
+			try {
+				Settings.setRedirectThreshold(Integer.parseInt(cmd.getOptionValue("rt")));
+			} catch (NumberFormatException e) {
+				log.error("-rt requires a number of clients, parsed: " + cmd.getOptionValue("rt"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("cr")) {
+			try {
+				Settings.setClientRate(Integer.parseInt(cmd.getOptionValue("cr")));
+			} catch (NumberFormatException e) {
+				log.error("-cr requires a number of messages per second, parsed: " + cmd.getOptionValue("cr"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("cb")) {
+			try {
+				Settings.setClientBurst(Integer.parseInt(cmd.getOptionValue("cb")));
+			} catch (NumberFormatException e) {
+				log.error("-cb requires a number of messages, parsed: " + cmd.getOptionValue("cb"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("cq")) {
+			try {
+				Settings.setClientQueueLimit(Integer.parseInt(cmd.getOptionValue("cq")));
+			} catch (NumberFormatException e) {
+				log.error("-cq requires a number of messages, parsed: " + cmd.getOptionValue("cq"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("cw")) {
+			try {
+				Settings.setMaxClientWeight(Integer.parseInt(cmd.getOptionValue("cw")));
+			} catch (NumberFormatException e) {
+				log.error("-cw requires a number, parsed: " + cmd.getOptionValue("cw"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("rlp")) {
+			try {
+				Settings.setRateLimitPolicy(RateLimitPolicy.fromString(cmd.getOptionValue("rlp")));
+			} catch (IllegalArgumentException e) {
+				log.error("-rlp requires queue, drop or disconnect, parsed: " + cmd.getOptionValue("rlp"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("hd")) {
+			Settings.setHistoryDir(cmd.getOptionValue("hd"));
+		}
+		
+		if (cmd.hasOption("hs")) {
+			try {
+				Settings.setHistorySegmentBytes(Integer.parseInt(cmd.getOptionValue("hs")));
+			} catch (NumberFormatException e) {
+				log.error("-hs requires a number of bytes, parsed: " + cmd.getOptionValue("hs"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("hrb")) {
+			try {
+				Settings.setHistoryRetentionBytes(Long.parseLong(cmd.getOptionValue("hrb")));
+			} catch (NumberFormatException e) {
+				log.error("-hrb requires a number of bytes, parsed: " + cmd.getOptionValue("hrb"));
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("hra")) {
+			try {
+				Settings.setHistoryRetentionMinutes(Long.parseLong(cmd.getOptionValue("hra")));
+			} catch (NumberFormatException e) {
+				log.error("-hra requires a number of minutes, parsed: " + cmd.getOptionValue("hra"));
+				help(options);
+			}
+		}
+		
 		log.info("starting server");
 		
 		
 		final Control c = Control.getInstance(); 
+		c.getMetrics().registerMBean("activitystreamer:type=Server,port=" + Settings.getLocalPort());
+		if (Settings.getMetricsPort() > 0) {
+			try {
+				new MetricsServer(c.getMetrics(), Settings.getMetricsPort());
+			} catch (IOException e) {
+				log.error("failed to serve metrics on port " + Settings.getMetricsPort() + ": " + e);
+			}
+		}
 		c.run();
 		// the following shutdown hook doesn't really work, it doesn't give us enough time to
 		// cleanup all of our connections before the jvm is terminated.
@@ -122,8 +350,6 @@ public class Server {
 				c.interrupt();
 		    }
 		 });
-		
-		// TODO Add code to wait 5 seconds to send a server announcement.
 	}
 
 }
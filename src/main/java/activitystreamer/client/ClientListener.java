@@ -0,0 +1,17 @@
+package activitystreamer.client;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Notified by the reader of a {@link ClientSkeleton} as messages arrive from
+ * the server. Called on the reader thread, so listeners which update the GUI
+ * must hand the work over to the event dispatch thread.
+ */
+public interface ClientListener {
+
+	/** A message other than a redirect has been received */
+	void messageReceived(JSONObject msg);
+
+	/** The connection has been lost, other than by the user disconnecting */
+	void connectionLost();
+}
@@ -1,15 +1,14 @@
 package activitystreamer.client;
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -20,53 +19,58 @@ import org.json.simple.parser.ParseException;
 import activitystreamer.util.Settings;
 import activitystreamer.util.Strings;
 
-import static java.lang.StrictMath.toIntExact;
-
+/**
+ * The client's connection to a server. The thread reads and decodes messages
+ * as soon as they arrive, and hands each to the registered listeners. A
+ * redirect is followed inside the reader, by reconnecting to the server named
+ * and carrying on reading from there, so listeners never see it.
+ *
+ * The GUI client is the single instance from {@link #getInstance()}. Other
+ * clients, such as those of the {@link LoadGenerator}, are headless: they are
+ * constructed directly, given their listeners, and then started.
+ */
 public class ClientSkeleton extends Thread {
 	public static String CONNECTION_TYPE = "connection_type";
 	public static String CLIENT = "client";
 	private static final Logger log = LogManager.getLogger();
 	private static ClientSkeleton clientSolution;
-	private OutputStream output;
+
+	// Replaced by the reader on a redirect, so guarded by this object
+	private Socket clientSocket;
 	private BufferedReader input;
 	private PrintWriter pwrite;
 
-	private Boolean connected = false;
-
-	private TextFrame textFrame;
+	private volatile boolean connected = false;
+	// Whether the connection was lost, rather than closed by the user
+	private volatile boolean failed = false;
 
-	private Socket clientSocket;
+	private final List<ClientListener> listeners = new CopyOnWriteArrayList<ClientListener>();
 
-	public static ClientSkeleton getInstance() {
+	/** The GUI client, connected to the remote host in the settings */
+	public static synchronized ClientSkeleton getInstance() {
 		if (clientSolution == null) {
-			clientSolution = new ClientSkeleton();
+			clientSolution = createGuiClient();
 		}
 		return clientSolution;
 	}
 
-	private void processReply(String reply) {
-		JSONParser parse = new JSONParser();
-		try {
-			Object obj = parse.parse(reply);
-			JSONObject jobj = (JSONObject) obj;
-		} catch (ParseException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-	}
-
-	public ClientSkeleton() {
-		textFrame = new TextFrame();
-		start();
+	private static ClientSkeleton createGuiClient() {
+		final TextFrame textFrame = new TextFrame();
 		// Initalise the socket
 		try {
-			clientSocket = new Socket(Settings.getRemoteHostname(), Settings.getRemotePort());
-			output = clientSocket.getOutputStream();
-			pwrite = new PrintWriter(output, true);
-			input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			sendClientConnectionRequest();
-			connected = true;
+			ClientSkeleton client = new ClientSkeleton(Settings.getRemoteHostname(), Settings.getRemotePort());
+			client.addListener(new ClientListener() {
+				public void messageReceived(JSONObject msg) {
+					if (msg.containsKey(Strings.MESSAGE)) {
+						textFrame.appendOutput(msg.get(Strings.MESSAGE).toString());
+					}
+				}
+
+				public void connectionLost() {
+				}
+			});
+			client.start();
+			return client;
 		} catch (ConnectException e) {
 			log.error("Connection Refused");
 			e.printStackTrace();
@@ -80,80 +84,136 @@ public class ClientSkeleton extends Thread {
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		return null;
 	}
 
-	@SuppressWarnings("unchecked")
-	public void sendJsonOnSocket(JSONObject activityObj) {
+	/**
+	 * A headless client connected to the given server. Messages are not read
+	 * until the thread is started, so listeners added before then miss none.
+	 */
+	public ClientSkeleton(String hostname, int port) throws IOException {
+		super("client reader");
+		setDaemon(true);
+		connect(hostname, port);
+		connected = true;
+	}
+
+	public void addListener(ClientListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ClientListener listener) {
+		listeners.remove(listener);
+	}
+
+	/** Opens a connection to the server, in place of any previous one, and introduces the client */
+	private synchronized void connect(String hostname, int port) throws IOException {
+		if (clientSocket != null) {
+			clientSocket.close();
+		}
+		clientSocket = new Socket(hostname, port);
+		clientSocket.setTcpNoDelay(true);
+		pwrite = new PrintWriter(clientSocket.getOutputStream(), true);
+		input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		sendClientConnectionRequest();
+	}
+
+	private synchronized BufferedReader getInput() {
+		return input;
+	}
+
+	public synchronized void sendJsonOnSocket(JSONObject activityObj) {
 		pwrite.println(activityObj.toJSONString());
 		pwrite.flush();
 	}
 
 	/** Sends information specifing the Connection type to the server */
+	@SuppressWarnings("unchecked")
 	private void sendClientConnectionRequest() {
 		JSONObject obj = new JSONObject();
 		obj.put(Strings.CONNECTION_TYPE, CLIENT);
 		sendJsonOnSocket(obj);
 	}
 
-	public boolean updateIncomingData() {
-		if (!connected) {
+	/** Reads messages until the connection is closed or lost */
+	@Override
+	public void run() {
+		JSONParser parser = new JSONParser();
+		while (connected) {
+			String receivedMessage;
+			try {
+				receivedMessage = getInput().readLine();
+			} catch (IOException e) {
+				if (connected) {
+					log.error("connection to the server lost: " + e);
+					lost();
+				}
+				return;
+			}
+			if (receivedMessage == null) {
+				if (connected) {
+					log.error("connection closed by the server");
+					lost();
+				}
+				return;
+			}
+			log.debug("received message " + receivedMessage);
+			JSONObject obj;
+			try {
+				obj = (JSONObject) parser.parse(receivedMessage);
+			} catch (ParseException | ClassCastException e) {
+				log.error("invalid message from the server: " + receivedMessage);
+				continue;
+			}
+			if (Strings.REDIRECT.equals(obj.get(Strings.COMMAND))) {
+				if (!redirect(obj)) {
+					lost();
+					return;
+				}
+				continue;
+			}
+			for (ClientListener listener : listeners) {
+				listener.messageReceived(obj);
+			}
+		}
+	}
+
+	/** Reconnects to the server named in a redirect, returning false if it cannot */
+	private boolean redirect(JSONObject obj) {
+		String newHost = (String) obj.get(Strings.HOSTNAME);
+		Object newPort = obj.get(Strings.PORT);
+		log.debug("recieved redirect to " + newHost + ":" + newPort);
+		if (newHost == null || !(newPort instanceof Number)) {
+			log.error("invalid redirect from the server: " + obj);
 			return false;
 		}
-		String receivedMessage;
 		try {
-			if ((receivedMessage = input.readLine()) != null) {
-				JSONParser parse = new JSONParser();
-				JSONObject obj;
-				try {
-					System.out.println("RECEIVED MESSAGE " + receivedMessage);
-					obj = (JSONObject) parse.parse(receivedMessage);
-					System.out.println("Received Object " + obj);
-					if (obj.containsKey(Strings.MESSAGE)) {
-						textFrame.setOutputText(obj.get(Strings.MESSAGE).toString());
-					}
-
-					if (obj.containsKey("command")) {
-						String command = (String) obj.get("command");
-						if (command.equals("REDIRECT")) {
-							log.debug("recieved redirect");
-							String newHost = (String) obj.get("hostname");
-							int newPort = toIntExact((Long) obj.get("port"));
-							try {
-								clientSocket.close();
-								clientSocket = new Socket(newHost, newPort);
-								output = clientSocket.getOutputStream();
-								pwrite = new PrintWriter(output, true);
-								input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-							} catch (UnknownHostException e) {
-								log.error("Unknown Host Error " + Settings.getRemoteHostname());
-								e.printStackTrace();
-								return true;
-							} catch (IOException e) {
-								log.error("IO Exception");
-								e.printStackTrace();
-								return true;
-							}
-						}
-
-					}
-				} catch (ParseException e) {
-					e.printStackTrace();
-					return true;
-				}
-
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			connect(newHost, ((Number) newPort).intValue());
 			return true;
+		} catch (UnknownHostException e) {
+			log.error("Unknown Host Error " + newHost);
+		} catch (IOException e) {
+			log.error("failed to follow redirect to " + newHost + ":" + newPort + ": " + e);
 		}
 		return false;
 	}
 
-	public void disconnect() {
+	private void lost() {
+		connected = false;
+		failed = true;
+		for (ClientListener listener : listeners) {
+			listener.connectionLost();
+		}
+	}
+
+	/** Whether the reader stopped because the connection was lost, rather than closed by the user */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	public synchronized void disconnect() {
 		try {
 			connected = false;
-			input.close();
-			output.close();
 			clientSocket.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -0,0 +1,67 @@
+package activitystreamer.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies into buckets a few percent wide, so that percentiles can
+ * be read from millions of deliveries in a fixed amount of memory. Values
+ * below 64 have a bucket each; above that every power of two is split into
+ * 32 buckets, so a percentile is never more than about 3% out.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	private static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/** The largest value counted in the bucket */
+	private static long upperBound(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		return ((long) (bucket - shift * SUB_BUCKETS + 1) << shift) - 1;
+	}
+
+	public void record(long value) {
+		counts.incrementAndGet(bucket(value));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/** The value below which the given fraction of those recorded fall */
+	public long percentile(double fraction) {
+		long[] snapshot = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(snapshot.length - 1);
+	}
+}
@@ -0,0 +1,282 @@
+package activitystreamer.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Strings;
+
+/**
+ * Loads a network of servers the way its users do, with many headless
+ * clients in one process each sending chat at a given rate. Every message
+ * carries the time it was sent, and since the clients share this process's
+ * clock, each client which receives it can tell how long it took to cross the
+ * network. Every client should receive every message, its own included, so
+ * what is missing once the sending stops is reported as lost.
+ *
+ * Messages are tagged with an id for the run, so chat from anyone else on the
+ * servers is ignored, though its clients would still add to the load.
+ */
+public class LoadGenerator implements ClientListener {
+	private static final Logger log = LogManager.getLogger();
+
+	/** How the messages of each client are spaced out */
+	enum Pattern {
+		/** Evenly, at the given rate */
+		STEADY,
+		/** At random, as a Poisson process of the given rate */
+		POISSON,
+		/** In bursts sent back to back, spaced so the average is the given rate */
+		BURST;
+
+		/** The delay in nanoseconds before the next send, given the mean */
+		long nextDelay(long mean, int burst) {
+			switch (this) {
+			case POISSON:
+				return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * mean);
+			case BURST:
+				return mean * burst;
+			default:
+				return mean;
+			}
+		}
+	}
+
+	private final String runId = Long.toHexString(new Random().nextLong());
+	private final List<ClientSkeleton> clients = new ArrayList<ClientSkeleton>();
+	private final LatencyHistogram latencies = new LatencyHistogram(); // microseconds
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong lostConnections = new AtomicLong();
+	private final ScheduledExecutorService senders;
+	private final Pattern pattern;
+	private final long interval; // nanoseconds, the mean between messages of a client
+	private final int burst;
+	private final String padding;
+	private volatile boolean sending = false;
+
+	public LoadGenerator(Pattern pattern, double rate, int burst, int size, int threads) {
+		this.pattern = pattern;
+		this.burst = pattern == Pattern.BURST ? burst : 1;
+		interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		StringBuilder pad = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			pad.append('x');
+		}
+		padding = pad.toString();
+		senders = new ScheduledThreadPoolExecutor(threads);
+	}
+
+	private static void help(Options options) {
+		String header = "Loads ActivityStream servers with many headless chat clients\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.LoadGenerator", header, options, "", true);
+		System.exit(-1);
+	}
+
+	private static double numberOption(CommandLine cmd, Options options, String name, double defaultValue) {
+		if (!cmd.hasOption(name)) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(cmd.getOptionValue(name));
+		} catch (NumberFormatException e) {
+			log.error("-" + name + " requires a number, parsed: " + cmd.getOptionValue(name));
+			help(options);
+			return defaultValue;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Options options = new Options();
+		options.addOption("sv", true, "comma separated host:port of the servers, which the clients are spread across");
+		options.addOption("c", true, "number of clients");
+		options.addOption("r", true, "messages sent per second by each client");
+		options.addOption("p", true, "pattern of sending: steady, poisson or burst");
+		options.addOption("b", true, "messages in each burst of the burst pattern");
+		options.addOption("sz", true, "bytes of padding added to each message");
+		options.addOption("d", true, "seconds to send for");
+		options.addOption("w", true, "seconds to wait after connecting before sending");
+		options.addOption("dr", true, "seconds to wait for messages still in flight once sending stops");
+		options.addOption("ri", true, "seconds between progress reports");
+		options.addOption("th", true, "threads sending messages");
+		options.addOption("log", true, "log level");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+		Configurator.setRootLevel(Level.toLevel(cmd.getOptionValue("log", "error"), Level.ERROR));
+
+		Pattern pattern = null;
+		try {
+			pattern = Pattern.valueOf(cmd.getOptionValue("p", "steady").trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.error("-p requires steady, poisson or burst, parsed: " + cmd.getOptionValue("p"));
+			help(options);
+		}
+		double rate = numberOption(cmd, options, "r", 1);
+		if (rate <= 0) {
+			log.error("-r must be positive, parsed: " + cmd.getOptionValue("r"));
+			help(options);
+		}
+		LoadGenerator generator = new LoadGenerator(pattern, rate, (int) numberOption(cmd, options, "b", 10),
+				(int) numberOption(cmd, options, "sz", 0), (int) numberOption(cmd, options, "th", 2));
+
+		String[] servers = cmd.getOptionValue("sv", "localhost:3780").split(",");
+		int count = (int) numberOption(cmd, options, "c", 100);
+		for (int i = 0; i < count; i++) {
+			String server = servers[i % servers.length].trim();
+			int colon = server.lastIndexOf(':');
+			try {
+				generator.connect(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				log.error("-sv requires host:port, parsed: " + server);
+				help(options);
+			} catch (IOException e) {
+				log.error("failed to connect client " + i + " to " + server + ": " + e);
+			}
+		}
+		System.out.println(generator.clients.size() + " of " + count + " clients connected to " + servers.length
+				+ " servers, each sending " + rate + " messages per second " + pattern.toString().toLowerCase());
+
+		Thread.sleep((long) (numberOption(cmd, options, "w", 2) * 1000));
+		generator.run((long) (numberOption(cmd, options, "d", 30) * 1000),
+				(long) (numberOption(cmd, options, "dr", 5) * 1000), (long) (numberOption(cmd, options, "ri", 5) * 1000));
+		System.exit(0);
+	}
+
+	/** Connects another client and starts it reading */
+	public void connect(String hostname, int port) throws IOException {
+		ClientSkeleton client = new ClientSkeleton(hostname, port);
+		client.addListener(this);
+		client.start();
+		clients.add(client);
+	}
+
+	/**
+	 * Sends for the given number of milliseconds, reporting progress at the
+	 * given interval, then waits up to the drain time for the last messages to
+	 * arrive and reports the totals.
+	 */
+	public void run(long duration, long drain, long reportInterval) throws InterruptedException {
+		sending = true;
+		for (int i = 0; i < clients.size(); i++) {
+			// Start each client at a random point in its interval, so they do not send in step
+			senders.schedule(new Sender(clients.get(i), i),
+					(long) (ThreadLocalRandom.current().nextDouble() * interval * burst), TimeUnit.NANOSECONDS);
+		}
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		long lastSent = 0;
+		long lastDelivered = 0;
+		long lastReport = start;
+		while (System.nanoTime() < end) {
+			Thread.sleep(Math.max(1, Math.min(reportInterval, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+			long now = System.nanoTime();
+			long sentNow = sent.get();
+			long deliveredNow = delivered.get();
+			double seconds = (now - lastReport) / 1e9;
+			System.out.printf("%6.1fs sent %.0f/s delivered %.0f/s, latency p50 %.2fms p99 %.2fms%n",
+					(now - start) / 1e9, (sentNow - lastSent) / seconds, (deliveredNow - lastDelivered) / seconds,
+					latencies.percentile(0.5) / 1e3, latencies.percentile(0.99) / 1e3);
+			lastSent = sentNow;
+			lastDelivered = deliveredNow;
+			lastReport = now;
+		}
+		sending = false;
+		senders.shutdown();
+		senders.awaitTermination(1, TimeUnit.SECONDS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long expected = sent.get() * clients.size();
+		long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drain);
+		while (delivered.get() < expected && System.nanoTime() < drainEnd) {
+			Thread.sleep(10);
+		}
+		long lost = Math.max(0, expected - delivered.get());
+		System.out.printf("sent %d in %.1fs, %.0f/s; delivered %d of %d, %.0f/s; lost %d (%.3f%%)%n", sent.get(),
+				seconds, sent.get() / seconds, delivered.get(), expected, delivered.get() / seconds, lost,
+				expected > 0 ? 100.0 * lost / expected : 0.0);
+		System.out.printf("latency p50 %.2fms p90 %.2fms p99 %.2fms p99.9 %.2fms max %.2fms%n",
+				latencies.percentile(0.5) / 1e3, latencies.percentile(0.9) / 1e3, latencies.percentile(0.99) / 1e3,
+				latencies.percentile(0.999) / 1e3, latencies.percentile(1) / 1e3);
+		if (lostConnections.get() > 0) {
+			System.out.println(lostConnections.get() + " clients lost their connection");
+		}
+		for (ClientSkeleton client : clients) {
+			client.disconnect();
+		}
+	}
+
+	/** Sends the messages of one client, scheduling itself again after each send */
+	private class Sender implements Runnable {
+		private final ClientSkeleton client;
+		private final int index;
+		private long seq = 0;
+
+		Sender(ClientSkeleton client, int index) {
+			this.client = client;
+			this.index = index;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void run() {
+			if (!sending) {
+				return;
+			}
+			for (int i = 0; i < burst; i++) {
+				JSONObject jobj = new JSONObject();
+				jobj.put(Strings.MESSAGE, runId + " " + index + " " + seq++ + " " + System.nanoTime() + " " + padding);
+				client.sendJsonOnSocket(jobj);
+				sent.incrementAndGet();
+			}
+			if (sending) {
+				senders.schedule(this, pattern.nextDelay(interval, burst), TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	public void messageReceived(JSONObject msg) {
+		long received = System.nanoTime();
+		Object message = msg.get(Strings.MESSAGE);
+		if (message == null) {
+			return;
+		}
+		String[] fields = message.toString().split(" ", 5);
+		if (fields.length < 4 || !fields[0].equals(runId)) {
+			return;
+		}
+		try {
+			latencies.record(TimeUnit.NANOSECONDS.toMicros(received - Long.parseLong(fields[3])));
+			delivered.incrementAndGet();
+		} catch (NumberFormatException e) {
+			log.error("received an invalid message: " + message);
+		}
+	}
+
+	public void connectionLost() {
+		lostConnections.incrementAndGet();
+	}
+}
@@ -0,0 +1,54 @@
+package activitystreamer.client;
+
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The lines shown in the chat output, kept in a ring of fixed capacity. Once
+ * it is full each line added pushes out the oldest, so memory stays bounded
+ * however long the client runs. Only used on the event dispatch thread.
+ */
+@SuppressWarnings("serial")
+class OutputLines extends AbstractListModel<String> {
+	private final String[] lines;
+	// The index in lines of the oldest line
+	private int start = 0;
+	private int size = 0;
+
+	OutputLines(int capacity) {
+		lines = new String[capacity];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public String getElementAt(int index) {
+		return lines[(start + index) % lines.length];
+	}
+
+	/**
+	 * Adds a batch of lines, returning how many of the oldest were pushed out
+	 * to make room. Fires one removal and one addition for the whole batch.
+	 */
+	int addAll(List<String> batch) {
+		int from = Math.max(0, batch.size() - lines.length);
+		int added = batch.size() - from;
+		int evicted = Math.max(0, size + added - lines.length);
+		if (evicted > 0) {
+			start = (start + evicted) % lines.length;
+			size -= evicted;
+			fireIntervalRemoved(this, 0, evicted - 1);
+		}
+		int first = size;
+		for (int i = from; i < batch.size(); i++) {
+			lines[(start + size) % lines.length] = batch.get(i);
+			size++;
+		}
+		if (added > 0) {
+			fireIntervalAdded(this, first, size - 1);
+		}
+		return evicted;
+	}
+}
@@ -5,13 +5,21 @@ import java.awt.Color;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.Timer;
 import javax.swing.border.Border;
 
 import org.apache.logging.log4j.LogManager;
@@ -29,11 +37,26 @@ import activitystreamer.util.Settings;
 import activitystreamer.util.Strings;
 
 
+/**
+ * The chat window. Received messages are queued by whichever thread receives
+ * them, and moved into the output once per frame interval, so a busy room
+ * costs one update of the GUI per frame rather than one per message. The
+ * output keeps a bounded number of lines, and being a list only paints those
+ * scrolled into view.
+ */
 @SuppressWarnings("serial")
 public class TextFrame extends JFrame implements ActionListener {
 	private static final Logger log = LogManager.getLogger();
+	// Milliseconds between updates of the output
+	private static final int FRAME_INTERVAL = 40;
+	// Lines of output kept for scrolling back through
+	private static final int MAX_LINES = 10000;
 	private JTextArea inputText;
-	private JTextArea outputText;
+	private JList<String> outputList;
+	private final OutputLines outputLines = new OutputLines(MAX_LINES);
+	// Received since the last frame. Never more than the output can keep
+	private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
 	private JButton sendButton;
 	private JButton disconnectButton;
 	private JSONParser parser = new JSONParser();
@@ -66,9 +89,17 @@ public class TextFrame extends JFrame implements ActionListener {
 		disconnectButton.addActionListener(this);
 		
 		
-		outputText = new JTextArea();
-		scrollPane = new JScrollPane(outputText);
-		outputPanel.add(scrollPane,BorderLayout.CENTER);
+		outputList = new JList<String>(outputLines) {
+			// Lines are as wide as the view, so no line has to be measured
+			@Override
+			public boolean getScrollableTracksViewportWidth() {
+				return true;
+			}
+		};
+		outputList.setFixedCellHeight(outputList.getFontMetrics(outputList.getFont()).getHeight());
+		outputList.setFixedCellWidth(1);
+		final JScrollPane outputScrollPane = new JScrollPane(outputList);
+		outputPanel.add(outputScrollPane,BorderLayout.CENTER);
 		
 		mainPanel.add(inputPanel);
 		mainPanel.add(outputPanel);
@@ -78,12 +109,49 @@ public class TextFrame extends JFrame implements ActionListener {
 		setSize(1280,768);
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		setVisible(true);
+
+		new Timer(FRAME_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				render(outputScrollPane);
+			}
+		}).start();
+	}
+
+	/** Queues a line to be added to the output at the next frame. Safe to call from any thread */
+	public void appendOutput(String text){
+		pending.add(text);
+		// Lines beyond what the output keeps would only be pushed out again
+		if(pendingCount.incrementAndGet()>MAX_LINES && pending.poll()!=null){
+			pendingCount.decrementAndGet();
+		}
 	}
 
-	public void setOutputText(String text){
-		outputText.setText(text);
-		outputText.revalidate();
-		outputText.repaint();
+	/**
+	 * Moves the queued lines into the output. Follows the newest line if the
+	 * output was scrolled to the bottom, and otherwise keeps the lines in view
+	 * still as older ones are pushed out above them.
+	 */
+	private void render(JScrollPane scrollPane){
+		if(pending.isEmpty()){
+			return;
+		}
+		List<String> batch = new ArrayList<String>();
+		String line;
+		while((line = pending.poll())!=null){
+			batch.add(line);
+		}
+		pendingCount.addAndGet(-batch.size());
+		JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+		boolean atBottom = scrollBar.getValue()+scrollBar.getVisibleAmount()>=scrollBar.getMaximum();
+		int value = scrollBar.getValue();
+		int evicted = outputLines.addAll(batch);
+		// Lay the list out at its new size before scrolling it
+		scrollPane.validate();
+		if(atBottom){
+			outputList.ensureIndexIsVisible(outputLines.getSize()-1);
+		} else if(evicted>0){
+			scrollBar.setValue(Math.max(0, value-evicted*outputList.getFixedCellHeight()));
+		}
 	}
 	
 	@Override
@@ -0,0 +1,449 @@
+package activitystreamer.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.google.gson.stream.JsonReader;
+
+import activitystreamer.util.Strings;
+
+/**
+ * The binary framing used on server links which have negotiated it. Each frame
+ * is a type byte, a four byte payload length, and the payload. The type bytes
+ * are all control characters, which can never start a JSON line, so binary
+ * frames and JSON lines can be told apart on the same stream.
+ *
+ * Chat messages and the GHS messages get their own types, with the payload
+ * holding just the value of the message key. Values are encoded with a one
+ * byte tag, and UUID strings are sent as their 16 bytes. Decoding produces
+ * exactly the JSONObject the JSON line would have parsed to.
+ */
+public class BinaryCodec {
+	public static final byte MESSAGE = 1;
+	public static final byte CONNECT = 2;
+	public static final byte INITIATE = 3;
+	public static final byte TEST = 4;
+	public static final byte REPORT = 5;
+	// Any other JSON object
+	public static final byte OBJECT = 6;
+
+	public static final int HEADER_LENGTH = 5;
+	public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+	// The field count of an object is sent in two bytes
+	private static final int MAX_FIELDS = 0xffff;
+
+	private static final byte TAG_NULL = 'N';
+	private static final byte TAG_TRUE = 'T';
+	private static final byte TAG_FALSE = 'F';
+	private static final byte TAG_LONG = 'L';
+	private static final byte TAG_DOUBLE = 'D';
+	private static final byte TAG_STRING = 'S';
+	private static final byte TAG_UUID = 'U';
+	private static final byte TAG_OBJECT = 'O';
+	private static final byte TAG_ARRAY = 'A';
+
+	/** True if the byte starts a binary frame rather than a JSON line */
+	public static boolean isFrameType(byte b) {
+		return b >= MESSAGE && b <= OBJECT;
+	}
+
+	/**
+	 * Encodes the message as a complete frame, including its header. Throws
+	 * IllegalArgumentException if it has an object too large for the format.
+	 */
+	public static byte[] encode(JSONObject message) {
+		try {
+			FrameBuffer bytes = new FrameBuffer();
+			DataOutputStream out = new DataOutputStream(bytes);
+			byte type = typeOf(message);
+			out.writeByte(type);
+			out.writeInt(0); // the length is filled in below
+			if (type == MESSAGE || type == OBJECT) {
+				writeObject(out, message);
+			} else {
+				writeValue(out, message.values().iterator().next());
+			}
+			return bytes.finish();
+		} catch (ProtocolException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		} catch (IOException e) {
+			// Writing to a byte array does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Encodes a chat message straight from its JSON text, without building a
+	 * JSONObject, for relaying a message received as a JSON line to a binary
+	 * link.
+	 */
+	public static byte[] encodeMessage(String json) throws IOException {
+		FrameBuffer bytes = new FrameBuffer();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MESSAGE);
+		out.writeInt(0);
+		JsonReader reader = new JsonReader(new StringReader(json));
+		try {
+			transcodeObject(reader, out, bytes);
+		} catch (IllegalStateException | NumberFormatException e) {
+			throw new ProtocolException("not a JSON object: " + e.getMessage());
+		}
+		return bytes.finish();
+	}
+
+	/**
+	 * Reads only the given top level fields of a message frame, skipping over
+	 * the rest without decoding them.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject readFields(byte[] frame, String... keys) throws ProtocolException {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(frame, HEADER_LENGTH, frame.length - HEADER_LENGTH));
+		JSONObject fields = new JSONObject();
+		try {
+			int size = readFieldCount(in);
+			for (int i = 0; i < size && fields.size() < keys.length; i++) {
+				String key = in.readUTF();
+				if (contains(keys, key)) {
+					fields.put(key, readValue(in));
+				} else {
+					skipValue(in);
+				}
+			}
+		} catch (ProtocolException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ProtocolException("truncated message frame");
+		}
+		return fields;
+	}
+
+	private static boolean contains(String[] keys, String key) {
+		for (String k : keys) {
+			if (k.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void skipValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case TAG_NULL:
+		case TAG_TRUE:
+		case TAG_FALSE:
+			break;
+		case TAG_LONG:
+		case TAG_DOUBLE:
+			in.skipBytes(8);
+			break;
+		case TAG_UUID:
+			in.skipBytes(16);
+			break;
+		case TAG_STRING:
+			in.skipBytes(in.readInt());
+			break;
+		case TAG_OBJECT:
+			int size = readFieldCount(in);
+			for (int i = 0; i < size; i++) {
+				in.readUTF();
+				skipValue(in);
+			}
+			break;
+		case TAG_ARRAY:
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				skipValue(in);
+			}
+			break;
+		default:
+			throw new ProtocolException("unknown value tag " + tag);
+		}
+	}
+
+	/** Rejects an object with more fields than its count can hold, rather than truncating the count */
+	private static void checkFields(int count) throws ProtocolException {
+		if (count > MAX_FIELDS) {
+			throw new ProtocolException("object has " + count + " fields, more than the " + MAX_FIELDS
+					+ " a frame can hold");
+		}
+	}
+
+	/** Reads the field count of an object, checking there are bytes enough for that many fields */
+	private static int readFieldCount(DataInputStream in) throws IOException {
+		int size = in.readUnsignedShort();
+		// Each field takes at least a two byte key length and a tag
+		if ((long) size * 3 > in.available()) {
+			throw new ProtocolException("bad object size " + size);
+		}
+		return size;
+	}
+
+	/** Parses a JSON number into a Long or a Double, as json-simple does */
+	public static Number parseNumber(String number) {
+		if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+			return Long.valueOf(number);
+		}
+		return Double.valueOf(number);
+	}
+
+	private static void transcodeObject(JsonReader reader, DataOutputStream out, FrameBuffer bytes)
+			throws IOException {
+		// The number of fields is only known at the end, so it is filled in afterwards
+		out.flush();
+		int countAt = bytes.size();
+		out.writeShort(0);
+		int count = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			out.writeUTF(reader.nextName());
+			transcodeValue(reader, out, bytes);
+			count++;
+		}
+		reader.endObject();
+		checkFields(count);
+		out.flush();
+		bytes.putShort(countAt, count);
+	}
+
+	private static void transcodeValue(JsonReader reader, DataOutputStream out, FrameBuffer bytes)
+			throws IOException {
+		switch (reader.peek()) {
+		case BEGIN_OBJECT:
+			out.writeByte(TAG_OBJECT);
+			transcodeObject(reader, out, bytes);
+			break;
+		case BEGIN_ARRAY:
+			out.writeByte(TAG_ARRAY);
+			out.flush();
+			int countAt = bytes.size();
+			out.writeInt(0);
+			int count = 0;
+			reader.beginArray();
+			while (reader.hasNext()) {
+				transcodeValue(reader, out, bytes);
+				count++;
+			}
+			reader.endArray();
+			out.flush();
+			bytes.putInt(countAt, count);
+			break;
+		case NUMBER:
+			writeValue(out, parseNumber(reader.nextString()));
+			break;
+		case BOOLEAN:
+			out.writeByte(reader.nextBoolean() ? TAG_TRUE : TAG_FALSE);
+			break;
+		case NULL:
+			reader.nextNull();
+			out.writeByte(TAG_NULL);
+			break;
+		default:
+			writeString(out, reader.nextString());
+		}
+	}
+
+	/** Decodes the payload of a frame of the given type */
+	public static JSONObject decode(byte type, byte[] buf, int off, int len) throws ProtocolException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, off, len));
+		try {
+			switch (type) {
+			case MESSAGE:
+			case OBJECT:
+				return readObject(in);
+			case CONNECT:
+				return single(Strings.CONNECT, readValue(in));
+			case INITIATE:
+				return single(Strings.INITIATE, readValue(in));
+			case TEST:
+				return single(Strings.TEST, readValue(in));
+			case REPORT:
+				return single(Strings.REPORT, readValue(in));
+			default:
+				throw new ProtocolException("unknown frame type " + type);
+			}
+		} catch (ProtocolException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ProtocolException("truncated frame of type " + type);
+		}
+	}
+
+	private static byte typeOf(JSONObject message) {
+		if (message.containsKey(Strings.MESSAGE)) {
+			return MESSAGE;
+		}
+		if (message.size() == 1) {
+			if (message.containsKey(Strings.CONNECT)) {
+				return CONNECT;
+			}
+			if (message.containsKey(Strings.INITIATE)) {
+				return INITIATE;
+			}
+			if (message.containsKey(Strings.TEST)) {
+				return TEST;
+			}
+			if (message.containsKey(Strings.REPORT)) {
+				return REPORT;
+			}
+		}
+		return OBJECT;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject single(String key, Object value) {
+		JSONObject jobj = new JSONObject();
+		jobj.put(key, value);
+		return jobj;
+	}
+
+	private static void writeObject(DataOutputStream out, Map<?, ?> map) throws IOException {
+		checkFields(map.size());
+		out.writeShort(map.size());
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			out.writeUTF(String.valueOf(entry.getKey()));
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		} else if (value instanceof Double || value instanceof Float) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			out.writeByte(TAG_LONG);
+			out.writeLong(((Number) value).longValue());
+		} else if (value instanceof Map) {
+			out.writeByte(TAG_OBJECT);
+			writeObject(out, (Map<?, ?>) value);
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.writeByte(TAG_ARRAY);
+			out.writeInt(list.size());
+			for (Object element : list) {
+				writeValue(out, element);
+			}
+		} else {
+			writeString(out, value.toString());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		UUID uuid = asUUID(str);
+		if (uuid != null) {
+			out.writeByte(TAG_UUID);
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+		} else {
+			byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(TAG_STRING);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject readObject(DataInputStream in) throws IOException {
+		int size = readFieldCount(in);
+		JSONObject jobj = new JSONObject();
+		for (int i = 0; i < size; i++) {
+			String key = in.readUTF();
+			jobj.put(key, readValue(in));
+		}
+		return jobj;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_TRUE:
+			return Boolean.TRUE;
+		case TAG_FALSE:
+			return Boolean.FALSE;
+		case TAG_LONG:
+			return in.readLong();
+		case TAG_DOUBLE:
+			return in.readDouble();
+		case TAG_UUID:
+			return new UUID(in.readLong(), in.readLong()).toString();
+		case TAG_STRING:
+			int length = in.readInt();
+			if (length < 0 || length > in.available()) {
+				throw new ProtocolException("bad string length " + length);
+			}
+			byte[] utf8 = new byte[length];
+			in.readFully(utf8);
+			return new String(utf8, StandardCharsets.UTF_8);
+		case TAG_OBJECT:
+			return readObject(in);
+		case TAG_ARRAY:
+			int count = in.readInt();
+			if (count < 0 || count > in.available()) {
+				throw new ProtocolException("bad array length " + count);
+			}
+			JSONArray array = new JSONArray();
+			for (int i = 0; i < count; i++) {
+				array.add(readValue(in));
+			}
+			return array;
+		default:
+			throw new ProtocolException("unknown value tag " + tag);
+		}
+	}
+
+	/** A byte array stream whose counts and header can be filled in after the fact */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(64);
+		}
+
+		void putShort(int at, int value) {
+			buf[at] = (byte) (value >>> 8);
+			buf[at + 1] = (byte) value;
+		}
+
+		void putInt(int at, int value) {
+			putShort(at, value >>> 16);
+			putShort(at + 2, value);
+		}
+
+		/** Fills in the payload length of the header and returns the frame */
+		byte[] finish() {
+			putInt(1, count - HEADER_LENGTH);
+			return toByteArray();
+		}
+	}
+
+	/** Only canonical UUID strings are compacted, so they decode to the same text */
+	private static UUID asUUID(String str) {
+		if (str.length() != 36 || str.charAt(8) != '-') {
+			return null;
+		}
+		try {
+			UUID uuid = UUID.fromString(str);
+			return uuid.toString().equals(str) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
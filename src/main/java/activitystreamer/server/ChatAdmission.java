@@ -0,0 +1,229 @@
+package activitystreamer.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.RateLimitPolicy;
+import activitystreamer.util.Settings;
+
+/**
+ * Admits the chat clients send into the network at the rate each is allowed,
+ * so that one client flooding chat cannot take the fan-out from everyone
+ * else. Each client has a token bucket, filling at the client rate times the
+ * weight it asked for when it connected, up to the largest the settings allow.
+ * Chat within its rate is relayed straight away on the thread which read it,
+ * checking only that client's bucket. Chat beyond its rate is dropped, has the
+ * client disconnected, or is held back, as the policy says.
+ *
+ * Held back chat is relayed by a scheduler, which goes round the clients with
+ * chat held back taking up to each one's weight in messages per round, so
+ * clients which are held back share the fan-out in proportion to their
+ * weights. It is a thread of its own in real time, and scheduled on the
+ * {@link VirtualClock} in virtual time. Only holding back chat and the
+ * scheduler take the shared lock.
+ */
+public class ChatAdmission implements Runnable {
+	private static final Logger log = LogManager.getLogger();
+
+	private final ChatHandler relay;
+	private final VirtualClock clock;
+	private final Metrics metrics;
+	// The clients with chat held back, in the order they are next served
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled when chat is held back or the scheduler is stopped
+	private final Condition work = lock.newCondition();
+	private final ArrayDeque<ClientConnectionInformation> round = new ArrayDeque<ClientConnectionInformation>();
+	private volatile boolean term = false;
+	// Whether a drain is scheduled, in virtual time
+	private boolean drainScheduled = false;
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			scheduledDrain();
+		}
+	};
+
+	ChatAdmission(ChatHandler relay, VirtualClock clock, Metrics metrics) {
+		this.relay = relay;
+		this.clock = clock;
+		this.metrics = metrics;
+	}
+
+	private long nanoTime() {
+		return clock != null ? clock.nanoTime() : System.nanoTime();
+	}
+
+	/**
+	 * Relays chat entering the network from a client, if it is within the
+	 * client's rate. Returns true if the connection should close.
+	 */
+	public boolean admit(Connection con, ClientConnectionInformation info, ChatMessage msg) {
+		if (Settings.getClientRate() == 0) {
+			return relay.relay(con, msg);
+		}
+		// Nothing may overtake chat already held back. Only the client's reader
+		// holds chat back, so once none is held it stays that way here
+		if (info.held.get() == 0 && info.getBucket().tryTake(1, nanoTime())) {
+			return relay.relay(con, msg);
+		}
+		lock.lock();
+		try {
+			return limit(con, info, msg);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Deals with chat beyond the client's rate. Called holding the lock */
+	private boolean limit(Connection con, ClientConnectionInformation info, ChatMessage msg) {
+		RateLimitPolicy policy = Settings.getRateLimitPolicy();
+		if (policy == RateLimitPolicy.DISCONNECT) {
+			log.info("client " + con.getAddress() + " exceeded its chat rate, disconnecting");
+			msg.release();
+			metrics.getChatLimited(RateLimitPolicy.DISCONNECT).increment();
+			return true;
+		}
+		if (policy == RateLimitPolicy.DROP || info.queued.size() >= Settings.getClientQueueLimit() || info.removed) {
+			log.trace("dropping chat from " + con.getAddress() + " beyond its rate");
+			msg.release();
+			metrics.getChatLimited(RateLimitPolicy.DROP).increment();
+			return false;
+		}
+		info.queued.add(msg);
+		info.held.incrementAndGet();
+		metrics.getChatLimited(RateLimitPolicy.QUEUE).increment();
+		if (!info.scheduled) {
+			info.scheduled = true;
+			round.add(info);
+			if (clock != null) {
+				scheduleDrain(0);
+			} else {
+				work.signalAll();
+			}
+		}
+		return false;
+	}
+
+	/** Drops the chat held back for a client which has gone */
+	public void remove(ClientConnectionInformation info) {
+		lock.lock();
+		try {
+			info.removed = true;
+			round.remove(info);
+			info.scheduled = false;
+			ChatMessage msg;
+			while ((msg = info.queued.poll()) != null) {
+				info.held.decrementAndGet();
+				msg.release();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Relays the held back chat the clients' rates now allow, a round at a
+	 * time. Returns the nanoseconds until more will be allowed, or -1 if
+	 * nothing is held back.
+	 */
+	private long drain() {
+		while (true) {
+			List<ClientConnectionInformation> clients = new ArrayList<ClientConnectionInformation>();
+			List<ChatMessage> batch = new ArrayList<ChatMessage>();
+			long next = -1;
+			lock.lock();
+			try {
+				long now = nanoTime();
+				for (int i = round.size(); i > 0; i--) {
+					ClientConnectionInformation info = round.poll();
+					for (int taken = 0; taken < info.getWeight() && !info.queued.isEmpty()
+							&& info.getBucket().tryTake(1, now); taken++) {
+						clients.add(info);
+						batch.add(info.queued.poll());
+					}
+					if (info.queued.isEmpty()) {
+						info.scheduled = false;
+					} else {
+						round.add(info);
+						long wait = info.getBucket().availableAt(1, now) - now;
+						next = next < 0 ? wait : Math.min(next, wait);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (batch.isEmpty()) {
+				return next;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				ClientConnectionInformation info = clients.get(i);
+				if (relay.relay(info.getConnection(), batch.get(i))) {
+					info.getConnection().closeCon();
+				}
+				// Only now may the client's reader relay its chat directly again
+				info.held.decrementAndGet();
+			}
+		}
+	}
+
+	/** Relays held back chat until stopped, in real time */
+	public void run() {
+		while (!term) {
+			long next = drain();
+			try {
+				lock.lockInterruptibly();
+				try {
+					if (next < 0 && round.isEmpty() && !term) {
+						work.await();
+					} else if (next > 0) {
+						work.awaitNanos(next);
+					}
+				} finally {
+					lock.unlock();
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void scheduleDrain(long delay) {
+		lock.lock();
+		try {
+			if (!drainScheduled && !term) {
+				drainScheduled = true;
+				clock.schedule(drain, delay);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void scheduledDrain() {
+		lock.lock();
+		try {
+			drainScheduled = false;
+		} finally {
+			lock.unlock();
+		}
+		long next = drain();
+		if (next >= 0) {
+			scheduleDrain(next);
+		}
+	}
+
+	public void setTerm(boolean term) {
+		lock.lock();
+		try {
+			this.term = term;
+			work.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package activitystreamer.server;
+
+/**
+ * Relays chat messages. Runs on the thread which read the message.
+ */
+public interface ChatHandler {
+	/** Returns true if the connection should close */
+	boolean relay(Connection con, ChatMessage msg);
+}
@@ -0,0 +1,206 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import activitystreamer.util.Strings;
+
+/**
+ * A chat message being relayed, kept in the form it arrived in. The frame for
+ * each wire format is only built the first time a connection using that
+ * format needs it, so a message relayed between connections of the same
+ * format is never parsed into a JSONObject.
+ */
+public final class ChatMessage {
+	private static final Logger log = LogManager.getLogger();
+	private static final int WIRE_FORMATS = WireFormat.values().length;
+
+	// Exactly one of these holds the message as it was received
+	private String line;
+	private byte[] binaryFrame;
+	private JSONObject json;
+	private MessageId id;
+	// The hops of a traced message so far, read along with the id
+	private JSONArray trace;
+	private boolean idRead;
+	// Whether a line was received with an id or trace, which stamping replaces
+	private boolean lineStamped;
+
+	private final SharedFrame[] frames = new SharedFrame[WIRE_FORMATS];
+
+	private ChatMessage(String line, byte[] binaryFrame, JSONObject json) {
+		this.line = line;
+		this.binaryFrame = binaryFrame;
+		this.json = json;
+	}
+
+	/**
+	 * A message received as a JSON line, which has already been checked to be a
+	 * single valid object.
+	 * 
+	 * @param fields the id and trace fields read from the line, if it had any
+	 */
+	public static ChatMessage fromLine(String line, JSONObject fields) {
+		ChatMessage msg = new ChatMessage(line, null, null);
+		msg.id = MessageId.from(fields);
+		msg.trace = asTrace(fields.get(Strings.TRACE));
+		msg.idRead = true;
+		msg.lineStamped = fields.containsKey(Strings.ORIGIN) || fields.containsKey(Strings.SEQ)
+				|| fields.containsKey(Strings.TRACE);
+		return msg;
+	}
+
+	/** A message received as a complete binary frame, including its header */
+	public static ChatMessage fromFrame(byte[] frame) {
+		return new ChatMessage(null, frame, null);
+	}
+
+	public static ChatMessage of(JSONObject json) {
+		return new ChatMessage(null, null, json);
+	}
+
+	/** The id of the message, or null if it has not been stamped with one */
+	public MessageId getId() {
+		if (!idRead) {
+			idRead = true;
+			if (json != null) {
+				id = MessageId.from(json);
+				trace = asTrace(json.get(Strings.TRACE));
+			} else {
+				try {
+					JSONObject fields = BinaryCodec.readFields(binaryFrame, Strings.ORIGIN, Strings.SEQ, Strings.TRACE);
+					id = MessageId.from(fields);
+					trace = asTrace(fields.get(Strings.TRACE));
+				} catch (ProtocolException e) {
+					log.error("could not read the id of a chat message: " + e.getMessage());
+				}
+			}
+		}
+		return id;
+	}
+
+	/** The hops of a traced message so far, or null if it is not traced */
+	public JSONArray getTrace() {
+		getId();
+		return trace;
+	}
+
+	private static JSONArray asTrace(Object value) {
+		return value instanceof JSONArray ? (JSONArray) value : null;
+	}
+
+	/**
+	 * The message decoded into a new JSONObject, without its trace, or null if
+	 * it could not be decoded. Only traced messages are decoded like this.
+	 */
+	public JSONObject toJSON() {
+		JSONObject copy;
+		try {
+			if (json != null) {
+				copy = new JSONObject(json);
+			} else if (line != null) {
+				copy = (JSONObject) new JSONParser().parse(line);
+			} else {
+				copy = BinaryCodec.decode(BinaryCodec.MESSAGE, binaryFrame, BinaryCodec.HEADER_LENGTH,
+						binaryFrame.length - BinaryCodec.HEADER_LENGTH);
+			}
+		} catch (ParseException | ProtocolException e) {
+			log.error("could not decode a traced chat message: " + e);
+			return null;
+		}
+		copy.remove(Strings.TRACE);
+		return copy;
+	}
+
+	/**
+	 * Gives the message an id, as it enters the network at this server,
+	 * replacing any id or trace it was sent with. Must be called before any
+	 * frames are built.
+	 */
+	@SuppressWarnings("unchecked")
+	public void stamp(UUID origin, long seq) {
+		id = new MessageId(origin, seq);
+		idRead = true;
+		trace = null;
+		if (line != null && !lineStamped) {
+			// The line is a single object, so its last brace closes it
+			int end = line.lastIndexOf('}');
+			line = line.substring(0, end) + ",\"" + Strings.ORIGIN + "\":\"" + origin + "\",\"" + Strings.SEQ + "\":"
+					+ seq + line.substring(end);
+			return;
+		}
+		try {
+			if (line != null) {
+				json = (JSONObject) new JSONParser().parse(line);
+				line = null;
+			} else if (json == null) {
+				json = BinaryCodec.decode(BinaryCodec.MESSAGE, binaryFrame, BinaryCodec.HEADER_LENGTH,
+						binaryFrame.length - BinaryCodec.HEADER_LENGTH);
+				binaryFrame = null;
+			}
+		} catch (ParseException | ProtocolException e) {
+			log.error("could not stamp a chat message: " + e.getMessage());
+			return;
+		}
+		json.remove(Strings.TRACE);
+		json.put(Strings.ORIGIN, origin.toString());
+		json.put(Strings.SEQ, seq);
+	}
+
+	/**
+	 * The frame to write to a connection using the given format. The frame is
+	 * owned by the message, so callers retain it before handing it on. Returns
+	 * null if the message could not be converted to the format.
+	 */
+	public SharedFrame frameFor(WireFormat format) {
+		SharedFrame frame = frames[format.ordinal()];
+		if (frame == null) {
+			try {
+				frame = encode(format);
+			} catch (IOException | IllegalArgumentException e) {
+				log.error("could not convert chat message to " + format + ": " + e.getMessage());
+				return null;
+			}
+			frames[format.ordinal()] = frame;
+		}
+		return frame;
+	}
+
+	private SharedFrame encode(WireFormat format) throws IOException {
+		if (format == WireFormat.JSON) {
+			if (line != null) {
+				return SharedFrame.of(line);
+			}
+			if (json == null) {
+				json = BinaryCodec.decode(BinaryCodec.MESSAGE, binaryFrame, BinaryCodec.HEADER_LENGTH,
+						binaryFrame.length - BinaryCodec.HEADER_LENGTH);
+			}
+			return SharedFrame.of(json);
+		}
+		if (binaryFrame != null) {
+			return SharedFrame.wrap(binaryFrame);
+		}
+		if (line != null) {
+			return SharedFrame.wrap(BinaryCodec.encodeMessage(line));
+		}
+		return format.encode(json);
+	}
+
+	/** Gives up the message's references to the frames it has built */
+	public void release() {
+		for (int i = 0; i < frames.length; i++) {
+			if (frames[i] != null) {
+				frames[i].release();
+				frames[i] = null;
+			}
+		}
+	}
+}
@@ -5,8 +5,8 @@ import java.net.Socket;
 
 public class ClientConnection extends Connection {
 
-	ClientConnection(Socket socket) throws IOException {
-		super(socket);
+	ClientConnection(Control control, Socket socket) throws IOException {
+		super(control, socket);
 		// TODO Auto-generated constructor stub
 	}
 
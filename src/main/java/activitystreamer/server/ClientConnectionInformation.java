@@ -1,5 +1,54 @@
 package activitystreamer.server;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * What the server keeps about a client: how much chat it may send, and the
+ * messages it has sent beyond that which are held back. Every incoming
+ * connection starts with one, replaced if it turns out to be a server.
+ */
 public class ClientConnectionInformation extends ConnectionInformation{
+	private final Connection connection;
+	// Limits the chat the client sends into the network, at its rate times its weight
+	private volatile TokenBucket bucket;
+	// Messages taken from the client's queue in each round of the scheduler
+	private volatile int weight = 1;
+	// Held back by the ChatAdmission, which guards them with its own lock
+	final ArrayDeque<ChatMessage> queued = new ArrayDeque<ChatMessage>();
+	// Chat held back or being relayed by the scheduler, read without the lock
+	// by the client's reader
+	final AtomicInteger held = new AtomicInteger();
+	// Whether the client is in the scheduler's round
+	boolean scheduled = false;
+	boolean removed = false;
+
+	ClientConnectionInformation(Connection connection, long now) {
+		this.connection = connection;
+		bucket = new TokenBucket(Settings.getClientRate(), Settings.getClientBurst(), now);
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public TokenBucket getBucket() {
+		return bucket;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
 
+	/**
+	 * Sets the share of the fan-out the client gets relative to others: its rate
+	 * is the client rate times its weight, and the scheduler takes up to its
+	 * weight in held back messages per round
+	 */
+	public void setWeight(int weight, long now) {
+		this.weight = Math.max(1, weight);
+		bucket = new TokenBucket((double) Settings.getClientRate() * this.weight, Settings.getClientBurst(), now);
+	}
 }
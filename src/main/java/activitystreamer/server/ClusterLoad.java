@@ -0,0 +1,98 @@
+package activitystreamer.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * What this server knows of the load of the others, from the reports they
+ * announce. A report is dropped once nothing newer has been heard from its
+ * server for a while, so failed servers stop being redirected to.
+ *
+ * Read by the threads which decide to redirect a client as well as updated
+ * on the control plane, so every method is synchronized.
+ */
+public class ClusterLoad {
+	private static class Entry {
+		LoadReport report;
+		long updated; // nanoseconds
+
+		Entry(LoadReport report, long updated) {
+			this.report = report;
+			this.updated = updated;
+		}
+	}
+
+	private final Map<UUID, Entry> servers = new HashMap<UUID, Entry>();
+	private final VirtualClock clock;
+
+	ClusterLoad(VirtualClock clock) {
+		this.clock = clock;
+	}
+
+	private long nanoTime() {
+		return clock != null ? clock.nanoTime() : System.nanoTime();
+	}
+
+	/**
+	 * Records a report. Returns true if it is newer than any heard from its
+	 * server before, and so should be passed on.
+	 */
+	public synchronized boolean update(LoadReport report) {
+		Entry entry = servers.get(report.getServer());
+		if (entry != null && entry.report.getSeq() >= report.getSeq()) {
+			return false;
+		}
+		servers.put(report.getServer(), new Entry(report, nanoTime()));
+		return true;
+	}
+
+	/** Drops the reports of servers not heard from within the given number of nanoseconds */
+	public synchronized void expire(long maxAge) {
+		long now = nanoTime();
+		Iterator<Entry> it = servers.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().updated > maxAge) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * The least loaded server with fewer clients than the given number less
+	 * one, so that moving a client there leaves the two no further apart.
+	 * Returns null if there is none. The client is counted against the server
+	 * straight away, so a burst of clients is spread out rather than all sent
+	 * to the same server before it next announces its load.
+	 */
+	public synchronized LoadReport redirectTarget(int clients) {
+		Entry least = null;
+		for (Entry entry : servers.values()) {
+			if (least == null || entry.report.compareTo(least.report) < 0) {
+				least = entry;
+			}
+		}
+		if (least == null || least.report.getClients() + 1 >= clients) {
+			return null;
+		}
+		LoadReport target = least.report;
+		least.report = target.withClient();
+		return target;
+	}
+
+	public synchronized int size() {
+		return servers.size();
+	}
+
+	/** The CPU load of this process between 0 and 1, or negative if it is not known */
+	static double processCpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+		}
+		return -1;
+	}
+}
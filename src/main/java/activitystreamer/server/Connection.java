@@ -1,43 +1,93 @@
 package activitystreamer.server;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
 
+import activitystreamer.util.LinkModel;
 import activitystreamer.util.Settings;
+import activitystreamer.util.SlowConsumerPolicy;
 
-public class Connection extends Thread {
+/**
+ * A connection to a client or another server. Blocking connections are read by
+ * {@link #run()} and written by {@link #getWriter()}, which are both handed to
+ * an executor by the {@link Transport} once the connection is created.
+ * Subclasses which do their own I/O have no streams, and may have no socket.
+ */
+public class Connection implements Runnable {
 	private static final Logger log = LogManager.getLogger();
+	private static final AtomicLong nextId = new AtomicLong();
+	private static final int WRITE_BUFFER_SIZE = 65536;
+	protected static final int READ_BUFFER_SIZE = 8192;
+	// Limits on how much is coalesced into a single flush
+	protected static final int MAX_BATCH_FRAMES = 64;
+	protected static final int MAX_BATCH_BYTES = WRITE_BUFFER_SIZE;
+	private final long id = nextId.incrementAndGet();
+	// The server this connection belongs to
+	protected final Control control;
 	private DataInputStream in;
 	private DataOutputStream out;
-	private BufferedReader inreader;
-	private PrintWriter outwriter;
-	private boolean open = false;
+	private volatile boolean open = false;
 	private Socket socket;
 	private boolean term = false;
 
 	private boolean hasReceivedConnect;
 
 	private ConnectionState connectionState;
-	private ConnectionInformation connectionInformation;
+	private volatile ConnectionInformation connectionInformation;
 
-	Connection(Socket socket) throws IOException {
-		in = new DataInputStream(socket.getInputStream());
-		out = new DataOutputStream(socket.getOutputStream());
-		inreader = new BufferedReader(new InputStreamReader(in));
-		outwriter = new PrintWriter(out, true);
+	protected final OutboundQueue outbound = new OutboundQueue(this);
+	protected final TrafficCounters traffic = new TrafficCounters();
+	private volatile WireFormat wireFormat = WireFormat.JSON;
+
+	// Splits incoming bytes into JSON lines and binary frames for the dispatcher
+	protected final FrameDecoder decoder = new FrameDecoder();
+	protected final FrameDecoder.Handler frameHandler = new FrameDecoder.Handler() {
+		public boolean line(String line) {
+			traffic.messageIn();
+			return control.process(Connection.this, line);
+		}
+
+		public boolean frame(byte type, byte[] buf, int off, int len) throws ProtocolException {
+			traffic.messageIn();
+			MessageDispatcher dispatcher = control.getDispatcher();
+			if (type == BinaryCodec.MESSAGE) {
+				// Chat is relayed in the frame it arrived in
+				byte[] frame = Arrays.copyOfRange(buf, off - BinaryCodec.HEADER_LENGTH, off + len);
+				return dispatcher.relay(Connection.this, ChatMessage.fromFrame(frame));
+			}
+			return dispatcher.dispatch(Connection.this, BinaryCodec.decode(type, buf, off, len));
+		}
+	};
+
+	Connection(Control control, Socket socket) throws IOException {
+		this(control, socket, true);
+	}
+
+	/**
+	 * @param blocking when false, no streams are created, and the subclass is
+	 *                 responsible for performing the I/O.
+	 */
+	protected Connection(Control control, Socket socket, boolean blocking) throws IOException {
+		this.control = control;
 		this.socket = socket;
 		hasReceivedConnect = false;
 		open = true;
-		start();
+		if (blocking) {
+			in = new DataInputStream(socket.getInputStream());
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
+		}
 	}
 	
 	public ConnectionInformation getConnectionInformation() {
@@ -48,6 +98,22 @@ public class Connection extends Thread {
 		this.connectionInformation = ci;
 	}
 
+	/**
+	 * The impairment the transport gives this link in particular, or null if it
+	 * takes the one in the settings
+	 */
+	public LinkModel getLinkModel() {
+		return null;
+	}
+
+	/**
+	 * Whether the transport itself draws the delay of each frame from the link
+	 * model, about the latency it adds, so the lagged link must not draw it too
+	 */
+	protected boolean drawsDelays() {
+		return false;
+	}
+
 	public void setConnectionState(ConnectionState conState) {
 		connectionState = conState;
 	}
@@ -72,52 +138,174 @@ public class Connection extends Thread {
 	 * returns true if the message was written, otherwise false
 	 */
 	public boolean writeMsg(String msg) {
-		if (open) {
-			outwriter.println(msg);
-			outwriter.flush();
+		return writeFrame(SharedFrame.of(msg));
+	}
+
+	/*
+	 * Encodes the message in the wire format of the connection. Returns true if
+	 * the message was written, otherwise false.
+	 */
+	public boolean writeMsg(JSONObject msg) {
+		return writeFrame(wireFormat.encode(msg));
+	}
+
+	/*
+	 * Queues an already encoded frame to be written. The caller hands over one
+	 * reference to the frame, which is released once it has been written.
+	 * Returns true if the frame was queued, otherwise false.
+	 */
+	public boolean writeFrame(SharedFrame frame) {
+		if (!open) {
+			frame.release();
+			return false;
+		}
+		int length = frame.length();
+		if (outbound.offer(frame)) {
+			traffic.messageOut(length);
+			frameQueued();
 			return true;
 		}
 		return false;
 	}
 
+	/*
+	 * Discards anything still queued, writes the frame, and then closes the
+	 * connection.
+	 */
+	public void writeLast(SharedFrame frame) {
+		traffic.messageOut(frame.length());
+		outbound.drainWith(frame);
+		frameQueued();
+	}
+
+	/** Called after a frame has been queued */
+	protected void frameQueued() {
+		// The writer is woken up by the queue itself
+	}
+
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	/** Messages encoded after this call use the given format */
+	public void setWireFormat(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+	public OutboundQueue getOutboundQueue() {
+		return outbound;
+	}
+
+	/** The messages and bytes read from and queued to the connection */
+	public TrafficCounters getTraffic() {
+		return traffic;
+	}
+
+	/** Called when the outbound queue has grown past its high watermark */
+	void slowConsumer(SlowConsumerPolicy policy) {
+		if (policy == SlowConsumerPolicy.REDIRECT && control.redirect(this)) {
+			return;
+		}
+		if (policy != SlowConsumerPolicy.DROP_OLDEST) {
+			closeCon();
+		}
+	}
+
+	/** The task which writes out the outbound queue of a blocking connection */
+	public Runnable getWriter() {
+		return new Runnable() {
+			public void run() {
+				ArrayList<SharedFrame> batch = new ArrayList<SharedFrame>();
+				try {
+					while (outbound.take(batch, MAX_BATCH_FRAMES, MAX_BATCH_BYTES)) {
+						// Coalesce the whole batch into as few writes as possible, with a single flush
+						for (SharedFrame frame : batch) {
+							frame.writeTo(out);
+						}
+						out.flush();
+						release(batch);
+					}
+				} catch (IOException e) {
+					log.error("failed to write to " + getAddress() + ": " + e);
+				} catch (InterruptedException e) {
+					log.debug("writer interrupted for " + getAddress());
+				}
+				release(batch);
+				if (outbound.isDrained()) {
+					closeCon();
+				}
+			}
+		};
+	}
+
+	protected static void release(List<SharedFrame> batch) {
+		for (SharedFrame frame : batch) {
+			frame.release();
+		}
+		batch.clear();
+	}
+
 	public void closeCon() {
 		if (open) {
-			log.info("closing connection " + Settings.socketAddress(socket));
+			log.info("closing connection " + getAddress());
 			try {
 				term = true;
-				inreader.close();
-				out.close();
+				outbound.close();
+				// Closing the socket, rather than the reader, unblocks a reader waiting for input
+				socket.close();
 			} catch (IOException e) {
 				// already closed?
-				log.error("received exception closing the connection " + Settings.socketAddress(socket) + ": " + e);
+				log.error("received exception closing the connection " + getAddress() + ": " + e);
 			}
 		}
 	}
 
 	public void run() {
 		try {
-			String data;
-			while (!term && (data = inreader.readLine()) != null) {
-				term = Control.getInstance().process(this, data);
+			byte[] chunk = new byte[READ_BUFFER_SIZE];
+			int read;
+			while (!term && (read = in.read(chunk)) >= 0) {
+				traffic.bytesIn(read);
+				term = decoder.feed(chunk, 0, read, frameHandler);
+				decoder.trim();
 			}
-			log.debug("connection closed to " + Settings.socketAddress(socket));
-			Control.getInstance().connectionClosed(this);
+			log.debug("connection closed to " + getAddress());
+			control.connectionClosed(this);
 			in.close();
+		} catch (ProtocolException e) {
+			log.error("connection " + getAddress() + " sent an invalid frame: " + e.getMessage());
+			closeCon();
+			control.connectionClosed(this);
 		} catch (IOException e) {
-			log.error("connection " + Settings.socketAddress(socket) + " closed with exception: " + e);
-			Control.getInstance().connectionClosed(this);
+			log.error("connection " + getAddress() + " closed with exception: " + e);
+			control.connectionClosed(this);
 		}
 		open = false;
+		outbound.close();
+	}
+
+	/** A number which uniquely identifies the connection within this server */
+	public long getId() {
+		return id;
 	}
 
 	public Socket getSocket() {
 		return socket;
 	}
 
+	/** The address of the other end, as shown in the logs */
+	public String getAddress() {
+		return Settings.socketAddress(socket);
+	}
+
 	public boolean isOpen() {
 		return open;
 	}
 
+	protected void setOpen(boolean open) {
+		this.open = open;
+	}
+
 	public void setTerm(boolean term) {
 		this.term = term;
 	}
@@ -132,11 +320,11 @@ public class Connection extends Thread {
 			return false;
 		}
 
-		Connection con = (Connection) o;
+		return ((Connection) o).getId() == id;
+	}
 
-		if (con.getSocket().equals(this.socket)) {
-			return true;
-		}
-		return false;
+	@Override
+	public int hashCode() {
+		return Long.hashCode(id);
 	}
 }
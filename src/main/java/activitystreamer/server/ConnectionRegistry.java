@@ -0,0 +1,129 @@
+package activitystreamer.server;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Keeps track of every open connection, by role. Connections can be looked up
+ * in O(1) by id, socket address, or the UUID of the server on the other end.
+ * The role lists are copy on write, so they can be iterated for fan-out while
+ * connections come and go.
+ */
+public class ConnectionRegistry {
+	private final ConcurrentHashMap<Long, Connection> byId = new ConcurrentHashMap<Long, Connection>();
+	private final ConcurrentHashMap<String, Connection> byAddress = new ConcurrentHashMap<String, Connection>();
+	private final ConcurrentHashMap<UUID, Connection> byPeer = new ConcurrentHashMap<UUID, Connection>();
+	private final ConcurrentHashMap<Long, UUID> peers = new ConcurrentHashMap<Long, UUID>();
+	private final ConcurrentHashMap<Long, ConnectionRole> roles = new ConcurrentHashMap<Long, ConnectionRole>();
+	private final Map<ConnectionRole, CopyOnWriteArrayList<Connection>> members = new EnumMap<ConnectionRole, CopyOnWriteArrayList<Connection>>(
+			ConnectionRole.class);
+	private final CopyOnWriteArrayList<ConnectionRegistryListener> listeners = new CopyOnWriteArrayList<ConnectionRegistryListener>();
+
+	public ConnectionRegistry() {
+		for (ConnectionRole role : ConnectionRole.values()) {
+			members.put(role, new CopyOnWriteArrayList<Connection>());
+		}
+	}
+
+	public void addListener(ConnectionRegistryListener listener) {
+		listeners.add(listener);
+	}
+
+	/** Adds a new connection, whose role is not known yet */
+	public void register(Connection con) {
+		setRole(con, ConnectionRole.UNDETERMINED);
+	}
+
+	/** Adds the connection with the given role, moving it if already registered */
+	public void setRole(Connection con, ConnectionRole role) {
+		ConnectionRole previous = roles.put(con.getId(), role);
+		if (previous == role) {
+			return;
+		}
+		if (previous != null) {
+			members.get(previous).remove(con);
+		} else {
+			byId.put(con.getId(), con);
+			byAddress.put(con.getAddress(), con);
+		}
+		members.get(role).add(con);
+		for (ConnectionRegistryListener listener : listeners) {
+			listener.connectionRegistered(con, role);
+		}
+	}
+
+	/** Records the UUID of the server on the other end of the connection */
+	public void setPeer(Connection con, UUID peer) {
+		UUID previous = peers.put(con.getId(), peer);
+		if (previous != null) {
+			byPeer.remove(previous, con);
+		}
+		byPeer.put(peer, con);
+	}
+
+	/** Removes the connection from every role. Returns false if it was not registered */
+	public boolean unregister(Connection con) {
+		ConnectionRole role = roles.remove(con.getId());
+		if (role == null) {
+			return false;
+		}
+		members.get(role).remove(con);
+		byId.remove(con.getId());
+		byAddress.remove(con.getAddress(), con);
+		UUID peer = peers.remove(con.getId());
+		if (peer != null) {
+			byPeer.remove(peer, con);
+		}
+		for (ConnectionRegistryListener listener : listeners) {
+			listener.connectionUnregistered(con, role);
+		}
+		return true;
+	}
+
+	public ConnectionRole getRole(Connection con) {
+		return roles.get(con.getId());
+	}
+
+	public boolean hasRole(Connection con, ConnectionRole role) {
+		return roles.get(con.getId()) == role;
+	}
+
+	public Connection getById(long id) {
+		return byId.get(id);
+	}
+
+	public Connection getByAddress(String socketAddress) {
+		return byAddress.get(socketAddress);
+	}
+
+	public Connection getByPeer(UUID peer) {
+		return byPeer.get(peer);
+	}
+
+	/** A live, unmodifiable view of the connections with the given role */
+	public List<Connection> get(ConnectionRole role) {
+		return Collections.unmodifiableList(members.get(role));
+	}
+
+	public List<Connection> getServers() {
+		return get(ConnectionRole.SERVER);
+	}
+
+	public List<Connection> getClients() {
+		return get(ConnectionRole.CLIENT);
+	}
+
+	public List<Connection> getUndetermined() {
+		return get(ConnectionRole.UNDETERMINED);
+	}
+
+	public int size() {
+		return byId.size();
+	}
+}
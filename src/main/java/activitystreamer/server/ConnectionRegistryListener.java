@@ -0,0 +1,14 @@
+package activitystreamer.server;
+
+/**
+ * Notified when connections are added to, moved within, or removed from a
+ * {@link ConnectionRegistry}.
+ */
+public interface ConnectionRegistryListener {
+
+	/** The connection has been registered, or has changed role */
+	void connectionRegistered(Connection con, ConnectionRole role);
+
+	/** The connection has been removed from the registry */
+	void connectionUnregistered(Connection con, ConnectionRole role);
+}
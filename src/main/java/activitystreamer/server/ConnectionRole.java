@@ -0,0 +1,9 @@
+package activitystreamer.server;
+
+/**
+ * What is on the other end of a connection. Connections are undetermined until
+ * they send their connection type.
+ */
+public enum ConnectionRole {
+	UNDETERMINED, SERVER, CLIENT
+}
@@ -1,87 +1,205 @@
 package activitystreamer.server;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
+import activitystreamer.util.RoutingMode;
 import activitystreamer.util.Settings;
 import activitystreamer.util.Strings;
 
-public class Control extends Thread {
+/**
+ * A server. Any number of servers can run in the same JVM, each accepting and
+ * opening connections through its own {@link Transport}.
+ */
+public class Control extends Thread implements ConnectionRegistryListener {
 
 	private static final Logger log = LogManager.getLogger();
-	// For Undetermined Connections
-	private static ArrayList<Connection> connections;
-
-	// For Server Connections
-	private static ArrayList<Connection> serverConnections;
-
-	// For Client Connections
-	private static ArrayList<Connection> clientConenctions;
+	// All open connections, by role
+	private final ConnectionRegistry registry;
 
 	private Connection inBranch = null;
 	private Connection bestEdge = null;
 	private Connection testEdge = null;
-	private int bestWeight = -1;
+	private EdgeWeight bestWeight = EdgeWeight.INFINITY;
 
 	private int level;
 	private NodeState state = null;
-	private int foundCount = 0;
+	// The branches whose report this node is waiting for
+	private final Set<Connection> awaitingReport = new HashSet<Connection>();
+	// Set while the search waits for the weight of a link to be agreed
+	private boolean awaitingWeights = false;
+	// Links which became ready after this node had searched, left out until it searches again
+	private final Set<Connection> lateEdges = new HashSet<Connection>();
+	// The edge this node has connected over, until the fragment at the other end answers
+	private Connection pendingConnect = null;
+	// Set while a new fragment identifier is passed down the subtree, before it searches
+	private boolean rebuilding = false;
+	// Set if a node in the subtree being rebuilt is waiting for the answer to a connect
+	private boolean joining = false;
+	// GHS messages which arrived before this node could process them
+	private final List<DeferredMessage> deferred = new ArrayList<DeferredMessage>();
+	// Set once the spanning tree is complete, after which chat can follow it
+	private volatile boolean converged = false;
 
-	private static boolean term = false;
-	private static Listener listener;
+	private volatile boolean term = false;
+	// Accepts connections and opens them to other servers
+	private final Transport transport;
+	// Owns the GHS state and the connection lists
+	private final ControlPlane controlPlane;
+	// Counts the traffic and times the fan-out, the lag and the spanning tree
+	private final Metrics metrics;
+	// Samples chat to trace hop by hop
+	private final Tracer tracer;
+	// The load of the other servers, which new clients may be redirected to
+	private final ClusterLoad loads;
+	// The number of this server's last load announcement
+	private long loadSeq = 0;
+	// Announcements not renewed within this many activity intervals are dropped
+	private static final int LOAD_EXPIRY_INTERVALS = 3;
+	// The chat relayed by this server, for clients to replay, or null if none is kept
+	private final HistoryLog history;
+	// Holds clients to their chat rate, and shares the fan-out between those held back
+	private final ChatAdmission admission;
+	// Identifies incoming messages and hands them to their handlers
+	private final MessageDispatcher dispatcher;
+	// Measures the round trip time of the server links
+	private final LinkProber prober;
+	// Round trip times measured before a link's weight is decided
+	private static final int WEIGHT_SAMPLES = 3;
+	// Round trip times closer than this to the agreed weight never count as drift
+	private static final long MIN_DRIFT_MICROS = 1000;
+	// Rounds of probes the drift must last for before the weight is changed
+	private static final int DRIFT_ROUNDS = 5;
+	// Where chat messages are fanned out to, published by the control plane
+	private volatile RoutingTable routes = RoutingTable.EMPTY;
+	// Runs the links which forward messages to other servers with simulated lag
+	private final Executor forwardingExecutor;
+	// Runs the server in virtual time, if set
+	private final VirtualClock clock;
 
 	private UUID uuid;
 	private Identifier fragmentIdentifier;
+	// The sequence numbers of messages entering the network here
+	private final AtomicLong nextSeq = new AtomicLong();
+	private final DuplicateFilter duplicates = new DuplicateFilter(Settings.getDuplicateCacheSize());
 
 	protected static Control control = null;
 
-	public static Control getInstance() {
+	/** The server run by this process, listening on sockets */
+	public static synchronized Control getInstance() {
 		if (control == null) {
-			control = new Control();
+			control = new Control(Settings.isNonBlockingIO() ? new NioTransport() : new SocketTransport());
 		}
 		return control;
 	}
 
-	public Control() {
-		connections = new ArrayList<Connection>();
-		serverConnections = new ArrayList<Connection>();
-		clientConenctions = new ArrayList<Connection>();
+	public Control(Transport transport) {
+		this(transport, null);
+	}
+
+	/**
+	 * A server run in virtual time by the given clock, if it is not null. Its
+	 * threads are then replaced by tasks on the clock, and its UUID is drawn
+	 * from the clock's random source.
+	 */
+	public Control(Transport transport, VirtualClock clock) {
+		this.transport = transport;
+		this.clock = clock;
+		registry = new ConnectionRegistry();
+		registry.addListener(this);
+		metrics = new Metrics(registry, clock);
+		registry.addListener(metrics);
 
-		uuid = UUID.randomUUID();
+		uuid = clock != null ? clock.randomUUID() : UUID.randomUUID();
+		tracer = new Tracer(uuid, clock);
+		loads = new ClusterLoad(clock);
+		history = openHistory();
+
+		forwardingExecutor = Settings.getExecutionMode().newExecutor("forwarding");
+		admission = new ChatAdmission(new ChatHandler() {
+			public boolean relay(Connection con, ChatMessage msg) {
+				processMessage(con, msg);
+				return false;
+			}
+		}, clock, metrics);
+		// Without a client rate chat is never held back, so nothing needs draining
+		if (clock == null && Settings.getClientRate() > 0) {
+			forwardingExecutor.execute(admission);
+		}
 
 		// Initially the node is just a fragment on its own. To represent this, we
 		// repeat the UUID twice.
 		fragmentIdentifier = new Identifier(uuid, uuid);
 
+		controlPlane = new ControlPlane(clock);
+		controlPlane.start();
+		dispatcher = new MessageDispatcher(controlPlane, registry);
+		prober = new LinkProber(registry, controlPlane, clock, new Runnable() {
+			public void run() {
+				agreeWeights();
+			}
+		});
+		registerHandlers();
+		prober.start();
+
 		// start the listener
 		try {
-			listener = new Listener();
-			initiateRemoteConnections();
+			transport.listen(this);
+			controlPlane.execute(new Runnable() {
+				public void run() {
+					initiateRemoteConnections();
+				}
+			});
 		} catch (IOException e1) {
 			log.fatal("failed to startup a listening thread: " + e1);
 			System.exit(-1);
 		}
 	}
 
+	/**
+	 * Opens the history kept in the configured directory, with a directory of
+	 * its own for each server run there. Returns null if none is configured or
+	 * it cannot be opened, and the server then runs without history.
+	 */
+	private HistoryLog openHistory() {
+		if (Settings.getHistoryDir() == null) {
+			return null;
+		}
+		try {
+			return HistoryLog.open(new File(Settings.getHistoryDir(), "server-" + transport.getPort()),
+					Settings.getHistorySegmentBytes());
+		} catch (IOException e) {
+			log.error("failed to open the history in " + Settings.getHistoryDir() + ", running without it: " + e);
+			return null;
+		}
+	}
+
+	/** The time in milliseconds, virtual if the server is run in virtual time */
+	private long currentTimeMillis() {
+		return clock != null ? TimeUnit.NANOSECONDS.toMillis(clock.nanoTime()) : System.currentTimeMillis();
+	}
+
 	/** Makes a Connection to another server, if a remote hostname is supplied */
 	public void initiateRemoteConnections() {
 		if (Settings.getRemoteHostname() != null) {
 			try {
-				Connection outgoing = outgoingConnection(
-						new Socket(Settings.getRemoteHostname(), Settings.getRemotePort()));
-				outgoing.setConnectionInformation(new ServerConnectionInformation());
-				sendLagAgreement(outgoing);
-				sendUUID(outgoing);
-
+				connectServer(Settings.getRemoteHostname(), Settings.getRemotePort());
 			} catch (IOException e) {
 				log.error("failed to make connection to " + Settings.getRemoteHostname() + ":"
 						+ Settings.getRemotePort() + " :" + e);
@@ -90,89 +208,275 @@ public class Control extends Thread {
 		}
 	}
 
+	/** Makes a Connection to another server. Must be called on the control plane. */
+	private void connectServer(String hostname, int port) throws IOException {
+		Connection outgoing = outgoingConnection(transport.connect(this, hostname, port));
+		setServerConnectionInformation(outgoing);
+		registry.setRole(outgoing, ConnectionRole.SERVER);
+		sendUUID(outgoing);
+	}
+
+	/**
+	 * Makes a Connection to another server, for servers which are joined
+	 * together by something other than the command line.
+	 */
+	public void connect(final String hostname, final int port) {
+		controlPlane.execute(new Runnable() {
+			public void run() {
+				try {
+					connectServer(hostname, port);
+				} catch (IOException e) {
+					log.error("failed to make connection to " + hostname + ":" + port + " :" + e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Marks the connection as being to another server, and starts the link used
+	 * to forward messages to it with the simulated lag. Called on the thread
+	 * reading an incoming connection, as soon as it says it is a server.
+	 */
+	private void setServerConnectionInformation(Connection con) {
+		ServerConnectionInformation info = new ServerConnectionInformation();
+		if (con.getLinkModel() != null) {
+			info.setLinkModel(con.getLinkModel());
+		}
+		LaggedLink link = new LaggedLink(con, clock, metrics.getLagDelay());
+		info.setLaggedLink(link);
+		con.setConnectionInformation(info);
+		con.setConnectionState(new BasicConnectionState());
+		if (clock == null) {
+			forwardingExecutor.execute(link);
+		}
+	}
+
 	/**
 	 * A new outgoing connection has been established, and a reference is returned
 	 * to it
 	 */
-	private Connection outgoingConnection(Socket s) throws IOException {
-		Connection c = new Connection(s);
+	private Connection outgoingConnection(Connection c) throws IOException {
 		JSONObject jobj = new JSONObject();
 		JSONObject level2 = new JSONObject();
 		jobj.put(Strings.CONNECTION_TYPE, Strings.SERVER);
-		c.writeMsg(jobj.toJSONString());
-		serverConnections.add(c);
+		if (Settings.isBinaryFraming()) {
+			// Older servers ignore the capabilities, and the link stays on JSON
+			JSONArray capabilities = new JSONArray();
+			capabilities.add(Strings.BINARY);
+			jobj.put(Strings.CAPABILITIES, capabilities);
+		}
+		c.writeMsg(jobj);
 		return c;
 	}
 
+	/**
+	 * Switches a new server link to binary frames if the other server offered
+	 * them in its connection_type message. The acknowledgement is the last JSON
+	 * line we send on the link.
+	 */
+	private void negotiateWireFormat(Connection con, JSONObject jobj) {
+		if (!Settings.isBinaryFraming() || !offersBinary(jobj)) {
+			return;
+		}
+		JSONObject ack = new JSONObject();
+		JSONArray capabilities = new JSONArray();
+		capabilities.add(Strings.BINARY);
+		ack.put(Strings.CAPABILITIES, capabilities);
+		con.writeMsg(ack);
+		con.setWireFormat(WireFormat.BINARY);
+		log.debug("using binary frames to " + con.getAddress());
+	}
+
+	/**
+	 * The other server has acknowledged the binary frames we offered.
+	 */
+	private void receiveCapabilities(Connection con, JSONObject jobj) {
+		if (Settings.isBinaryFraming() && offersBinary(jobj)) {
+			con.setWireFormat(WireFormat.BINARY);
+			log.debug("using binary frames to " + con.getAddress());
+		}
+	}
+
+	private static boolean offersBinary(JSONObject jobj) {
+		Object capabilities = jobj.get(Strings.CAPABILITIES);
+		return capabilities instanceof List && ((List<?>) capabilities).contains(Strings.BINARY);
+	}
+
 	/**
 	 * Perform the wakeup, initializing the the state varibles, as per GHS
-	 * algorithm.
+	 * algorithm. The node joins a fragment along its lightest edge.
 	 * 
 	 */
 	private void wakeup() {
+		if (hasUnweighedEdge()) {
+			return;
+		}
+		// Search for the edge with the lowest weight
+		Connection current = minimumEdge(null);
+		if (current == null) {
+			log.error("No Connections to any outgoing server");
+			return;
+		}
 		level = 0;
 		state = new Found();
-		foundCount = 0;
+		recordTree();
+		awaitingReport.clear();
+		current.setConnectionState(new BranchConnectionState());
+		// Send a Connect message to that branch
+		sendConnect(current, level);
+		pendingConnect = current;
+	}
 
-		if (serverConnections.size() == 0) {
-			log.error("No Connections to any outgoing server");
+	/**
+	 * The lightest edge to another server whose weight is known, only considering
+	 * edges in the given state if one is given.
+	 */
+	private Connection minimumEdge(Class<? extends ConnectionState> edgeState) {
+		Connection min = null;
+		EdgeWeight minWeight = null;
+		for (Connection con : registry.getServers()) {
+			EdgeWeight weight = weightOf(con);
+			if (weight == null || lateEdges.contains(con)
+					|| (edgeState != null && !edgeState.isInstance(con.getConnectionState()))) {
+				continue;
+			}
+			if (minWeight == null || weight.lessThan(minWeight)) {
+				min = con;
+				minWeight = weight;
+			}
+		}
+		return min;
+	}
+
+	private static EdgeWeight weightOf(Connection con) {
+		return ((ServerConnectionInformation) con.getConnectionInformation()).getWeight();
+	}
+
+	/** The server connections which are branches of the spanning tree */
+	private List<Connection> branches() {
+		List<Connection> branches = new ArrayList<Connection>();
+		for (Connection con : registry.getServers()) {
+			if (con.getConnectionState() instanceof BranchConnectionState) {
+				branches.add(con);
+			}
+		}
+		return branches;
+	}
+
+	/**
+	 * Handles a GHS message. Returns false if the message cannot be processed in
+	 * the current state, in which case it is deferred until the state changes.
+	 */
+	private interface GhsHandler {
+		boolean receive(Connection serverCon, JSONObject msgJSON);
+	}
+
+	/** A GHS message waiting for the state of this node to change */
+	private static class DeferredMessage {
+		final GhsHandler handler;
+		final Connection serverCon;
+		final JSONObject msgJSON;
+
+		DeferredMessage(GhsHandler handler, Connection serverCon, JSONObject msgJSON) {
+			this.handler = handler;
+			this.serverCon = serverCon;
+			this.msgJSON = msgJSON;
+		}
+	}
+
+	private void registerGhs(String key, final GhsHandler handler) {
+		dispatcher.register(key, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				receiveGhs(handler, con, msg);
+			}
+		});
+	}
+
+	/**
+	 * Processes a GHS message, waking up the node if it is still asleep. A node
+	 * only wakes once the weights of all its links are known, and defers the
+	 * message until then. Once a message has been processed the state may have
+	 * changed, so any deferred messages are retried, in the order they arrived,
+	 * until none can proceed.
+	 */
+	private void receiveGhs(GhsHandler handler, Connection serverCon, JSONObject msgJSON) {
+		if (state == null) {
+			wakeup();
+		}
+		if (state == null || !handler.receive(serverCon, msgJSON)) {
+			deferred.add(new DeferredMessage(handler, serverCon, msgJSON));
 			return;
 		}
+		retryDeferred();
+	}
 
-		// Search for the edge with the lowest weight
-		Connection current = serverConnections.get(0);
-		for (Connection serverCon : serverConnections) {
-			ServerConnectionInformation serverInfo = (ServerConnectionInformation) serverCon.getConnectionInformation();
-			ServerConnectionInformation currentInfo = (ServerConnectionInformation) current.getConnectionInformation();
-			if (serverInfo.getLag() < currentInfo.getLag()) {
-				current = serverCon;
+	/** Retries the deferred messages after the state of this node has changed */
+	private void retryDeferred() {
+		if (state == null) {
+			return;
+		}
+		boolean progress = true;
+		while (progress && !deferred.isEmpty()) {
+			progress = false;
+			Iterator<DeferredMessage> it = deferred.iterator();
+			while (it.hasNext()) {
+				DeferredMessage message = it.next();
+				if (!message.serverCon.isOpen()) {
+					it.remove();
+				} else if (message.handler.receive(message.serverCon, message.msgJSON)) {
+					it.remove();
+					progress = true;
+					break;
+				}
 			}
 		}
-		// Send a Connect message to that branch
-		sendConnect(current);
 	}
 
 	/**
 	 * Send a Connect Message.
 	 * 
 	 * @param serverCon the connection to which to send the connect message to
-	 * 
+	 * @param level     the level of this fragment
 	 */
-	private void sendConnect(Connection serverCon) {
+	private void sendConnect(Connection serverCon, int level) {
 		JSONObject jobj = new JSONObject();
 		jobj.put(Strings.CONNECT, level);
-		serverCon.writeMsg(jobj.toJSONString());
+		serverCon.writeMsg(jobj);
 	}
 
-	private void receiveConnect(Connection serverCon, JSONObject msgJSON) {
-		int level = (int) (long) msgJSON.get(Strings.CONNECT);
-
-		if (state == null) {
-			wakeup();
-		}
+	/**
+	 * Process the receipt of a Connect message. A lower level fragment is
+	 * absorbed straight away, and a fragment at the same level is merged with
+	 * once both have chosen the edge between them. A tree which has converged
+	 * is not looking for an edge, so it absorbs whatever connects to it.
+	 */
+	private boolean receiveConnect(Connection serverCon, JSONObject msgJSON) {
+		int level = ((Number) msgJSON.get(Strings.CONNECT)).intValue();
 
 		ServerConnectionInformation serverConI = (ServerConnectionInformation) serverCon.getConnectionInformation();
-		if (level < this.level) {
-
+		if (level < this.level || (converged && !(serverCon.getConnectionState() instanceof BranchConnectionState))) {
 			log.debug("Absorb Nodes " + serverConI.getIdentifier().getUUID1() + " and "
 					+ serverConI.getIdentifier().getUUID2());
 			serverCon.setConnectionState(new BranchConnectionState());
 			sendInitiate(serverCon, this.level, fragmentIdentifier, state);
 			if (state instanceof Find) {
-				foundCount++;
+				awaitingReport.add(serverCon);
 			}
-			return;
-		} else if (serverCon.getConnectionState() instanceof BasicConnectionState) {
-			log.debug("Storing Received Connection");
-			// NOTE: POTENTIAL FOR DEVIATIONS FROM GHS HERE
-			// Store the result, but wait until another fragment forms
-			serverCon.setReceivedConnect();
-		} else {
-			log.debug("Merge with nodes " + serverConI.getIdentifier().getUUID1() + " and "
-					+ serverConI.getIdentifier().getUUID2());
-			sendInitiate(serverCon, this.level + 1, serverConI.getIdentifier(), new Find());
+			if (converged) {
+				// The new server joins a tree which has already converged
+				sendConverged(serverCon);
+				publishRoutes();
+			}
+			return true;
 		}
-
+		if (serverCon.getConnectionState() instanceof BasicConnectionState) {
+			// Wait until this fragment has chosen the edge too, or has grown past the other
+			return false;
+		}
+		log.debug("Merge with nodes " + serverConI.getIdentifier().getUUID1() + " and "
+				+ serverConI.getIdentifier().getUUID2());
+		sendInitiate(serverCon, this.level + 1, serverConI.getIdentifier(), new Find());
+		return true;
 	}
 
 	/**
@@ -184,88 +488,147 @@ public class Control extends Thread {
 	 * @param state
 	 */
 	private void sendInitiate(Connection serverCon, int level, Identifier fragId, NodeState state) {
+		sendInitiate(serverCon, level, fragId, state, false);
+	}
+
+	/**
+	 * Sends an Initiate Message, which if rebuild is set also tells the node to
+	 * test again the edges it had found to be internal to its old fragment.
+	 */
+	private void sendInitiate(Connection serverCon, int level, Identifier fragId, NodeState state, boolean rebuild) {
 		JSONObject firstLevel = new JSONObject();
 		JSONObject secondLevel = new JSONObject();
 
 		secondLevel.put(Strings.UUID1, fragId.getUUID1().toString());
 		secondLevel.put(Strings.UUID2, fragId.getUUID2().toString());
 		secondLevel.put(Strings.NODE_STATE, state.toString());
+		secondLevel.put(Strings.LEVEL, level);
+		if (rebuild) {
+			secondLevel.put(Strings.REBUILD, true);
+		}
 
 		firstLevel.put(Strings.INITIATE, secondLevel);
-		serverCon.writeMsg(firstLevel.toJSONString());
+		serverCon.writeMsg(firstLevel);
 	}
 
 	/**
-	 * Process the receipt of an Initiate Message
-	 * 
-	 * @param level
-	 * @param newLevel
-	 * @param nodeState
-	 * @param serverCon
+	 * Process the receipt of an Initiate Message, which is passed on to the rest
+	 * of the fragment. In the find state the node then looks for its lightest
+	 * outgoing edge. An initiate only comes over a branch, or over an edge this
+	 * node has connected over, so one from anywhere else is out of date.
 	 */
-	private void receiveInitiate(int level, Identifier fragmentID, NodeState nodeState, Connection serverCon) {
-		// TODO process the receipt of a initiate message
+	private boolean receiveInitiate(Connection serverCon, JSONObject msgJSON) {
+		if (!(serverCon.getConnectionState() instanceof BranchConnectionState)) {
+			log.debug("ignoring initiate from " + serverCon.getAddress() + ", which is not a branch");
+			return true;
+		}
+		JSONObject initiate = (JSONObject) msgJSON.get(Strings.INITIATE);
+		int level = ((Number) initiate.get(Strings.LEVEL)).intValue();
+		Identifier fragmentID = readIdentifier(initiate);
+		NodeState nodeState = Strings.FIND.equals(initiate.get(Strings.NODE_STATE)) ? new Find() : new Found();
+		boolean rebuild = Boolean.TRUE.equals(initiate.get(Strings.REBUILD));
+
 		this.level = level;
 		fragmentIdentifier = fragmentID;
 		state = nodeState;
 		inBranch = serverCon;
+		if (serverCon.equals(pendingConnect)) {
+			pendingConnect = null;
+		}
+		rebuilding = rebuild;
+		joining = pendingConnect != null;
 		bestEdge = null;
-		bestWeight = -1;
-		// Go through all the server connections,
-		for (Connection con : serverConnections) {
-			if (serverCon.equals(con)) {
-				break;
-			}
-			if (serverCon.getConnectionState() instanceof BranchConnectionState) {
-				sendInitiate(con, level, fragmentID, nodeState);
-				if (nodeState instanceof Find) {
-					foundCount++;
+		bestWeight = EdgeWeight.INFINITY;
+		awaitingReport.clear();
+		if (nodeState instanceof Find) {
+			lateEdges.clear();
+		}
+		if ((nodeState instanceof Find || rebuild) && converged) {
+			// The tree is growing again, and must not absorb a fragment at its own level
+			converged = false;
+			publishRoutes();
+		}
+		recordTree();
+		if (rebuild) {
+			resetRejectedEdges();
+		}
+		// Pass it on along all the other branches
+		for (Connection con : registry.getServers()) {
+			if (!serverCon.equals(con) && con.getConnectionState() instanceof BranchConnectionState) {
+				sendInitiate(con, level, fragmentID, nodeState, rebuild);
+				if (nodeState instanceof Find || rebuild) {
+					awaitingReport.add(con);
 				}
 			}
 		}
 		if (nodeState instanceof Find) {
 			test();
+		} else if (rebuild) {
+			rebuilt();
 		}
+		return true;
 	}
 
-	/** Execute the test procedure */
+	private static Identifier readIdentifier(JSONObject jobj) {
+		return new Identifier(UUID.fromString((String) jobj.get(Strings.UUID1)),
+				UUID.fromString((String) jobj.get(Strings.UUID2)));
+	}
+
+	/**
+	 * Execute the test procedure, on the lightest edge not yet known to be
+	 * internal. A link whose weight has not been agreed yet might be the
+	 * lightest, so the search waits for it rather than report without it.
+	 */
 	private void test() {
-		// Look for edges with the basic state
-		Connection min = null;
-		ServerConnectionInformation sci;
-		for (Connection con : serverConnections) {
-			if (con.getConnectionState() instanceof BasicConnectionState) {
-				if (min == null) {
-					min = con;
-				} else if (((ServerConnectionInformation) min.getConnectionInformation())
-						.getLag() > ((ServerConnectionInformation) con.getConnectionInformation()).getLag()) {
-					min = con;
-				}
-			}
-		}
-		if (min == null) {
+		awaitingWeights = hasUnweighedEdge();
+		if (awaitingWeights) {
 			testEdge = null;
+			return;
+		}
+		// Look for edges with the basic state
+		testEdge = minimumEdge(BasicConnectionState.class);
+		if (testEdge != null) {
+			sendTest(testEdge, this.level, this.fragmentIdentifier);
 		} else {
-			testEdge = min;
-			sendTest(min, this.level, this.fragmentIdentifier);
+			report();
 		}
-		report();		
 	}
-	
+
+	private boolean hasUnweighedEdge() {
+		for (Connection con : registry.getServers()) {
+			if (weightOf(con) == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reports the lightest outgoing edge found towards the core, once the tested
+	 * edge and every subtree have answered. A fragment being rebuilt is rooted
+	 * at a single node rather than at a core edge, and the root decides itself.
+	 */
 	private void report() {
-		if (foundCount == 0 && testEdge == null) {
+		if (state instanceof Find && awaitingReport.isEmpty() && testEdge == null && !awaitingWeights) {
 			this.state = new Found();
-			sendReport(inBranch, bestWeight);
+			recordTree();
+			if (inBranch != null) {
+				sendReport(inBranch, bestWeight);
+			} else if (bestWeight.isInfinite()) {
+				halt();
+			} else {
+				changeRoot();
+			}
 		}
 	}
-	
+
 	/** Sends a report message */
-	private void sendReport(Connection con, int bestWeight) {
+	private void sendReport(Connection con, EdgeWeight bestWeight) {
 		JSONObject jobj = new JSONObject();
-		jobj.put(Strings.REPORT, bestWeight);
-		con.writeMsg(jobj.toJSONString());
+		jobj.put(Strings.REPORT, bestWeight.toJSON());
+		con.writeMsg(jobj);
 	}
-	
+
 	/** Sends a test message */
 	private void sendTest(Connection connection, int level, Identifier fragmentIdentifier) {
 		JSONObject firstLevel = new JSONObject();
@@ -276,46 +639,120 @@ public class Control extends Thread {
 		secondLevel.put(Strings.LEVEL, level);
 
 		firstLevel.put(Strings.TEST, secondLevel);
-		connection.writeMsg(firstLevel.toJSONString());
+		connection.writeMsg(firstLevel);
+	}
+
+	/** Sends a message with no content other than its type */
+	private void sendSignal(Connection con, String type) {
+		JSONObject jobj = new JSONObject();
+		jobj.put(type, true);
+		con.writeMsg(jobj);
 	}
 
 	/**
-	 * Respond to the receipt of a test message
-	 * 
-	 * @param level
-	 * @param nodeState
-	 * @param serverCon
+	 * Respond to the receipt of a test message. The edge is accepted if it leads
+	 * to another fragment, and rejected if it is internal to this one. A test
+	 * from a higher level waits until this fragment has caught up, as it cannot
+	 * yet tell whether they are the same fragment, unless this tree has
+	 * converged and will not grow any further on its own.
 	 */
-	private void respondTest(int level, NodeState nodeState, Connection serverCon) {
-		// TODO process the receipt of a test message
+	private boolean respondTest(Connection serverCon, JSONObject msgJSON) {
+		JSONObject test = (JSONObject) msgJSON.get(Strings.TEST);
+		int level = ((Number) test.get(Strings.LEVEL)).intValue();
+		if (level > this.level && !converged) {
+			return false;
+		}
+		if (!readIdentifier(test).equals(fragmentIdentifier)) {
+			// Both fragments must leave out a link which one of them has
+			sendSignal(serverCon, lateEdges.contains(serverCon) ? Strings.REJECT : Strings.ACCEPT);
+			return true;
+		}
+		if (serverCon.getConnectionState() instanceof BasicConnectionState) {
+			serverCon.setConnectionState(new RejectedConnectionState());
+		}
+		if (!serverCon.equals(testEdge)) {
+			sendSignal(serverCon, Strings.REJECT);
+		} else {
+			test();
+		}
+		return true;
 	}
 
 	/**
-	 * Respond to the receipt of an accept message
+	 * Respond to the receipt of an accept message. The tested edge is a candidate
+	 * for the lightest outgoing edge of the fragment.
 	 * 
 	 * @param serverCon
 	 */
-	private void respondAccept(Connection serverCon) {
-		// TODO process the receipt of an accept message
+	private boolean respondAccept(Connection serverCon, JSONObject msgJSON) {
+		testEdge = null;
+		EdgeWeight weight = weightOf(serverCon);
+		if (weight.lessThan(bestWeight)) {
+			bestEdge = serverCon;
+			bestWeight = weight;
+		}
+		report();
+		return true;
 	}
 
 	/**
-	 * Respond to the receipt of an Reject message
+	 * Respond to the receipt of an Reject message. The edge is internal to the
+	 * fragment, so the next lightest edge is tested.
 	 * 
 	 * @param serverCon
 	 */
-	private void respondReject(Connection serverCon) {
-		// TODO process the receipt of a rejection message
+	private boolean respondReject(Connection serverCon, JSONObject msgJSON) {
+		if (serverCon.getConnectionState() instanceof BasicConnectionState) {
+			serverCon.setConnectionState(new RejectedConnectionState());
+		}
+		test();
+		return true;
 	}
 
 	/**
-	 * Respond to the receipt of an Report message
+	 * Respond to the receipt of an Report message. Reports from the subtrees are
+	 * combined and passed towards the core. At the core, the lighter side moves
+	 * the core towards the lightest outgoing edge, and if neither side has an
+	 * outgoing edge the tree is complete.
 	 * 
-	 * @param level
 	 * @param serverCon
 	 */
-	private void respondReport(int level, Connection serverCon) {
-		// TODO process the receipt of a rejection message
+	private boolean respondReport(Connection serverCon, JSONObject msgJSON) {
+		EdgeWeight weight = EdgeWeight.fromJSON(msgJSON.get(Strings.REPORT));
+		if (!serverCon.equals(inBranch)) {
+			awaitingReport.remove(serverCon);
+			if (weight.lessThan(bestWeight)) {
+				bestWeight = weight;
+				bestEdge = serverCon;
+			}
+			report();
+			return true;
+		}
+		if (state instanceof Find) {
+			return false;
+		}
+		if (bestWeight.lessThan(weight)) {
+			changeRoot();
+		} else if (weight.isInfinite() && bestWeight.isInfinite()) {
+			halt();
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the core towards the best edge, and connects over it. If the best
+	 * edge has gone since it was reported, the search starts again from here.
+	 */
+	private void changeRoot() {
+		if (bestEdge == null) {
+			rebuildFragment();
+		} else if (bestEdge.getConnectionState() instanceof BranchConnectionState) {
+			sendSignal(bestEdge, Strings.CHANGE_ROOT);
+		} else {
+			sendConnect(bestEdge, level);
+			bestEdge.setConnectionState(new BranchConnectionState());
+			pendingConnect = bestEdge;
+		}
 	}
 
 	/**
@@ -323,29 +760,283 @@ public class Control extends Thread {
 	 * 
 	 * @param serverCon
 	 */
-	private void respondChangeCore(Connection serverCon) {
-		// TODO process the receipt of a Change Core Message
+	private boolean respondChangeCore(Connection serverCon, JSONObject msgJSON) {
+		changeRoot();
+		return true;
 	}
 
 	/**
-	 * Converts the String contained into a JSONObject
+	 * The fragment has no outgoing edges left, so it spans the network. Both core
+	 * nodes halt, and tell the rest of the tree.
 	 */
-	private JSONObject convertStringToJSON(String msg) throws ParseException {
-		JSONParser jparse = new JSONParser();
-		JSONObject json = (JSONObject) jparse.parse(msg);
-		return json;
+	private void halt() {
+		log.info("spanning tree converged at level " + level + " with core " + fragmentIdentifier.getUUID1() + "/"
+				+ fragmentIdentifier.getUUID2());
+		treeConverged();
 	}
 
 	/**
-	 * Used to get agreement on the lag value of the connection. with the other
-	 * node. This message specifies the lag parameter of the current connection.
-	 * 
-	 * @param con
+	 * Passes the news that the tree has converged out along the branches. Edges
+	 * which were never tested may lead to servers which joined during the
+	 * search, so the fragment is announced over them.
 	 */
-	private void sendLagAgreement(Connection con) {
-		JSONObject jobj = new JSONObject();
-		jobj.put(Strings.LAG_NEGOTIATE, Settings.LAG);
-		con.writeMsg(jobj.toJSONString());
+	private void treeConverged() {
+		converged = true;
+		recordTree();
+		lateEdges.clear();
+		for (Connection con : registry.getServers()) {
+			if (con.getConnectionState() instanceof BranchConnectionState) {
+				if (!con.equals(inBranch)) {
+					sendConverged(con);
+				}
+			} else if (con.getConnectionState() instanceof BasicConnectionState && weightOf(con) != null) {
+				sendFragment(con);
+			}
+		}
+		publishRoutes();
+	}
+
+	private void sendConverged(Connection con) {
+		sendSignal(con, Strings.CONVERGED);
+	}
+
+	private void receiveConverged(Connection serverCon) {
+		if (!converged) {
+			log.debug("spanning tree converged, informed by " + serverCon.getAddress());
+			treeConverged();
+		}
+	}
+
+	/**
+	 * Tells the server at the other end of a link which fragment this node is
+	 * in, so that two converged trees which have become connected can join.
+	 */
+	private void sendFragment(Connection con) {
+		JSONObject firstLevel = new JSONObject();
+		JSONObject secondLevel = new JSONObject();
+
+		secondLevel.put(Strings.UUID1, fragmentIdentifier.getUUID1().toString());
+		secondLevel.put(Strings.UUID2, fragmentIdentifier.getUUID2().toString());
+		secondLevel.put(Strings.LEVEL, level);
+
+		firstLevel.put(Strings.FRAGMENT, secondLevel);
+		con.writeMsg(firstLevel);
+	}
+
+	/**
+	 * The server at the other end of a link has announced its fragment. If it is
+	 * the same as ours the link is internal. Otherwise the smaller of the two
+	 * trees searches for its lightest edge to the other, which absorbs it. A
+	 * node still searching ignores the announcement, and announces its own once
+	 * it has converged.
+	 */
+	private boolean receiveFragment(Connection serverCon, JSONObject msgJSON) {
+		if (!converged) {
+			return true;
+		}
+		JSONObject fragment = (JSONObject) msgJSON.get(Strings.FRAGMENT);
+		int level = ((Number) fragment.get(Strings.LEVEL)).intValue();
+		Identifier fragmentID = readIdentifier(fragment);
+		if (fragmentID.equals(fragmentIdentifier)) {
+			if (serverCon.getConnectionState() instanceof BasicConnectionState) {
+				serverCon.setConnectionState(new RejectedConnectionState());
+			}
+			return true;
+		}
+		if (this.level < level || (this.level == level && fragmentIdentifier.compareTo(fragmentID) < 0)) {
+			log.info("found another spanning tree through " + serverCon.getAddress());
+			requestRebuild();
+		} else {
+			// The other tree may not have heard of this one
+			sendFragment(serverCon);
+		}
+		return true;
+	}
+
+	/**
+	 * The node whose UUID comes first in the fragment identifier leads the
+	 * fragment: one end of the core edge, or the root of a rebuilt fragment.
+	 */
+	private boolean isLeader() {
+		return fragmentIdentifier.getUUID1().equals(uuid);
+	}
+
+	/**
+	 * Asks the leader of the fragment to search for its lightest outgoing edge
+	 * again, passing the request along the branches towards the core.
+	 */
+	private void requestRebuild() {
+		if (isLeader() || inBranch == null) {
+			rebuildFragment();
+		} else {
+			sendSignal(inBranch, Strings.REBUILD);
+		}
+	}
+
+	private boolean receiveRebuild(Connection serverCon, JSONObject msgJSON) {
+		// A search already under way will find the edge itself
+		if (!(state instanceof Find)) {
+			requestRebuild();
+		}
+		return true;
+	}
+
+	/**
+	 * Makes this node the root of a new fragment made up of its subtree, which
+	 * searches for its lightest outgoing edge and joins whatever is at the other
+	 * end. Used when the path to the core has been lost, or when another tree has
+	 * been found. The level is kept, and the rest of the old tree, which stays
+	 * converged and keeps routing, absorbs the subtree once it connects. If
+	 * this node has connected over an edge and is waiting for the answer, the
+	 * subtree joins whatever answers instead of searching.
+	 *
+	 * The search only starts once every node in the subtree has the new
+	 * fragment identifier. Until then a node still holding the old one would
+	 * accept a test from its own subtree, and the subtree would join itself.
+	 */
+	private void rebuildFragment() {
+		log.info("rebuilding the spanning tree from this node at level " + level);
+		fragmentIdentifier = new Identifier(uuid, uuid);
+		state = new Found();
+		rebuilding = true;
+		joining = pendingConnect != null;
+		inBranch = null;
+		bestEdge = null;
+		bestWeight = EdgeWeight.INFINITY;
+		testEdge = null;
+		awaitingWeights = false;
+		awaitingReport.clear();
+		lateEdges.clear();
+		if (converged) {
+			converged = false;
+			publishRoutes();
+		}
+		recordTree();
+		resetRejectedEdges();
+		for (Connection con : branches()) {
+			if (!con.equals(pendingConnect)) {
+				sendInitiate(con, level, fragmentIdentifier, state, true);
+				awaitingReport.add(con);
+			}
+		}
+		rebuilt();
+	}
+
+	/**
+	 * Once the whole subtree has the new fragment identifier, tells the parent,
+	 * or at the root starts the search. A subtree which is already joining
+	 * another fragment waits for the answer instead, so that it joins only once.
+	 */
+	private void rebuilt() {
+		if (!rebuilding || !awaitingReport.isEmpty()) {
+			return;
+		}
+		rebuilding = false;
+		if (inBranch != null) {
+			JSONObject jobj = new JSONObject();
+			jobj.put(Strings.REBUILT, joining);
+			inBranch.writeMsg(jobj);
+			return;
+		}
+		if (joining) {
+			return;
+		}
+		state = new Find();
+		recordTree();
+		for (Connection con : branches()) {
+			if (!con.equals(pendingConnect)) {
+				sendInitiate(con, level, fragmentIdentifier, state);
+				awaitingReport.add(con);
+			}
+		}
+		test();
+	}
+
+	private boolean receiveRebuilt(Connection serverCon, JSONObject msgJSON) {
+		if (rebuilding && awaitingReport.remove(serverCon)) {
+			joining |= Boolean.TRUE.equals(msgJSON.get(Strings.REBUILT));
+			rebuilt();
+		}
+		return true;
+	}
+
+	/** Edges internal to the old fragment may now lead out of the new one */
+	private void resetRejectedEdges() {
+		for (Connection con : registry.getServers()) {
+			if (con.getConnectionState() instanceof RejectedConnectionState) {
+				con.setConnectionState(new BasicConnectionState());
+			}
+		}
+	}
+
+	/**
+	 * A link to another server has gone. If it was the path to the core, the
+	 * subtree below it rebuilds itself. Otherwise any part the link played in a
+	 * search under way is abandoned, and a converged tree carries on without it.
+	 */
+	private void edgeLost(Connection con) {
+		lateEdges.remove(con);
+		if (state == null) {
+			return;
+		}
+		if (con.equals(pendingConnect)) {
+			// The fragment was waiting for an answer over this edge, so it searches again
+			log.warn("lost the edge the spanning tree was joining over, to " + con.getAddress());
+			pendingConnect = null;
+			if (!con.equals(inBranch)) {
+				requestRebuild();
+				return;
+			}
+		}
+		if (con.equals(inBranch)) {
+			log.warn("lost the path to the core of the spanning tree through " + con.getAddress());
+			rebuildFragment();
+			return;
+		}
+		if (con.getConnectionState() instanceof BranchConnectionState) {
+			log.warn("lost a branch of the spanning tree to " + con.getAddress());
+		}
+		if (con.equals(bestEdge)) {
+			bestEdge = null;
+			bestWeight = EdgeWeight.INFINITY;
+		}
+		boolean answered = awaitingReport.remove(con);
+		if (rebuilding) {
+			rebuilt();
+		} else if (con.equals(testEdge) || awaitingWeights) {
+			test();
+		} else if (answered) {
+			report();
+		}
+	}
+
+	/**
+	 * The weight of a link has changed. A branch may no longer belong in the
+	 * tree, so it is dropped and the subtree below it searches again, which
+	 * may choose the same link. The rest of the tree keeps routing meanwhile.
+	 * Both ends drop the branch whatever they are doing, so that they agree on
+	 * it, unless it carries a connect which is still waiting for an answer.
+	 */
+	private void weightChanged(Connection con) {
+		if (state == null || !(con.getConnectionState() instanceof BranchConnectionState)
+				|| con.equals(pendingConnect)) {
+			return;
+		}
+		log.info("weight of branch to " + con.getAddress() + " has changed to "
+				+ weightOf(con));
+		con.setConnectionState(new BasicConnectionState());
+		if (con.equals(inBranch)) {
+			rebuildFragment();
+		} else {
+			boolean answered = awaitingReport.remove(con);
+			if (rebuilding) {
+				rebuilt();
+			} else if (answered) {
+				report();
+			}
+			publishRoutes();
+		}
+		retryDeferred();
 	}
 
 	/**
@@ -356,53 +1047,160 @@ public class Control extends Thread {
 	private void sendUUID(Connection con) {
 		JSONObject jobj = new JSONObject();
 		jobj.put(Strings.UUID, uuid.toString());
-		con.writeMsg(jobj.toJSONString());
+		con.writeMsg(jobj);
 	}
 
 	/**
-	 * Used to get agreement on the lag value of the connection. with the other
-	 * node. This message specifies the lag parameter of the current connection.
+	 * Agrees on the weight of each server link once its round trip time has been
+	 * measured. Both ends must use the same weight, so the end with the lower
+	 * UUID decides it from its own measurements and sends it to the other.
+	 * The weight is decided again if the round trip time drifts from it by more
+	 * than the threshold for several rounds in a row, so that a burst of load
+	 * does not tear up the tree, and only once the tree has converged, since the
+	 * search relies on the weights staying put. Runs on the control plane after
+	 * each round of probes.
+	 */
+	private void agreeWeights() {
+		for (Connection con : registry.getServers()) {
+			ServerConnectionInformation info = (ServerConnectionInformation) con.getConnectionInformation();
+			if (info.getIdentifier() == null || !info.getIdentifier().getUUID1().equals(uuid)
+					|| info.getRttSamples() < WEIGHT_SAMPLES) {
+				continue;
+			}
+			long latency = info.getLatency();
+			long rtt = info.getAverageRtt();
+			boolean drifting = converged && Math.abs(rtt - latency) > MIN_DRIFT_MICROS
+					&& Math.abs(rtt - latency) * 100 > latency * Settings.getWeightDriftThreshold();
+			if (latency >= 0 && info.recordDrift(drifting) < DRIFT_ROUNDS) {
+				continue;
+			}
+			info.recordDrift(false);
+			info.setLatency(rtt);
+			JSONObject jobj = new JSONObject();
+			jobj.put(Strings.LINK_WEIGHT, rtt);
+			con.writeMsg(jobj);
+			if (latency < 0) {
+				edgeReady(con);
+			} else {
+				weightChanged(con);
+			}
+		}
+	}
+
+	/**
+	 * The other end of the link has decided its weight.
 	 * 
-	 * @param con The connection to set the lag on
-	 */
-	private void receiveLagAgreement(Connection con, JSONObject jobj) {
-		int receivedLag = (int) (long) jobj.get(Strings.LAG_NEGOTIATE);
-		if (receivedLag > Settings.LAG) {
-			// The other node has a higher lag value. Therefore set the lag of our channel
-			// the received value
-			((ServerConnectionInformation) con.getConnectionInformation()).setLag(receivedLag);
+	 * @param con The connection the weight is for
+	 */
+	private void receiveLinkWeight(Connection con, JSONObject jobj) {
+		ServerConnectionInformation info = (ServerConnectionInformation) con.getConnectionInformation();
+		boolean known = info.getLatency() >= 0;
+		info.setLatency(((Number) jobj.get(Strings.LINK_WEIGHT)).longValue());
+		if (known) {
+			weightChanged(con);
+		} else {
+			edgeReady(con);
+		}
+	}
+
+	/**
+	 * The weight of the link is known, so it can take part in the spanning tree.
+	 * A converged tree tells the other end which fragment it is in, in case the
+	 * link joins two trees. A search which has already passed this node leaves
+	 * the link out, as the fragment at the other end may have chosen an edge
+	 * without it, and the two would wait on each other.
+	 */
+	private void edgeReady(Connection con) {
+		log.debug("link to " + con.getAddress() + " has weight "
+				+ ((ServerConnectionInformation) con.getConnectionInformation()).getWeight());
+		if (state == null) {
+			wakeup();
+		} else if (awaitingWeights && state instanceof Find) {
+			test();
+		} else if (converged) {
+			sendFragment(con);
 		} else {
-			// Increment Lag to avoid edges with the same values
-			Settings.setLag(Settings.LAG++);
-			((ServerConnectionInformation) con.getConnectionInformation()).setLag(Settings.getLag());
+			lateEdges.add(con);
 		}
-		System.out.println("Connection lag " + ((ServerConnectionInformation) con.getConnectionInformation()).getLag());
+		retryDeferred();
 	}
 
 	/**
 	 * Sets the connection type, depending on the connection type JSON received by
 	 * the server
 	 */
-	private synchronized void setConnectionType(Connection con, JSONObject jobj) {
+	private void setConnectionType(Connection con, JSONObject jobj) {
 		String typeStr = jobj.get(Strings.CONNECTION_TYPE).toString();
 		if (typeStr.equals(Strings.SERVER)) {
-			// Create a new Server Connection
-			connections.remove(con);
-			con.setConnectionInformation(new ServerConnectionInformation());
-			serverConnections.add(con);
+			// Its ServerConnectionInformation was set as it was read
+			registry.setRole(con, ConnectionRole.SERVER);
+			negotiateWireFormat(con, jobj);
 
-			System.out.println("New Server Connection");
-
-			// Perform Agreement on Lag for the connection
-			// TODO Refactor these out.
-			sendLagAgreement(con);
+			log.debug("new server connection " + con.getAddress());
+			// The weight of the link is agreed once it has been probed
 			sendUUID(con);
-			System.out.println("Processed Server");
 		}
 		if (typeStr.equals(Strings.CLIENT)) {
-			clientConenctions.add(con);
-			connections.remove(con);
-			System.out.println("New Client Connection");
+			if (redirectNewClient(con)) {
+				return;
+			}
+			con.getOutboundQueue().setLimits(Settings.getOutboundHighWatermark(), Settings.getOutboundLowWatermark(),
+					Settings.getSlowConsumerPolicy());
+			registry.setRole(con, ConnectionRole.CLIENT);
+			setClientWeight(con, jobj);
+			log.debug("new client connection " + con.getAddress());
+		}
+	}
+
+	/**
+	 * Gives a client the share of held back chat it asked for when it connected,
+	 * up to the largest the settings allow
+	 */
+	private void setClientWeight(Connection con, JSONObject jobj) {
+		Object weight = jobj.get(Strings.WEIGHT);
+		if (weight instanceof Number && con.getConnectionInformation() instanceof ClientConnectionInformation) {
+			((ClientConnectionInformation) con.getConnectionInformation())
+					.setWeight((int) Math.min(((Number) weight).longValue(), Settings.getMaxClientWeight()),
+							clock != null ? clock.nanoTime() : System.nanoTime());
+		}
+	}
+
+	/** Records the level and state of this node, and whether the tree has converged */
+	private void recordTree() {
+		metrics.levelChanged(level);
+		metrics.stateChanged(state);
+		metrics.convergedChanged(converged);
+	}
+
+	/**
+	 * Publishes a new snapshot of the connections chat is forwarded to, whenever
+	 * the registry changes.
+	 */
+	private void publishRoutes() {
+		boolean tree = Settings.getRoutingMode() == RoutingMode.TREE && converged;
+		routes = new RoutingTable(registry.getClients(), tree ? branches() : registry.getServers(), tree);
+	}
+
+	public void connectionRegistered(Connection con, ConnectionRole role) {
+		if (role != ConnectionRole.UNDETERMINED) {
+			publishRoutes();
+		}
+	}
+
+	public void connectionUnregistered(Connection con, ConnectionRole role) {
+		if (con.getConnectionInformation() instanceof ClientConnectionInformation) {
+			admission.remove((ClientConnectionInformation) con.getConnectionInformation());
+		}
+		if (con.getConnectionInformation() instanceof ServerConnectionInformation) {
+			// Set as soon as the server said what it was, which may be before it had a role
+			((ServerConnectionInformation) con.getConnectionInformation()).getLaggedLink().close();
+		}
+		if (role == ConnectionRole.SERVER) {
+			edgeLost(con);
+			retryDeferred();
+		}
+		if (role != ConnectionRole.UNDETERMINED) {
+			publishRoutes();
 		}
 	}
 
@@ -411,28 +1209,244 @@ public class Control extends Thread {
 	 * clients and all the servers on the network. Any simulated lag is also added
 	 * when forwarding the message to other servers on the network.
 	 * 
+	 * Messages are stamped with an id as they enter the network, and any message
+	 * which has already been relayed is dropped, so floods cannot loop. Only
+	 * servers are trusted with the id and trace a message arrives with; anything
+	 * else is stamped afresh, so a client cannot forge another server's ids.
+	 * 
+	 * Runs concurrently on the thread which read the message, against the
+	 * current snapshot of the routes. The message is encoded at most once per
+	 * wire format, and the same frame is handed to every connection using it.
+	 * 
 	 * @param con
-	 * @param msgJSON
+	 * @param msg
 	 */
-	private void processMessage(Connection con, JSONObject msgJSON) {
+	private void processMessage(Connection con, ChatMessage msg) {
+		JSONArray trace = null;
+		if (!(con.getConnectionInformation() instanceof ServerConnectionInformation) || msg.getId() == null) {
+			// The message is entering the network here
+			long seq = nextSeq.incrementAndGet();
+			msg.stamp(uuid, seq);
+			if (tracer.sampled(seq)) {
+				trace = new JSONArray();
+			}
+		} else {
+			trace = msg.getTrace();
+		}
+		if (msg.getId() != null && duplicates.seen(msg.getId())) {
+			log.trace("dropping duplicate message " + msg.getId());
+			msg.release();
+			return;
+		}
+		if (trace != null) {
+			processTracedMessage(con, msg, trace);
+			return;
+		}
+		if (history != null) {
+			SharedFrame line = msg.frameFor(WireFormat.JSON);
+			if (line != null) {
+				history.append(currentTimeMillis(), line.buffer());
+			}
+		}
+		RoutingTable routes = this.routes;
+		long start = System.nanoTime();
+
 		// We have received a new message from a client.
 		// Forward it to all the other connections on the server
-		for (Connection cli : clientConenctions) {
-			cli.writeMsg(msgJSON.toJSONString());
+		for (Connection cli : routes.getClients()) {
+			SharedFrame frame = msg.frameFor(cli.getWireFormat());
+			if (frame != null) {
+				cli.writeFrame(frame.retain());
+			}
 		}
 
 		// Forward it to the other servers, after waiting our simulated
 		// lag
-		for (Connection server : serverConnections) {
+		for (Connection server : routes.getServers()) {
+			if (!(server.equals(con))) {
+				SharedFrame frame = msg.frameFor(server.getWireFormat());
+				if (frame != null) {
+					((ServerConnectionInformation) server.getConnectionInformation()).getLaggedLink()
+							.send(frame.retain());
+				}
+			}
+		}
+		metrics.getFanOut().record(System.nanoTime() - start);
+		msg.release();
+	}
+
+	/**
+	 * Forwards a traced message like any other, except that its hop is recorded.
+	 * Clients are sent the message without the trace, and each server link
+	 * builds its own frame once its lag has passed, with the time it was sent.
+	 */
+	private void processTracedMessage(Connection con, ChatMessage msg, JSONArray trace) {
+		long received = tracer.now();
+		MessageId id = msg.getId();
+		JSONObject json = msg.toJSON();
+		msg.release();
+		if (json == null) {
+			return;
+		}
+		tracer.arrived(id, trace, received);
+		RoutingTable routes = this.routes;
+
+		ChatMessage plain = ChatMessage.of(json);
+		if (history != null) {
+			SharedFrame line = plain.frameFor(WireFormat.JSON);
+			if (line != null) {
+				history.append(currentTimeMillis(), line.buffer());
+			}
+		}
+		for (Connection cli : routes.getClients()) {
+			SharedFrame frame = plain.frameFor(cli.getWireFormat());
+			if (frame != null) {
+				cli.writeFrame(frame.retain());
+			}
+		}
+		plain.release();
+
+		for (Connection server : routes.getServers()) {
 			if (!(server.equals(con))) {
-				LaggedMessage lagMsg = new LaggedMessage(msgJSON,
-						((ServerConnectionInformation) server.getConnectionInformation()).getLag(), server);
-				Thread msgThread = new Thread(lagMsg);
-				msgThread.start();
+				((ServerConnectionInformation) server.getConnectionInformation()).getLaggedLink()
+						.send(new TraceHop(tracer, json, trace, received, tracer.now()));
 			}
 		}
 	}
 
+	/**
+	 * Tells a client to reconnect to another server, and closes the connection
+	 * once the redirect has been written. Returns false if there is no other
+	 * server to redirect to.
+	 * 
+	 * @param con
+	 */
+	boolean redirect(Connection con) {
+		LoadReport target = loads.redirectTarget(registry.getClients().size());
+		if (target != null) {
+			sendRedirect(con, target.getHostname(), target.getPort());
+			return true;
+		}
+		if (Settings.getRemoteHostname() == null) {
+			return false;
+		}
+		sendRedirect(con, Settings.getRemoteHostname(), Settings.getRemotePort());
+		return true;
+	}
+
+	private void sendRedirect(Connection con, String hostname, int port) {
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.COMMAND, Strings.REDIRECT);
+		jobj.put(Strings.HOSTNAME, hostname);
+		jobj.put(Strings.PORT, port);
+		con.writeLast(SharedFrame.of(jobj));
+	}
+
+	/**
+	 * Redirects a client which has just connected to the least loaded server,
+	 * if this server already has more clients than the redirect threshold and
+	 * another server has fewer. Returns true if the client was redirected.
+	 */
+	private boolean redirectNewClient(Connection con) {
+		int clients = registry.getClients().size() + 1;
+		if (Settings.getRedirectThreshold() == 0 || clients <= Settings.getRedirectThreshold()) {
+			return false;
+		}
+		LoadReport target = loads.redirectTarget(clients);
+		if (target == null) {
+			return false;
+		}
+		log.info("redirecting new client " + con.getAddress() + " to " + target);
+		sendRedirect(con, target.getHostname(), target.getPort());
+		return true;
+	}
+
+	/**
+	 * Announces the load of this server to its neighbours, who pass it on to
+	 * the rest of the network. Run on the control plane every activity interval.
+	 */
+	private void announceLoad() {
+		loads.expire(LOAD_EXPIRY_INTERVALS * TimeUnit.MILLISECONDS.toNanos(Settings.getActivityInterval()));
+		long queued = 0;
+		for (Connection cli : registry.getClients()) {
+			queued += cli.getOutboundQueue().getQueuedBytes();
+		}
+		LoadReport own = new LoadReport(uuid, Settings.getLocalHostname(), transport.getPort(),
+				registry.getClients().size(), queued, ClusterLoad.processCpuLoad(), ++loadSeq);
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.LOAD, own.toJSON());
+		for (Connection con : registry.getServers()) {
+			con.writeMsg(jobj);
+		}
+	}
+
+	/**
+	 * Records the load announced by another server, and passes it on to every
+	 * other neighbour if it is news. Announcements flood the network rather
+	 * than follow the spanning tree, so they still arrive while it is rebuilt.
+	 */
+	private void receiveLoad(Connection con, JSONObject jobj) {
+		LoadReport report;
+		try {
+			report = LoadReport.fromJSON((JSONObject) jobj.get(Strings.LOAD));
+		} catch (ClassCastException | NullPointerException | IllegalArgumentException e) {
+			log.error("invalid load announcement from " + con.getAddress() + ": " + jobj);
+			return;
+		}
+		if (report.getServer().equals(uuid) || !loads.update(report)) {
+			return;
+		}
+		for (Connection server : registry.getServers()) {
+			if (!server.equals(con)) {
+				server.writeMsg(jobj);
+			}
+		}
+	}
+
+	/**
+	 * Starts replaying the history to a client, from the offset or the time in
+	 * milliseconds it asks for, or from the start of what is kept:
+	 * 
+	 * {"replay": {"offset": 1234}} or {"replay": {"since": 1500000000000}}
+	 * 
+	 * The replay ends with {"replayed": {"offset": ..., "count": ...}}, giving
+	 * the offset to replay from next time. It runs off the control plane, paced
+	 * by how fast the client reads in real time.
+	 */
+	@SuppressWarnings("unchecked")
+	private void replay(Connection con, JSONObject msg) {
+		Object request = msg.get(Strings.REPLAY);
+		if (!(request instanceof JSONObject)) {
+			log.error("invalid replay request from " + con.getAddress() + ": " + msg);
+			return;
+		}
+		if (history == null) {
+			// Nothing is kept, so the replay is over straight away
+			JSONObject replayed = new JSONObject();
+			replayed.put(Strings.OFFSET, 0L);
+			replayed.put(Strings.COUNT, 0L);
+			JSONObject jobj = new JSONObject();
+			jobj.put(Strings.REPLAYED, replayed);
+			con.writeMsg(jobj);
+			return;
+		}
+		Object offset = ((JSONObject) request).get(Strings.OFFSET);
+		Object since = ((JSONObject) request).get(Strings.SINCE);
+		long nextOffset = history.getNextOffset();
+		HistoryLog.Cursor cursor;
+		if (since instanceof Number) {
+			cursor = history.fromTime(((Number) since).longValue());
+		} else {
+			cursor = history.fromOffset(offset instanceof Number ? ((Number) offset).longValue() : 0);
+		}
+		Replay replay = new Replay(con, cursor, nextOffset, clock == null);
+		if (clock != null) {
+			clock.execute(replay);
+		} else {
+			forwardingExecutor.execute(replay);
+		}
+	}
+
 	/**
 	 * Processes a message containing the UUID
 	 * 
@@ -442,72 +1456,215 @@ public class Control extends Thread {
 	public void processUUIDmsg(Connection con, JSONObject msgJson) {
 		UUID otherNodeUUID = UUID.fromString((String) msgJson.get(Strings.UUID));
 		((ServerConnectionInformation) con.getConnectionInformation()).setIdentifier(uuid, otherNodeUUID);
+		registry.setPeer(con, otherNodeUUID);
 	}
 
 	/*
 	 * Processing incoming messages from the connection. Return true if the
 	 * connection should close.
+	 * 
+	 * Called concurrently by the connection readers. Chat messages are forwarded
+	 * straight away, everything else is posted to the control plane.
 	 */
-	public synchronized boolean process(Connection con, String msg) {
-		System.out.println("Message " + msg);
-		try {
-			JSONObject msgJSON = convertStringToJSON(msg);
-			if (msgJSON.containsKey(Strings.CONNECTION_TYPE)) {
-				// Set the connection type
-				setConnectionType(con, msgJSON);
-			}
-			if (msgJSON.containsKey(Strings.MESSAGE)) {
-				// A chat message from the client, process it
-				processMessage(con, msgJSON);
-			}
-			if (msgJSON.containsKey(Strings.LAG_NEGOTIATE)) {
-				// We have received the lag from the other node, so we perform negotiation
-				if (serverConnections.contains(con)) {
-					receiveLagAgreement(con, msgJSON);
-
-					// Wakeup after receiving information on the lag.
-					wakeup();
+	public boolean process(Connection con, String msg) {
+		return dispatcher.dispatch(con, msg);
+	}
+
+	/*
+	 * Processes a message which has already been decoded, such as one read from
+	 * a binary frame. Return true if the connection should close.
+	 */
+	public boolean process(Connection con, JSONObject msgJSON) {
+		return dispatcher.dispatch(con, msgJSON);
+	}
+
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Registers the handlers for each type of message, along with the fields
+	 * they read. Handlers other than the chat relay run on the control plane.
+	 */
+	private void registerHandlers() {
+		dispatcher.setChatHandler(new ChatHandler() {
+			public boolean relay(Connection con, ChatMessage msg) {
+				// Chat from servers has already been admitted where it entered the network
+				ConnectionInformation info = con.getConnectionInformation();
+				if (info instanceof ClientConnectionInformation) {
+					return admission.admit(con, (ClientConnectionInformation) info, msg);
 				}
+				processMessage(con, msg);
+				return false;
 			}
-			if (msgJSON.containsKey(Strings.UUID)) {
-				if (serverConnections.contains(con)) {
-					processUUIDmsg(con, msgJSON);
+		});
+		dispatcher.registerDirect(Strings.CONNECTION_TYPE, null, new MessageHandler() {
+			public void handle(final Connection con, final JSONObject msg) {
+				// A server is marked as one on the thread reading it, before any chat
+				// after this is relayed, so the ids on its chat are trusted from the start
+				ConnectionInformation info = con.getConnectionInformation();
+				if (Strings.SERVER.equals(String.valueOf(msg.get(Strings.CONNECTION_TYPE)))
+						&& !(info instanceof ServerConnectionInformation)) {
+					if (info instanceof ClientConnectionInformation) {
+						admission.remove((ClientConnectionInformation) info);
+					}
+					setServerConnectionInformation(con);
 				}
+				controlPlane.execute(new Runnable() {
+					public void run() {
+						setConnectionType(con, msg);
+					}
+				});
 			}
-			if (msgJSON.containsKey(Strings.CONNECT)) {
-				System.out.println("RECEIVED CONNECT");
-				if (serverConnections.contains(con)) {
-					log.debug("SERVER CON");
-					receiveConnect(con, msgJSON);
-				}
+		}, Strings.CAPABILITIES, Strings.WEIGHT);
+		dispatcher.register(Strings.CAPABILITIES, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				receiveCapabilities(con, msg);
 			}
-		} catch (ParseException e) {
-			// We have an invalid message
-			System.out.println("INVALID MESSAGE : CANNOT CONVERT TO JSON" + msg);
-			e.printStackTrace();
-		}
-		return false;
+		});
+		dispatcher.registerDirect(Strings.PING, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				prober.receivePing(con, msg);
+			}
+		});
+		dispatcher.registerDirect(Strings.PONG, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				prober.receivePong(con, msg);
+			}
+		});
+		dispatcher.register(Strings.LINK_WEIGHT, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				receiveLinkWeight(con, msg);
+			}
+		});
+		dispatcher.register(Strings.UUID, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				processUUIDmsg(con, msg);
+			}
+		});
+		dispatcher.register(Strings.LOAD, ConnectionRole.SERVER, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				receiveLoad(con, msg);
+			}
+		});
+		dispatcher.register(Strings.REPLAY, ConnectionRole.CLIENT, new MessageHandler() {
+			public void handle(Connection con, JSONObject msg) {
+				replay(con, msg);
+			}
+		});
+		registerGhs(Strings.CONNECT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return receiveConnect(con, msg);
+			}
+		});
+		registerGhs(Strings.INITIATE, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return receiveInitiate(con, msg);
+			}
+		});
+		registerGhs(Strings.TEST, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return respondTest(con, msg);
+			}
+		});
+		registerGhs(Strings.ACCEPT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return respondAccept(con, msg);
+			}
+		});
+		registerGhs(Strings.REJECT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return respondReject(con, msg);
+			}
+		});
+		registerGhs(Strings.REPORT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return respondReport(con, msg);
+			}
+		});
+		registerGhs(Strings.CHANGE_ROOT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return respondChangeCore(con, msg);
+			}
+		});
+		registerGhs(Strings.FRAGMENT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return receiveFragment(con, msg);
+			}
+		});
+		registerGhs(Strings.REBUILD, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return receiveRebuild(con, msg);
+			}
+		});
+		registerGhs(Strings.REBUILT, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				return receiveRebuilt(con, msg);
+			}
+		});
+		registerGhs(Strings.CONVERGED, new GhsHandler() {
+			public boolean receive(Connection con, JSONObject msg) {
+				receiveConverged(con);
+				return true;
+			}
+		});
 	}
 
 	/*
 	 * The connection has been closed by the other party.
 	 */
-	public synchronized void connectionClosed(Connection con) {
-		if (!term)
-			connections.remove(con);
+	public void connectionClosed(final Connection con) {
+		controlPlane.execute(new Runnable() {
+			public void run() {
+				registry.unregister(con);
+			}
+		});
 	}
 
 	/*
-	 * A new incoming connection has been established, and a reference is returned
-	 * to it
+	 * A new incoming connection has been established. Must be called before the
+	 * connection starts reading, so that it is registered before any of its
+	 * messages are processed.
 	 */
-	public synchronized Connection incomingConnection(Socket s) throws IOException {
-		log.debug("incomming connection: " + Settings.socketAddress(s));
-		Connection c = new Connection(s);
-		connections.add(c);
+	public Connection incomingConnection(final Connection c) {
+		// Treated as a client until it says it is a server
+		c.setConnectionInformation(new ClientConnectionInformation(c,
+				clock != null ? clock.nanoTime() : System.nanoTime()));
+		controlPlane.execute(new Runnable() {
+			public void run() {
+				registry.register(c);
+			}
+		});
 		return c;
 	}
 
+	/** Starts the activity thread, or in virtual time schedules the first activity */
+	@Override
+	public synchronized void start() {
+		if (clock == null) {
+			super.start();
+			return;
+		}
+		log.info("using activity interval of " + Settings.getActivityInterval() + " virtual milliseconds");
+		scheduleActivity();
+	}
+
+	private void scheduleActivity() {
+		clock.schedule(new Runnable() {
+			public void run() {
+				if (term) {
+					return;
+				}
+				term = doActivity();
+				if (term) {
+					shutdown();
+				} else {
+					scheduleActivity();
+				}
+			}
+		}, TimeUnit.MILLISECONDS.toNanos(Settings.getActivityInterval()));
+	}
+
 	@Override
 	public void run() {
 		log.info("using activity interval of " + Settings.getActivityInterval() + " milliseconds");
@@ -524,15 +1681,48 @@ public class Control extends Thread {
 			}
 
 		}
-		log.info("closing " + connections.size() + " connections");
-		// clean up
-		for (Connection connection : connections) {
-			connection.closeCon();
-		}
-		listener.setTerm(true);
+		shutdown();
+	}
+
+	/** Closes all the connections and stops the threads of the server */
+	public void shutdown() {
+		term = true;
+		// clean up, on the control plane as it owns the connection lists
+		controlPlane.execute(new Runnable() {
+			public void run() {
+				log.info("closing " + registry.size() + " connections");
+				for (ConnectionRole role : ConnectionRole.values()) {
+					for (Connection connection : registry.get(role)) {
+						connection.closeCon();
+					}
+				}
+				controlPlane.setTerm(true);
+			}
+		});
+		prober.setTerm(true);
+		admission.setTerm(true);
+		transport.close();
 	}
 
+	/**
+	 * Called every activity interval. Announces the load of this server, writes
+	 * the history appended since the last interval out to the disk, deletes
+	 * any history past its limits, and logs a summary of the metrics.
+	 */
 	public boolean doActivity() {
+		controlPlane.execute(new Runnable() {
+			public void run() {
+				announceLoad();
+			}
+		});
+		if (history != null) {
+			history.sync();
+			history.retain(Settings.getHistoryRetentionBytes(),
+					TimeUnit.MINUTES.toMillis(Settings.getHistoryRetentionMinutes()), currentTimeMillis());
+		}
+		if (log.isDebugEnabled()) {
+			log.debug(metrics.summary());
+		}
 		return false;
 	}
 
@@ -540,7 +1730,51 @@ public class Control extends Thread {
 		term = t;
 	}
 
-	public final ArrayList<Connection> getConnections() {
-		return connections;
+	public final ConnectionRegistry getConnections() {
+		return registry;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public UUID getUUID() {
+		return uuid;
+	}
+
+	/** Whether this server knows the spanning tree to be complete */
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * Describes the part of the spanning tree at this server, with the state of
+	 * each link to another server.
+	 */
+	public String describeTree() throws InterruptedException, ExecutionException {
+		return controlPlane.call(new Callable<String>() {
+			public String call() {
+				StringBuilder description = new StringBuilder();
+				description.append(state == null ? "asleep" : state.toString()).append(awaitingWeights ? " awaiting weights" : "").append(" level ").append(level)
+						.append(" fragment ").append(fragmentIdentifier.getUUID1()).append('/')
+						.append(fragmentIdentifier.getUUID2()).append(converged ? " converged" : "");
+				for (Connection con : registry.getServers()) {
+					description.append("\n    ").append(con.getAddress()).append(' ')
+							.append(con.getConnectionState().getClass().getSimpleName()).append(' ').append(weightOf(con))
+							.append(con.equals(inBranch) ? " in" : "").append(con.equals(testEdge) ? " test" : "")
+							.append(awaitingReport.contains(con) ? " awaiting" : "");
+				}
+				return description.toString();
+			}
+		});
+	}
+
+	/** The number of branches of the spanning tree at this server */
+	public int getBranchCount() throws InterruptedException, ExecutionException {
+		return controlPlane.call(new Callable<Integer>() {
+			public Integer call() {
+				return branches().size();
+			}
+		});
 	}
 }
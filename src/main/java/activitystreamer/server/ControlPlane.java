@@ -0,0 +1,98 @@
+package activitystreamer.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The single thread which owns the GHS state machine and the connection lists.
+ * Everything that changes them is posted to its mailbox, so they are never
+ * touched concurrently and need no locking.
+ *
+ * In virtual time there is no thread, and tasks are run by the
+ * {@link VirtualClock} instead, which runs only one task at a time.
+ */
+public class ControlPlane extends Thread implements Executor {
+	private static final Logger log = LogManager.getLogger();
+	private final LinkedBlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<Runnable>();
+	private volatile boolean term = false;
+	// Runs the tasks in virtual time, if set
+	private final VirtualClock clock;
+
+	ControlPlane(VirtualClock clock) {
+		super("control-plane");
+		this.clock = clock;
+	}
+
+	/** Starts the thread, unless the tasks are run by a virtual clock */
+	@Override
+	public synchronized void start() {
+		if (clock == null) {
+			super.start();
+		}
+	}
+
+	/** Posts a task to the mailbox */
+	public void execute(final Runnable task) {
+		if (clock == null) {
+			mailbox.add(task);
+			return;
+		}
+		clock.execute(new Runnable() {
+			public void run() {
+				if (!term) {
+					task.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a task in the mailbox and waits for its result. In virtual time the
+	 * task runs straight away, as the thread driving the clock is the only one
+	 * and is not running any other task.
+	 */
+	public <T> T call(Callable<T> task) throws InterruptedException, ExecutionException {
+		FutureTask<T> future = new FutureTask<T>(task);
+		if (clock != null) {
+			future.run();
+		} else {
+			execute(future);
+		}
+		return future.get();
+	}
+
+	public boolean inControlPlane() {
+		return Thread.currentThread() == this;
+	}
+
+	@Override
+	public void run() {
+		while (!term) {
+			Runnable task;
+			try {
+				task = mailbox.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.error("control plane task failed", e);
+			}
+		}
+		log.debug("control plane stopped with " + mailbox.size() + " tasks pending");
+	}
+
+	public void setTerm(boolean term) {
+		this.term = term;
+		if (term && clock == null) {
+			interrupt();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package activitystreamer.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers the ids of recently relayed chat messages, so a message which
+ * arrives again over another path is dropped rather than relayed twice.
+ *
+ * Memory is bounded by a ring of the most recent ids. When an id falls out of
+ * the ring, the highest evicted sequence number of its origin is kept as a
+ * floor, and anything at or below the floor is treated as already seen. A
+ * message delayed by more than the capacity of the ring is therefore dropped,
+ * which is the price of never relaying an old message twice.
+ */
+public class DuplicateFilter {
+	private final MessageId[] ring;
+	private int next = 0;
+	private final Set<MessageId> recent;
+	// The highest sequence number evicted from the ring, by origin
+	private final Map<UUID, Long> floors = new HashMap<UUID, Long>();
+
+	public DuplicateFilter(int capacity) {
+		ring = new MessageId[Math.max(1, capacity)];
+		recent = new HashSet<MessageId>(ring.length * 2);
+	}
+
+	/**
+	 * Records the id, returning true if it has been seen before. Called
+	 * concurrently by the threads relaying chat.
+	 */
+	public synchronized boolean seen(MessageId id) {
+		Long floor = floors.get(id.getOrigin());
+		if (floor != null && id.getSeq() <= floor) {
+			return true;
+		}
+		if (!recent.add(id)) {
+			return true;
+		}
+		MessageId evicted = ring[next];
+		if (evicted != null) {
+			recent.remove(evicted);
+			Long evictedFloor = floors.get(evicted.getOrigin());
+			if (evictedFloor == null || evictedFloor < evicted.getSeq()) {
+				floors.put(evicted.getOrigin(), evicted.getSeq());
+			}
+		}
+		ring[next] = id;
+		next = (next + 1) % ring.length;
+		return false;
+	}
+
+	public synchronized int size() {
+		return recent.size();
+	}
+}
@@ -0,0 +1,92 @@
+package activitystreamer.server;
+
+import java.util.UUID;
+
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Strings;
+
+/**
+ * The weight of an edge between two servers, as used to build the minimum
+ * spanning tree: its measured latency. GHS requires every edge to have a
+ * distinct weight, so edges with the same latency are ordered by the
+ * {@link Identifier} of their end points.
+ */
+public class EdgeWeight implements Comparable<EdgeWeight> {
+	/** Heavier than every edge, reported when a fragment has no outgoing edge */
+	public static final EdgeWeight INFINITY = new EdgeWeight(Long.MAX_VALUE, null);
+
+	private final long latency; // microseconds
+	private final Identifier identifier;
+
+	public EdgeWeight(long latency, Identifier identifier) {
+		this.latency = latency;
+		this.identifier = identifier;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public Identifier getIdentifier() {
+		return identifier;
+	}
+
+	public boolean isInfinite() {
+		return identifier == null;
+	}
+
+	public int compareTo(EdgeWeight other) {
+		if (isInfinite() || other.isInfinite()) {
+			return Boolean.compare(isInfinite(), other.isInfinite());
+		}
+		if (latency != other.latency) {
+			return Long.compare(latency, other.latency);
+		}
+		return identifier.compareTo(other.identifier);
+	}
+
+	public boolean lessThan(EdgeWeight other) {
+		return compareTo(other) < 0;
+	}
+
+	/** The weight as sent in report messages, where infinity is null */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		if (isInfinite()) {
+			return null;
+		}
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.WEIGHT, latency);
+		jobj.put(Strings.UUID1, identifier.getUUID1().toString());
+		jobj.put(Strings.UUID2, identifier.getUUID2().toString());
+		return jobj;
+	}
+
+	public static EdgeWeight fromJSON(Object value) {
+		if (!(value instanceof JSONObject)) {
+			return INFINITY;
+		}
+		JSONObject jobj = (JSONObject) value;
+		return new EdgeWeight(((Number) jobj.get(Strings.WEIGHT)).longValue(), new Identifier(
+				UUID.fromString((String) jobj.get(Strings.UUID1)), UUID.fromString((String) jobj.get(Strings.UUID2))));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof EdgeWeight)) {
+			return false;
+		}
+		return compareTo((EdgeWeight) o) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return isInfinite() ? 0 : Long.hashCode(latency) * 31 + identifier.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return isInfinite() ? "infinity" : latency + "us " + identifier.getUUID1() + "/" + identifier.getUUID2();
+	}
+}
@@ -0,0 +1,155 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A single selector thread. Owns a set of channels and performs all of their
+ * reads and writes, so that the number of threads does not grow with the
+ * number of connections. Work for the loop from other threads is submitted
+ * with {@link #execute(Runnable)}.
+ */
+public class EventLoop extends Thread {
+	private static final Logger log = LogManager.getLogger();
+	private final EventLoopGroup group;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean term = false;
+
+	EventLoop(EventLoopGroup group, int index) throws IOException {
+		super("event-loop-" + index);
+		this.group = group;
+		selector = Selector.open();
+	}
+
+	/** Runs the task on the loop thread, waking up the selector if required */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != this) {
+			selector.wakeup();
+		}
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/** Registers a listening channel, only used by the first loop of a group */
+	void registerAcceptor(final ServerSocketChannel serverChannel) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+				} catch (ClosedChannelException e) {
+					log.error("listening channel closed before it was registered");
+				}
+			}
+		});
+	}
+
+	/** Registers an open, non-blocking channel and begins reading from it */
+	void register(final NioConnection con) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					con.setSelectionKey(con.getChannel().register(selector, SelectionKey.OP_READ, con));
+				} catch (ClosedChannelException e) {
+					con.handleClose();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (!term) {
+			try {
+				// Tasks submitted from the loop itself do not wake up the selector
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+			} catch (IOException e) {
+				log.error("selector failed, event loop exiting: " + e);
+				break;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept((ServerSocketChannel) key.channel());
+					continue;
+				}
+				NioConnection con = (NioConnection) key.attachment();
+				try {
+					if (key.isReadable()) {
+						con.handleRead();
+					}
+					if (key.isValid() && key.isWritable()) {
+						con.handleWrite();
+					}
+				} catch (RuntimeException e) {
+					// Only the connection is lost, not every other one on the loop
+					log.error("connection " + con.getAddress() + " failed, closing it", e);
+					con.handleClose();
+				}
+			}
+			runTasks();
+		}
+		runTasks();
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof NioConnection) {
+				((NioConnection) key.attachment()).handleClose();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.error("failed to close selector: " + e);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.error("event loop task failed", e);
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel serverChannel) {
+		SocketChannel channel;
+		try {
+			while ((channel = serverChannel.accept()) != null) {
+				group.accepted(channel);
+			}
+		} catch (IOException e) {
+			log.info("received exception accepting connection: " + e);
+		}
+	}
+
+	public void setTerm(boolean term) {
+		this.term = term;
+		if (term) {
+			selector.wakeup();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A fixed pool of {@link EventLoop}s used by the non-blocking server mode. The
+ * first loop accepts new connections, which are then handed out to the loops
+ * round robin.
+ */
+public class EventLoopGroup {
+	private static final Logger log = LogManager.getLogger();
+	private final Control control;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private ServerSocketChannel serverChannel;
+
+	public EventLoopGroup(Control control, int threads) throws IOException {
+		this.control = control;
+		loops = new EventLoop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(this, i);
+			loops[i].start();
+		}
+	}
+
+	/** Starts accepting connections on the given port */
+	public void bind(int port) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		loops[0].registerAcceptor(serverChannel);
+		log.info("listening for new connections on " + port + " using " + loops.length + " event loops");
+	}
+
+	/** Makes an outgoing connection, which is driven by one of the loops */
+	public NioConnection connect(String hostname, int port) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+		NioConnection con = newConnection(channel);
+		con.getLoop().register(con);
+		return con;
+	}
+
+	void accepted(SocketChannel channel) {
+		try {
+			NioConnection con = newConnection(channel);
+			control.incomingConnection(con);
+			con.getLoop().register(con);
+		} catch (IOException e) {
+			log.error("failed to register accepted connection: " + e);
+		}
+	}
+
+	private NioConnection newConnection(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		return new NioConnection(control, channel, next());
+	}
+
+	private EventLoop next() {
+		return loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+	}
+
+	public void setTerm(boolean term) {
+		if (term) {
+			try {
+				if (serverChannel != null) {
+					serverChannel.close();
+				}
+			} catch (IOException e) {
+				log.error("failed to close listening channel: " + e);
+			}
+			for (EventLoop loop : loops) {
+				loop.setTerm(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package activitystreamer.server;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes received on a connection into frames. A stream may carry
+ * both newline delimited JSON and {@link BinaryCodec} frames, since a link
+ * switches to binary part way through, and the first byte of each frame says
+ * which it is. Used by both the blocking and the non-blocking readers.
+ */
+public class FrameDecoder {
+	private static final int INITIAL_SIZE = 8192;
+	private static final int MAX_LINE = BinaryCodec.MAX_PAYLOAD;
+
+	/** Receives the frames. Returning true stops decoding. */
+	public interface Handler {
+		boolean line(String line);
+
+		/**
+		 * A binary frame, whose payload is len bytes at off in buf, preceded by its
+		 * header. The buffer is reused once the call returns.
+		 */
+		boolean frame(byte type, byte[] buf, int off, int len) throws ProtocolException;
+	}
+
+	private byte[] buf = new byte[INITIAL_SIZE];
+	private int start = 0;
+	private int end = 0;
+	// How far a partial line has already been searched for a newline
+	private int scanned = 0;
+
+	/**
+	 * Decodes as many complete frames as have been received, keeping any partial
+	 * frame for the next call. Returns true if the handler asked to stop.
+	 */
+	public boolean feed(byte[] data, int off, int len, Handler handler) throws ProtocolException {
+		append(data, off, len);
+		try {
+			while (start < end) {
+				byte first = buf[start];
+				if (BinaryCodec.isFrameType(first)) {
+					if (end - start < BinaryCodec.HEADER_LENGTH) {
+						return false;
+					}
+					int length = ((buf[start + 1] & 0xff) << 24) | ((buf[start + 2] & 0xff) << 16)
+							| ((buf[start + 3] & 0xff) << 8) | (buf[start + 4] & 0xff);
+					if (length < 0 || length > BinaryCodec.MAX_PAYLOAD) {
+						throw new ProtocolException("frame length " + length + " out of range");
+					}
+					if (end - start < BinaryCodec.HEADER_LENGTH + length) {
+						return false;
+					}
+					int payload = start + BinaryCodec.HEADER_LENGTH;
+					start = payload + length;
+					scanned = start;
+					if (handler.frame(first, buf, payload, length)) {
+						return true;
+					}
+				} else {
+					int newline = indexOfNewline();
+					if (newline < 0) {
+						if (end - start > MAX_LINE) {
+							throw new ProtocolException("line longer than " + MAX_LINE + " bytes");
+						}
+						return false;
+					}
+					int length = newline - start;
+					if (length > 0 && buf[newline - 1] == '\r') {
+						length--;
+					}
+					String line = new String(buf, start, length, StandardCharsets.UTF_8);
+					start = newline + 1;
+					scanned = start;
+					if (handler.line(line)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		} finally {
+			if (start == end) {
+				start = end = scanned = 0;
+			}
+		}
+	}
+
+	private int indexOfNewline() {
+		for (int i = Math.max(start, scanned); i < end; i++) {
+			if (buf[i] == '\n') {
+				return i;
+			}
+		}
+		scanned = end;
+		return -1;
+	}
+
+	private void append(byte[] data, int off, int len) {
+		if (end + len > buf.length) {
+			// Move the unprocessed bytes to the front, and grow if that is not enough
+			int remaining = end - start;
+			byte[] target = remaining + len > buf.length ? new byte[Math.max(buf.length * 2, remaining + len)] : buf;
+			System.arraycopy(buf, start, target, 0, remaining);
+			buf = target;
+			scanned -= start;
+			start = 0;
+			end = remaining;
+		}
+		System.arraycopy(data, off, buf, end, len);
+		end += len;
+	}
+
+	/** Releases a buffer which has grown for a large frame, once it is empty */
+	public void trim() {
+		if (start == end && buf.length > INITIAL_SIZE) {
+			buf = new byte[INITIAL_SIZE];
+			start = end = scanned = 0;
+		}
+	}
+}
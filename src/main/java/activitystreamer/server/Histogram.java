@@ -0,0 +1,75 @@
+package activitystreamer.server;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts values, such as durations in nanoseconds, into buckets whose upper
+ * bounds are powers of two. Recording a value is a handful of uncontended
+ * adds, with no locks, so it can be done on every message.
+ */
+public class Histogram {
+	private static final int BUCKETS = 64;
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	// Bucket i counts the values from 2^(i-1) up to 2^i - 1, and bucket 0 counts zeros
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/** Records a value, counting negative values as 0 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		buckets[Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(value))].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Adds the histogram to a snapshot, as the cumulative count of values up to
+	 * each bucket's bound, followed by the count, sum and maximum. Buckets above
+	 * the highest value recorded are left out.
+	 */
+	void snapshot(Map<String, Number> metrics, String name) {
+		long highest = getMax();
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			cumulative += buckets[i].sum();
+			long bound = (1L << i) - 1;
+			metrics.put(name + "_bucket{le=\"" + bound + "\"}", cumulative);
+			if (bound >= highest) {
+				break;
+			}
+		}
+		metrics.put(name + "_bucket{le=\"+Inf\"}", getCount());
+		metrics.put(name + "_count", getCount());
+		metrics.put(name + "_sum", getSum());
+		metrics.put(name + "_max", highest);
+	}
+}
@@ -0,0 +1,225 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An append only log of the chat a server has relayed, so that clients can
+ * catch up on what they missed. Every message is given the next offset, and
+ * is written to the newest of a series of memory mapped segment files. A new
+ * segment is started once the newest is full, and the oldest are deleted once
+ * the log grows past its size limit or they are older than its age limit.
+ *
+ * Appends only copy the message into the mapping. The segments are written
+ * out to the disk by {@link #sync()}, which the server calls periodically, so
+ * a crash loses at most the messages since the last sync.
+ */
+public class HistoryLog {
+	private static final Logger log = LogManager.getLogger();
+
+	private final File dir;
+	private final int segmentBytes;
+	// Oldest first. Copy on write, so readers never see a segment half added
+	private final List<HistorySegment> segments = new CopyOnWriteArrayList<HistorySegment>();
+	private HistorySegment active;
+
+	/**
+	 * A position in the log, which reads forward one record at a time. It
+	 * follows the active segment as it grows, and carries on over the rest of
+	 * a segment deleted under it.
+	 */
+	public class Cursor {
+		private HistorySegment segment;
+		private ByteBuffer records;
+		// Records before these are skipped
+		private final long minOffset;
+		private final long minTimestamp;
+		private long offset;
+		private long timestamp;
+		private ByteBuffer message;
+
+		private Cursor(HistorySegment segment, long minOffset, long minTimestamp) {
+			this.segment = segment;
+			this.minOffset = minOffset;
+			this.minTimestamp = minTimestamp;
+			records = segment.records();
+		}
+
+		/** Moves to the next record, returning false at the end of the log */
+		public boolean next() {
+			while (true) {
+				if (records.remaining() < HistorySegment.HEADER_LENGTH) {
+					// Pick up anything appended since the view was taken
+					int position = records.position();
+					records = segment.records();
+					records.position(position);
+				}
+				if (records.remaining() < HistorySegment.HEADER_LENGTH) {
+					HistorySegment following = segmentAfter(segment);
+					if (following == null) {
+						return false;
+					}
+					segment = following;
+					records = segment.records();
+					continue;
+				}
+				int length = records.getInt();
+				offset = records.getLong();
+				timestamp = records.getLong();
+				message = records.slice();
+				message.limit(length);
+				records.position(records.position() + length);
+				if (offset >= minOffset && timestamp >= minTimestamp) {
+					return true;
+				}
+			}
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** The message, as the JSON line it was relayed as, viewed in place */
+		public ByteBuffer getMessage() {
+			return message.duplicate();
+		}
+	}
+
+	private HistoryLog(File dir, int segmentBytes) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+	}
+
+	/** Opens the log in the given directory, picking up any segments already there */
+	public static HistoryLog open(File dir, int segmentBytes) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create the history directory " + dir);
+		}
+		HistoryLog history = new HistoryLog(dir, segmentBytes);
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			if (HistorySegment.isSegment(file)) {
+				history.segments.add(HistorySegment.open(file, segmentBytes));
+			}
+		}
+		if (history.segments.isEmpty()) {
+			history.segments.add(HistorySegment.create(dir, 0, segmentBytes));
+		}
+		history.active = history.segments.get(history.segments.size() - 1);
+		log.info("opened history in " + dir + " with " + history.segments.size() + " segments, next offset "
+				+ history.getNextOffset());
+		return history;
+	}
+
+	/**
+	 * Appends a message, starting a new segment if the active one is full.
+	 * Returns its offset, or -1 if it could not be written.
+	 */
+	public synchronized long append(long timestamp, ByteBuffer message) {
+		long offset = active.getNextOffset();
+		if (active.append(offset, timestamp, message.duplicate())) {
+			return offset;
+		}
+		if (HistorySegment.HEADER_LENGTH + message.remaining() > segmentBytes) {
+			log.error("message of " + message.remaining() + " bytes is too large for the history");
+			return -1;
+		}
+		try {
+			active.force();
+			active = HistorySegment.create(dir, offset, segmentBytes);
+			segments.add(active);
+		} catch (IOException e) {
+			log.error("could not start a new history segment: " + e);
+			return -1;
+		}
+		active.append(offset, timestamp, message.duplicate());
+		return offset;
+	}
+
+	/** The offset the next message appended will have */
+	public synchronized long getNextOffset() {
+		return active.getNextOffset();
+	}
+
+	/**
+	 * Writes everything appended so far out to the disk, without holding up
+	 * appends meanwhile. A full segment is written out as it is replaced.
+	 */
+	public void sync() {
+		HistorySegment segment;
+		synchronized (this) {
+			segment = active;
+		}
+		segment.force();
+	}
+
+	/** A cursor over the records from the given offset on */
+	public Cursor fromOffset(long offset) {
+		HistorySegment from = null;
+		for (HistorySegment segment : segments) {
+			if (from == null || segment.getBaseOffset() <= offset) {
+				from = segment;
+			}
+		}
+		return new Cursor(from, offset, Long.MIN_VALUE);
+	}
+
+	/** A cursor over the records from the given time on, in milliseconds */
+	public Cursor fromTime(long timestamp) {
+		HistorySegment from = null;
+		for (HistorySegment segment : segments) {
+			// Falls back to the newest segment if none is recent enough
+			from = segment;
+			if (!segment.isEmpty() && segment.getLastTimestamp() >= timestamp) {
+				break;
+			}
+		}
+		return new Cursor(from, Long.MIN_VALUE, timestamp);
+	}
+
+	/** The oldest segment after the given one, or null if it is the newest */
+	private HistorySegment segmentAfter(HistorySegment segment) {
+		for (HistorySegment following : segments) {
+			if (following.getBaseOffset() > segment.getBaseOffset()) {
+				return following;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes the oldest segments while the log is larger than maxBytes, or
+	 * while their newest record is older than maxAge milliseconds before now.
+	 * The active segment is never deleted.
+	 */
+	public synchronized void retain(long maxBytes, long maxAge, long now) {
+		long total = 0;
+		for (HistorySegment segment : segments) {
+			total += segment.size();
+		}
+		while (segments.size() > 1) {
+			HistorySegment oldest = segments.get(0);
+			if (total <= maxBytes && oldest.getLastTimestamp() >= now - maxAge) {
+				break;
+			}
+			segments.remove(0);
+			total -= oldest.size();
+			if (!oldest.delete()) {
+				log.error("could not delete history segment " + oldest);
+			}
+			log.debug("deleted history segment " + oldest);
+		}
+	}
+}
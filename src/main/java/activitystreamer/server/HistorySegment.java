@@ -0,0 +1,155 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One file of a {@link HistoryLog}, mapped into memory at its full size when
+ * it is created. Records are appended one after another:
+ *
+ * int length | long offset | long timestamp | length bytes of message
+ *
+ * and the unwritten rest of the file is zeros, so a length of 0 marks the end.
+ * Readers only read up to the end published after each record is complete, so
+ * they can follow the segment while it is appended to.
+ */
+class HistorySegment {
+	static final int HEADER_LENGTH = 20;
+	private static final String SUFFIX = ".log";
+
+	private final File file;
+	private final long baseOffset;
+	private final MappedByteBuffer buffer;
+	// The position after the last complete record
+	private volatile int end = 0;
+	private long nextOffset;
+	private volatile long firstTimestamp = Long.MAX_VALUE;
+	private volatile long lastTimestamp = Long.MIN_VALUE;
+
+	private HistorySegment(File file, long baseOffset, int size) throws IOException {
+		this.file = file;
+		this.baseOffset = baseOffset;
+		nextOffset = baseOffset;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid once the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+		}
+	}
+
+	/** Creates an empty segment whose first record has the given offset */
+	static HistorySegment create(File dir, long baseOffset, int size) throws IOException {
+		return new HistorySegment(new File(dir, String.format("%020d", baseOffset) + SUFFIX), baseOffset, size);
+	}
+
+	/** Opens a segment left by an earlier run, finding the end of its records */
+	static HistorySegment open(File file, int size) throws IOException {
+		String name = file.getName();
+		long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		HistorySegment segment = new HistorySegment(file, baseOffset, size);
+		segment.recover();
+		return segment;
+	}
+
+	static boolean isSegment(File file) {
+		return file.getName().matches("\\d{20}" + SUFFIX.replace(".", "\\."));
+	}
+
+	private void recover() {
+		int position = 0;
+		while (position + HEADER_LENGTH <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER_LENGTH + length > buffer.capacity()) {
+				break;
+			}
+			long timestamp = buffer.getLong(position + 12);
+			firstTimestamp = Math.min(firstTimestamp, timestamp);
+			lastTimestamp = Math.max(lastTimestamp, timestamp);
+			nextOffset = buffer.getLong(position + 4) + 1;
+			position += HEADER_LENGTH + length;
+		}
+		end = position;
+	}
+
+	/**
+	 * Appends a record, returning false if there is no room left for it. Only
+	 * called by one thread at a time.
+	 */
+	boolean append(long offset, long timestamp, ByteBuffer message) {
+		int length = message.remaining();
+		int position = end;
+		if (position + HEADER_LENGTH + length > buffer.capacity()) {
+			return false;
+		}
+		buffer.putLong(position + 4, offset);
+		buffer.putLong(position + 12, timestamp);
+		ByteBuffer body = buffer.duplicate();
+		body.position(position + HEADER_LENGTH);
+		body.put(message);
+		// The length goes in last, so a record cut short by a crash reads as the end
+		buffer.putInt(position, length);
+		if (firstTimestamp == Long.MAX_VALUE) {
+			firstTimestamp = timestamp;
+		}
+		lastTimestamp = timestamp;
+		nextOffset = offset + 1;
+		end = position + HEADER_LENGTH + length;
+		return true;
+	}
+
+	/**
+	 * Writes what has been appended out to the disk. Only the pages changed
+	 * since the last call are written, and appends may carry on meanwhile.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	/** A read only view of the complete records, from the start of the segment */
+	ByteBuffer records() {
+		ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.position(0);
+		view.limit(end);
+		return view;
+	}
+
+	boolean isEmpty() {
+		return end == 0;
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	/** The offset the next record appended will have */
+	long getNextOffset() {
+		return nextOffset;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/** The bytes taken by records */
+	int size() {
+		return end;
+	}
+
+	/** Deletes the file. Readers still holding a view of the mapping can finish */
+	boolean delete() {
+		return file.delete();
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+}
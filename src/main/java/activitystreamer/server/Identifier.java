@@ -8,7 +8,7 @@ import java.util.UUID;
  * the pairs in a consistent and deterministic order, so that there is agreement
  * on the ordering
  */
-public class Identifier {
+public class Identifier implements Comparable<Identifier> {
 
 	UUID uuid1;
 	UUID uuid2;
@@ -31,6 +31,25 @@ public class Identifier {
 		return uuid2;
 	}
 
+	public int compareTo(Identifier other) {
+		int c = uuid1.compareTo(other.uuid1);
+		return c != 0 ? c : uuid2.compareTo(other.uuid2);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Identifier)) {
+			return false;
+		}
+		Identifier other = (Identifier) o;
+		return uuid1.equals(other.uuid1) && uuid2.equals(other.uuid2);
+	}
+
+	@Override
+	public int hashCode() {
+		return uuid1.hashCode() * 31 + uuid2.hashCode();
+	}
+
 	@Override
 	public String toString() {
 		return "UUID 1 " + uuid1.toString() + "\nUUID2 " + uuid2.toString();
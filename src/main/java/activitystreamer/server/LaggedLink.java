@@ -0,0 +1,193 @@
+package activitystreamer.server;
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.LinkModel;
+
+/**
+ * Simulates the lag on an edge to another server. Messages are queued with the
+ * time at which they become due, and a single task per link sends them in the
+ * order they were queued. Due times never decrease along the queue, so queuing
+ * a message costs O(1) and the head of the queue is always the next to leave.
+ *
+ * The {@link LinkModel} of the connection further impairs the link: the delay
+ * of each message is drawn from its distribution about the lag, unless the
+ * transport draws it about a latency of its own, a message waits for the
+ * link's token bucket to hold its size in bytes before its delay starts, and
+ * messages may be dropped or queued twice. A traced message is not charged
+ * for bandwidth, as its frame is only built when it is sent.
+ *
+ * In virtual time the link has no thread of its own. Instead a task on the
+ * {@link VirtualClock} sends the messages at the head of the queue once they
+ * are due, and is scheduled again for the next one.
+ */
+public class LaggedLink implements Runnable {
+	private static final Logger log = LogManager.getLogger();
+	// Queued to wake up the sending task when the link is closed
+	private static final LaggedMessage CLOSED = new LaggedMessage(null, null, 0, 0);
+
+	private final Connection connection;
+	private final LinkedBlockingQueue<LaggedMessage> queue = new LinkedBlockingQueue<LaggedMessage>();
+	private long lastDueTime = Long.MIN_VALUE;
+	private volatile boolean term = false;
+	private final VirtualClock clock;
+	// Records how long each message waited
+	private final Histogram delay;
+	// Draws the delays and losses of the link model, seeded in virtual time
+	private final Random random;
+	// Limits the bandwidth of the link, for the model it was made for
+	private TokenBucket bandwidth;
+	private LinkModel bandwidthModel;
+	// Whether a task is scheduled to send the head of the queue, in virtual time
+	private boolean sendScheduled = false;
+	private final Runnable sendDue = new Runnable() {
+		public void run() {
+			sendDue();
+		}
+	};
+
+	LaggedLink(Connection connection, VirtualClock clock, Histogram delay) {
+		this.connection = connection;
+		this.clock = clock;
+		this.delay = delay;
+		random = clock != null ? clock.getRandom() : new Random();
+	}
+
+	/**
+	 * Queues a frame to be sent once the lag of the link has passed. The caller
+	 * hands over one reference to the frame.
+	 */
+	public void send(SharedFrame frame) {
+		enqueue(frame, null);
+	}
+
+	/** Queues a traced message, whose frame is built once the lag has passed */
+	public void send(TraceHop trace) {
+		enqueue(null, trace);
+	}
+
+	private void enqueue(SharedFrame frame, TraceHop trace) {
+		ServerConnectionInformation info = (ServerConnectionInformation) connection.getConnectionInformation();
+		int lag = info.getLag();
+		LinkModel model = info.getLinkModel();
+		synchronized (this) {
+			long now = nanoTime();
+			if (model.drop(random)) {
+				log.trace("link model dropped a message to " + connection.getAddress());
+				if (frame != null) {
+					frame.release();
+				}
+				return;
+			}
+			long start = now;
+			if (model.getBandwidth() > 0 && frame != null) {
+				start = bandwidth(model, now).reserve(frame.length(), now);
+			}
+			// If the lag is lowered, or a delay drawn shorter than the last, hold
+			// messages back so they cannot overtake earlier ones
+			long base = TimeUnit.MILLISECONDS.toNanos(lag);
+			lastDueTime = Math.max(lastDueTime, start + (connection.drawsDelays() ? base : model.delay(base, random)));
+			queue.add(new LaggedMessage(frame, trace, now, lastDueTime));
+			if (model.duplicate(random)) {
+				log.trace("link model duplicated a message to " + connection.getAddress());
+				queue.add(new LaggedMessage(frame != null ? frame.retain() : null, trace, now, lastDueTime));
+			}
+			if (clock != null) {
+				scheduleSend();
+			}
+		}
+	}
+
+	/** The token bucket for the model's bandwidth, started afresh if the model has changed */
+	private TokenBucket bandwidth(LinkModel model, long now) {
+		if (bandwidthModel != model) {
+			bandwidthModel = model;
+			bandwidth = new TokenBucket(model.getBandwidth(), model.getBurst(), now);
+		}
+		return bandwidth;
+	}
+
+	private long nanoTime() {
+		return clock != null ? clock.nanoTime() : System.nanoTime();
+	}
+
+	public void close() {
+		term = true;
+		if (clock != null) {
+			release();
+		} else {
+			queue.add(CLOSED);
+		}
+	}
+
+	private synchronized void scheduleSend() {
+		LaggedMessage head = queue.peek();
+		if (!sendScheduled && head != null && !term) {
+			sendScheduled = true;
+			clock.schedule(sendDue, head.getDueTime() - clock.nanoTime());
+		}
+	}
+
+	/** Sends the messages which are due, in virtual time */
+	private void sendDue() {
+		synchronized (this) {
+			sendScheduled = false;
+		}
+		LaggedMessage lagged;
+		while (!term && (lagged = queue.peek()) != null && lagged.getDueTime() <= clock.nanoTime()) {
+			queue.poll();
+			forward(lagged);
+		}
+		if (term) {
+			release();
+		} else {
+			scheduleSend();
+		}
+	}
+
+	public void run() {
+		try {
+			while (!term) {
+				LaggedMessage lagged = queue.take();
+				if (lagged == CLOSED) {
+					break;
+				}
+				long wait = lagged.getDueTime() - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				forward(lagged);
+			}
+		} catch (InterruptedException e) {
+			log.info("lagged link interrupted, dropping " + queue.size() + " messages");
+		}
+		release();
+	}
+
+	private void forward(LaggedMessage lagged) {
+		delay.record(nanoTime() - lagged.getQueuedTime());
+		if (lagged.getTrace() != null) {
+			SharedFrame frame = lagged.getTrace().sent(connection.getWireFormat());
+			if (frame != null) {
+				connection.writeFrame(frame);
+			}
+		} else {
+			connection.writeFrame(lagged.getFrame());
+		}
+	}
+
+	/** Drops the messages which were never sent */
+	private void release() {
+		LaggedMessage lagged;
+		while ((lagged = queue.poll()) != null) {
+			if (lagged.getFrame() != null) {
+				lagged.getFrame().release();
+			}
+		}
+	}
+}
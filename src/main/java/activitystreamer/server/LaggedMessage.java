@@ -1,27 +1,37 @@
 package activitystreamer.server;
 
-import org.json.simple.JSONObject;
+/**
+ * A message waiting on a {@link LaggedLink} for its simulated lag to pass.
+ */
+public class LaggedMessage {
+	private SharedFrame frame;
+	// Set instead of the frame for a traced message
+	private TraceHop trace;
+	// The time from System.nanoTime(), or the virtual clock, at which the message may be sent
+	private long dueTime;
+	// The time, on the same clock, at which the message was queued
+	private long queuedTime;
 
-public class LaggedMessage implements Runnable  {
-	private JSONObject jsonMessage;
-	int lag;
-	private Connection connection;
-	
-	LaggedMessage(JSONObject message, int lag, Connection connection) {
-		jsonMessage = message;
-		this.lag = lag;
-		this.connection = connection;
+	LaggedMessage(SharedFrame frame, TraceHop trace, long queuedTime, long dueTime) {
+		this.frame = frame;
+		this.trace = trace;
+		this.queuedTime = queuedTime;
+		this.dueTime = dueTime;
 	}
-	
-	public void run () {
-		try {
-			Thread.sleep(lag);
-			connection.writeMsg(jsonMessage.toJSONString());
-		} catch (InterruptedException e) {
-			System.out.println("Interrupted Exception");
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+
+	public SharedFrame getFrame() {
+		return frame;
+	}
+
+	public TraceHop getTrace() {
+		return trace;
+	}
+
+	public long getDueTime() {
+		return dueTime;
+	}
+
+	public long getQueuedTime() {
+		return queuedTime;
 	}
-	
 }
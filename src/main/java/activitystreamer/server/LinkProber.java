@@ -0,0 +1,122 @@
+package activitystreamer.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Settings;
+import activitystreamer.util.Strings;
+
+/**
+ * Measures the round trip time of every server link. Pings are sent through
+ * the {@link LaggedLink} of the link, behind any chat already queued on it,
+ * and the other server echoes them back the same way, so the simulated lag at
+ * both ends is part of what is measured. In virtual time the rounds are
+ * scheduled on the {@link VirtualClock}, which also times the pings.
+ */
+public class LinkProber extends Thread {
+	private static final Logger log = LogManager.getLogger();
+
+	private final ConnectionRegistry registry;
+	private final Executor controlPlane;
+	private final Runnable round;
+	private final VirtualClock clock;
+	private volatile boolean term = false;
+
+	/**
+	 * @param afterRound run on the control plane after each round of pings has
+	 *                   been sent
+	 */
+	LinkProber(ConnectionRegistry registry, Executor controlPlane, VirtualClock clock, final Runnable afterRound) {
+		super("link-prober");
+		setDaemon(true);
+		this.registry = registry;
+		this.controlPlane = controlPlane;
+		this.clock = clock;
+		round = new Runnable() {
+			public void run() {
+				for (Connection con : LinkProber.this.registry.getServers()) {
+					ping(con);
+				}
+				afterRound.run();
+			}
+		};
+	}
+
+	/** Starts the thread, or in virtual time schedules the first round */
+	@Override
+	public synchronized void start() {
+		if (clock == null) {
+			super.start();
+		} else {
+			scheduleRound();
+		}
+	}
+
+	private void scheduleRound() {
+		clock.schedule(new Runnable() {
+			public void run() {
+				if (!term) {
+					controlPlane.execute(round);
+					scheduleRound();
+				}
+			}
+		}, TimeUnit.MILLISECONDS.toNanos(Settings.getProbeInterval()));
+	}
+
+	@Override
+	public void run() {
+		while (!term) {
+			try {
+				Thread.sleep(Settings.getProbeInterval());
+			} catch (InterruptedException e) {
+				break;
+			}
+			controlPlane.execute(round);
+		}
+	}
+
+	private long nanoTime() {
+		return clock != null ? clock.nanoTime() : System.nanoTime();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void ping(Connection con) {
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.PING, nanoTime());
+		send(con, jobj);
+	}
+
+	/** Echoes the ping back. Runs on the thread which read it. */
+	@SuppressWarnings("unchecked")
+	void receivePing(Connection con, JSONObject msg) {
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.PONG, msg.get(Strings.PING));
+		send(con, jobj);
+	}
+
+	/** Records the round trip time of one of our pings. Runs on the thread which read it. */
+	void receivePong(Connection con, JSONObject msg) {
+		long sent = ((Number) msg.get(Strings.PONG)).longValue();
+		long rtt = nanoTime() - sent;
+		ServerConnectionInformation info = (ServerConnectionInformation) con.getConnectionInformation();
+		info.recordRtt(rtt);
+		log.trace("rtt to " + con.getAddress() + " " + rtt / 1000 + "us, average "
+				+ info.getAverageRtt() + "us");
+	}
+
+	private static void send(Connection con, JSONObject jobj) {
+		ServerConnectionInformation info = (ServerConnectionInformation) con.getConnectionInformation();
+		info.getLaggedLink().send(con.getWireFormat().encode(jobj));
+	}
+
+	public void setTerm(boolean term) {
+		this.term = term;
+		if (term && clock == null) {
+			interrupt();
+		}
+	}
+}
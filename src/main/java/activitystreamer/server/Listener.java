@@ -14,8 +14,10 @@ public class Listener extends Thread{
 	private ServerSocket serverSocket=null;
 	private boolean term = false;
 	private int portnum;
+	private final SocketTransport transport;
 	
-	public Listener() throws IOException{
+	public Listener(SocketTransport transport) throws IOException{
+		this.transport = transport;
 		portnum = Settings.getLocalPort(); // keep our own copy in case it changes later
 		serverSocket = new ServerSocket(portnum);
 		start();
@@ -28,7 +30,7 @@ public class Listener extends Thread{
 			Socket clientSocket;
 			try {
 				clientSocket = serverSocket.accept();
-				Control.getInstance().incomingConnection(clientSocket);
+				transport.accepted(clientSocket);
 			} catch (IOException e) {
 				log.info("received exception, shutting down");
 				term=true;
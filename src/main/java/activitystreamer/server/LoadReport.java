@@ -0,0 +1,104 @@
+package activitystreamer.server;
+
+import java.util.UUID;
+
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Strings;
+
+/**
+ * The load of one server, as it announces it to the rest of the network: how
+ * many clients it has, how many bytes are queued for them, and how busy its
+ * CPU is. Each server numbers its announcements, so an old one which arrives
+ * late over another path never replaces a newer one.
+ */
+public class LoadReport implements Comparable<LoadReport> {
+	private final UUID server;
+	// Where clients redirected to the server connect to
+	private final String hostname;
+	private final int port;
+	private final int clients;
+	private final long queued; // bytes
+	private final double cpu; // 0 to 1, or negative if unknown
+	private final long seq;
+
+	public LoadReport(UUID server, String hostname, int port, int clients, long queued, double cpu, long seq) {
+		this.server = server;
+		this.hostname = hostname;
+		this.port = port;
+		this.clients = clients;
+		this.queued = queued;
+		this.cpu = cpu;
+		this.seq = seq;
+	}
+
+	public UUID getServer() {
+		return server;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getClients() {
+		return clients;
+	}
+
+	public long getQueued() {
+		return queued;
+	}
+
+	public double getCpu() {
+		return cpu;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	/** The same report with one more client, once one has been sent there */
+	LoadReport withClient() {
+		return new LoadReport(server, hostname, port, clients + 1, queued, cpu, seq);
+	}
+
+	/** Servers with fewer clients are less loaded, then those with less queued, then less CPU */
+	public int compareTo(LoadReport other) {
+		if (clients != other.clients) {
+			return Integer.compare(clients, other.clients);
+		}
+		if (queued != other.queued) {
+			return Long.compare(queued, other.queued);
+		}
+		return Double.compare(cpu, other.cpu);
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.UUID, server.toString());
+		jobj.put(Strings.HOSTNAME, hostname);
+		jobj.put(Strings.PORT, port);
+		jobj.put(Strings.CLIENTS, clients);
+		jobj.put(Strings.QUEUED, queued);
+		jobj.put(Strings.CPU, cpu);
+		jobj.put(Strings.SEQ, seq);
+		return jobj;
+	}
+
+	/** Reads a report, throwing an exception if a field is missing or of the wrong type */
+	public static LoadReport fromJSON(JSONObject jobj) {
+		return new LoadReport(UUID.fromString((String) jobj.get(Strings.UUID)), (String) jobj.get(Strings.HOSTNAME),
+				((Number) jobj.get(Strings.PORT)).intValue(), ((Number) jobj.get(Strings.CLIENTS)).intValue(),
+				((Number) jobj.get(Strings.QUEUED)).longValue(), ((Number) jobj.get(Strings.CPU)).doubleValue(),
+				((Number) jobj.get(Strings.SEQ)).longValue());
+	}
+
+	@Override
+	public String toString() {
+		return server + " at " + hostname + ":" + port + " with " + clients + " clients, " + queued + " bytes queued";
+	}
+}
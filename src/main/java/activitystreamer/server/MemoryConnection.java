@@ -0,0 +1,218 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.LinkModel;
+
+/**
+ * One end of a connection on a {@link MemoryNetwork}. Frames taken off the
+ * outbound queue are copied, held for the latency of the link, and then fed
+ * to the decoder at the other end, exactly as if they had been read from a
+ * socket. At most one task per direction is moving frames at any time, so they
+ * arrive in the order they were sent.
+ *
+ * Between servers the delay of each frame is drawn from the {@link LinkModel}
+ * of the link about its latency, so that jitter is centred on the delay the
+ * link really has. A frame is never delivered before the one ahead of it.
+ */
+public class MemoryConnection extends Connection {
+	private static final Logger log = LogManager.getLogger();
+	// Queued behind the last frame when the connection is to close once it has been delivered
+	private static final InFlight CLOSE = new InFlight(null, 0);
+
+	private static class InFlight {
+		final byte[] frame;
+		final long dueTime;
+
+		InFlight(byte[] frame, long dueTime) {
+			this.frame = frame;
+			this.dueTime = dueTime;
+		}
+	}
+
+	private final MemoryNetwork network;
+	private final String address;
+	private final long latency; // nanoseconds
+	// The impairment of this link in particular, or null for the one in the settings
+	private final LinkModel linkModel;
+	// When the last frame sent is due, which no later frame may overtake
+	private long lastDueTime = Long.MIN_VALUE;
+	// Whether both ends are servers, whose frames are counted
+	private final boolean counted;
+	// Where the frames received go, if not to the server
+	private final FrameDecoder.Handler handler;
+	private MemoryConnection peer;
+
+	private final ArrayList<SharedFrame> taken = new ArrayList<SharedFrame>();
+	private final ArrayDeque<InFlight> inFlight = new ArrayDeque<InFlight>();
+	private boolean deliveryScheduled = false;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+	private final Runnable deliverTask = new Runnable() {
+		public void run() {
+			deliver();
+		}
+	};
+
+	MemoryConnection(Control control, MemoryNetwork network, String address, long latency, LinkModel linkModel,
+			boolean counted, FrameDecoder.Handler handler) throws IOException {
+		super(control, null, false);
+		this.network = network;
+		this.address = address + "#" + getId();
+		this.latency = latency;
+		this.linkModel = linkModel;
+		this.counted = counted;
+		this.handler = handler != null ? handler : frameHandler;
+	}
+
+	void pair(MemoryConnection peer) {
+		this.peer = peer;
+		peer.peer = this;
+	}
+
+	@Override
+	public String getAddress() {
+		return address;
+	}
+
+	@Override
+	public LinkModel getLinkModel() {
+		return linkModel;
+	}
+
+	@Override
+	protected boolean drawsDelays() {
+		return true;
+	}
+
+	/** The delay of the next frame, drawn about the latency if this is a server link */
+	private long delay() {
+		ConnectionInformation info = getConnectionInformation();
+		if (!(info instanceof ServerConnectionInformation)) {
+			return latency;
+		}
+		return ((ServerConnectionInformation) info).getLinkModel().delay(latency, network.getRandom());
+	}
+
+	@Override
+	protected void frameQueued() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			network.execute(flushTask);
+		}
+	}
+
+	/** Moves everything on the outbound queue onto the link */
+	private void flush() {
+		boolean drained;
+		synchronized (taken) {
+			while (outbound.poll(taken, MAX_BATCH_FRAMES, Integer.MAX_VALUE) > 0) {
+				long now = network.nanoTime();
+				for (SharedFrame frame : taken) {
+					lastDueTime = Math.max(lastDueTime, now + delay());
+					ByteBuffer view = frame.buffer();
+					byte[] copy = new byte[view.remaining()];
+					view.get(copy);
+					if (counted) {
+						network.sent(copy);
+					}
+					send(new InFlight(copy, lastDueTime));
+				}
+				release(taken);
+			}
+			drained = outbound.isDrained();
+		}
+		if (drained) {
+			// The last frame has been written, close once it has arrived
+			send(CLOSE);
+		}
+	}
+
+	private void send(InFlight frame) {
+		synchronized (inFlight) {
+			inFlight.add(frame);
+			scheduleDelivery();
+		}
+	}
+
+	private void scheduleDelivery() {
+		if (!deliveryScheduled && !inFlight.isEmpty()) {
+			deliveryScheduled = true;
+			network.schedule(deliverTask, inFlight.peek().dueTime - network.nanoTime());
+		}
+	}
+
+	/** Hands the frames which are due to the other end */
+	private void deliver() {
+		while (true) {
+			InFlight frame;
+			synchronized (inFlight) {
+				frame = inFlight.peek();
+				if (frame == null || (frame != CLOSE && frame.dueTime > network.nanoTime())) {
+					deliveryScheduled = false;
+					scheduleDelivery();
+					return;
+				}
+				inFlight.poll();
+			}
+			if (frame == CLOSE) {
+				closeCon();
+				return;
+			}
+			peer.receive(frame.frame);
+		}
+	}
+
+	private void receive(byte[] frame) {
+		if (!isOpen()) {
+			return;
+		}
+		traffic.bytesIn(frame.length);
+		try {
+			if (decoder.feed(frame, 0, frame.length, handler)) {
+				closeCon();
+			}
+		} catch (ProtocolException e) {
+			log.error("connection " + address + " sent an invalid frame: " + e.getMessage());
+			closeCon();
+		}
+	}
+
+	/** Closes both ends, dropping anything still on the link */
+	@Override
+	public void closeCon() {
+		if (closed()) {
+			log.info("closing connection " + address);
+			peer.closed();
+		}
+	}
+
+	private boolean closed() {
+		synchronized (this) {
+			if (!isOpen()) {
+				return false;
+			}
+			setOpen(false);
+		}
+		outbound.close();
+		synchronized (inFlight) {
+			inFlight.clear();
+		}
+		if (control != null) {
+			control.connectionClosed(this);
+		}
+		return true;
+	}
+}
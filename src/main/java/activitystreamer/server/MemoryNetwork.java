@@ -0,0 +1,187 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import activitystreamer.util.LinkModel;
+
+/**
+ * Joins servers running in the same JVM without sockets. Each server listens
+ * on a port of the network through its own {@link MemoryTransport}, and every
+ * connection delivers its frames to the other end after the latency of the
+ * link, in the order they were sent, on a shared pool of threads.
+ *
+ * Frames sent between servers are counted by type, so that the cost of the
+ * protocol can be measured.
+ *
+ * Given a {@link VirtualClock}, the frames are delivered in virtual time by
+ * the thread driving the clock instead.
+ */
+public class MemoryNetwork {
+	// Frame types are counted at their own index, with JSON lines at 0
+	private static final int FRAME_TYPES = 8;
+
+	private final ConcurrentHashMap<Integer, MemoryTransport> servers = new ConcurrentHashMap<Integer, MemoryTransport>();
+	private final ConcurrentHashMap<Long, Long> latencies = new ConcurrentHashMap<Long, Long>();
+	private final ConcurrentHashMap<Long, LinkModel> linkModels = new ConcurrentHashMap<Long, LinkModel>();
+	// Draws the delays of impaired links, from the virtual clock if there is one
+	private final Random random;
+	private final ScheduledThreadPoolExecutor executor;
+	private final VirtualClock clock;
+	private volatile boolean shutdown = false;
+	private volatile long defaultLatency = 0; // nanoseconds
+
+	private final AtomicLongArray frames = new AtomicLongArray(FRAME_TYPES);
+	private final AtomicLong bytes = new AtomicLong();
+
+	public MemoryNetwork(int threads) {
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads));
+		executor.setRemoveOnCancelPolicy(true);
+		clock = null;
+		random = new Random();
+	}
+
+	/** A network which delivers frames in virtual time */
+	public MemoryNetwork(VirtualClock clock) {
+		executor = null;
+		this.clock = clock;
+		random = clock.getRandom();
+	}
+
+	/** Sets the one way latency of links which have not been given their own */
+	public void setDefaultLatency(long latency, TimeUnit unit) {
+		defaultLatency = unit.toNanos(latency);
+	}
+
+	/** Sets the one way latency of the link between two ports, in both directions */
+	public void setLatency(int port1, int port2, long latency, TimeUnit unit) {
+		latencies.put(linkKey(port1, port2), unit.toNanos(latency));
+	}
+
+	/**
+	 * Impairs the link between two ports in both directions, in place of the
+	 * link model in the settings
+	 */
+	public void setLinkModel(int port1, int port2, LinkModel model) {
+		linkModels.put(linkKey(port1, port2), model);
+	}
+
+	private long latency(int port1, int port2) {
+		Long latency = latencies.get(linkKey(port1, port2));
+		return latency != null ? latency : defaultLatency;
+	}
+
+	private static long linkKey(int port1, int port2) {
+		return ((long) Math.min(port1, port2) << 32) | (Math.max(port1, port2) & 0xffffffffL);
+	}
+
+	void bind(int port, MemoryTransport transport) throws IOException {
+		if (servers.putIfAbsent(port, transport) != null) {
+			throw new IOException("port " + port + " is already in use");
+		}
+	}
+
+	void unbind(int port, MemoryTransport transport) {
+		servers.remove(port, transport);
+	}
+
+	/** Connects a server to the one listening on the given port */
+	Connection connect(MemoryTransport from, int port) throws IOException {
+		MemoryTransport to = servers.get(port);
+		if (to == null) {
+			throw new IOException("connection refused by port " + port);
+		}
+		long latency = latency(from.getPort(), port);
+		LinkModel model = linkModels.get(linkKey(from.getPort(), port));
+		MemoryConnection local = new MemoryConnection(from.getControl(), this, "memory:" + port, latency, model, true,
+				null);
+		MemoryConnection remote = new MemoryConnection(to.getControl(), this, "memory:" + from.getPort(), latency,
+				model, true, null);
+		local.pair(remote);
+		to.getControl().incomingConnection(remote);
+		return local;
+	}
+
+	/**
+	 * Connects something other than a server, such as a simulated client, to the
+	 * server listening on the given port. The frames it receives go to the
+	 * handler.
+	 */
+	public Connection connectClient(int port, FrameDecoder.Handler handler) throws IOException {
+		MemoryTransport to = servers.get(port);
+		if (to == null) {
+			throw new IOException("connection refused by port " + port);
+		}
+		MemoryConnection local = new MemoryConnection(null, this, "memory:" + port, defaultLatency, null, false,
+				handler);
+		MemoryConnection remote = new MemoryConnection(to.getControl(), this, "memory:client", defaultLatency, null,
+				false, null);
+		local.pair(remote);
+		to.getControl().incomingConnection(remote);
+		return local;
+	}
+
+	void execute(Runnable task) {
+		schedule(task, 0);
+	}
+
+	/** Runs a task after the delay in nanoseconds, unless the network has shut down */
+	void schedule(Runnable task, long delay) {
+		if (shutdown) {
+			return;
+		}
+		if (clock != null) {
+			clock.schedule(task, delay);
+		} else if (delay <= 0) {
+			executor.execute(task);
+		} else {
+			executor.schedule(task, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/** Counts a frame sent from one server to another */
+	void sent(byte[] frame) {
+		int type = frame.length > 0 && BinaryCodec.isFrameType(frame[0]) ? frame[0] : 0;
+		frames.incrementAndGet(type);
+		bytes.addAndGet(frame.length);
+	}
+
+	/** The number of frames of the given type sent between servers, with 0 for JSON lines */
+	public long getFrames(int type) {
+		return frames.get(type);
+	}
+
+	/** The number of frames of any type sent between servers */
+	public long getFrames() {
+		long total = 0;
+		for (int i = 0; i < FRAME_TYPES; i++) {
+			total += frames.get(i);
+		}
+		return total;
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	Random getRandom() {
+		return random;
+	}
+
+	/** The time frames are delivered by, from the virtual clock if there is one */
+	public long nanoTime() {
+		return clock != null ? clock.nanoTime() : System.nanoTime();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+
+/**
+ * Connects a server to others in the same JVM through a {@link MemoryNetwork}.
+ * The hostname of a connection is ignored, only the port is used.
+ */
+public class MemoryTransport implements Transport {
+	private final MemoryNetwork network;
+	private final int port;
+	private Control control;
+
+	public MemoryTransport(MemoryNetwork network, int port) {
+		this.network = network;
+		this.port = port;
+	}
+
+	public void listen(Control control) throws IOException {
+		this.control = control;
+		network.bind(port, this);
+	}
+
+	public Connection connect(Control control, String hostname, int port) throws IOException {
+		return network.connect(this, port);
+	}
+
+	public void close() {
+		network.unbind(port, this);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	Control getControl() {
+		return control;
+	}
+}
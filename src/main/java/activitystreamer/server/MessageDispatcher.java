@@ -0,0 +1,229 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import activitystreamer.util.Strings;
+
+/**
+ * Identifies the type of each incoming message from its keys, and hands it to
+ * the handler registered for that type. JSON lines are scanned with a
+ * streaming reader: only the values a handler asked for are read, everything
+ * else is skipped, and chat messages are relayed as the line they arrived as.
+ *
+ * Chat is relayed on the thread which read it. Every other handler runs on the
+ * control plane. Handlers must all be registered before any connection starts
+ * reading.
+ */
+public class MessageDispatcher {
+	private static final Logger log = LogManager.getLogger();
+
+	private static class Registration {
+		final int priority;
+		final ConnectionRole role;
+		final MessageHandler handler;
+		final boolean direct;
+
+		Registration(int priority, ConnectionRole role, MessageHandler handler, boolean direct) {
+			this.priority = priority;
+			this.role = role;
+			this.handler = handler;
+			this.direct = direct;
+		}
+	}
+
+	private final Map<String, Registration> handlers = new HashMap<String, Registration>();
+	// The keys whose values are read, over all the handlers
+	private final Set<String> fields = new HashSet<String>();
+	private ChatHandler chatHandler;
+	private final Executor controlPlane;
+	private final ConnectionRegistry registry;
+
+	public MessageDispatcher(Executor controlPlane, ConnectionRegistry registry) {
+		this.controlPlane = controlPlane;
+		this.registry = registry;
+	}
+
+	/** Sets the handler for messages with a "message" key */
+	public void setChatHandler(ChatHandler chatHandler) {
+		this.chatHandler = chatHandler;
+	}
+
+	/**
+	 * Registers the handler for messages containing the given key. A message
+	 * containing the keys of several types goes to the one registered first.
+	 *
+	 * @param role   if not null, messages from connections without this role are
+	 *               dropped
+	 * @param fields other fields the handler reads, as well as the key
+	 */
+	public void register(String key, ConnectionRole role, MessageHandler handler, String... fields) {
+		register(key, role, handler, false, fields);
+	}
+
+	/**
+	 * Registers a handler which runs on the thread which read the message rather
+	 * than on the control plane, for messages which must not wait behind it.
+	 */
+	public void registerDirect(String key, ConnectionRole role, MessageHandler handler, String... fields) {
+		register(key, role, handler, true, fields);
+	}
+
+	private void register(String key, ConnectionRole role, MessageHandler handler, boolean direct, String... fields) {
+		handlers.put(key, new Registration(handlers.size(), role, handler, direct));
+		this.fields.add(key);
+		for (String field : fields) {
+			this.fields.add(field);
+		}
+	}
+
+	/**
+	 * Dispatches a JSON line. Returns true if the connection should close.
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean dispatch(Connection con, String line) {
+		Registration type = null;
+		boolean chat = false;
+		JSONObject msg = new JSONObject();
+		try {
+			JsonReader reader = new JsonReader(new StringReader(line));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String key = reader.nextName();
+				if (key.equals(Strings.ORIGIN) || key.equals(Strings.SEQ) || key.equals(Strings.TRACE)) {
+					// The id and trace of a chat message, wherever they appear
+					msg.put(key, readValue(reader));
+					continue;
+				}
+				if (chat) {
+					// Only check the rest of the line is valid
+					reader.skipValue();
+					continue;
+				}
+				if (key.equals(Strings.MESSAGE) && chatHandler != null) {
+					chat = true;
+					reader.skipValue();
+					continue;
+				}
+				Registration registration = handlers.get(key);
+				if (registration != null && (type == null || registration.priority < type.priority)) {
+					type = registration;
+				}
+				if (fields.contains(key)) {
+					msg.put(key, readValue(reader));
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new IllegalStateException("more than one value on the line");
+			}
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			// We have an invalid message
+			log.error("invalid message from " + con.getId() + ", cannot convert to JSON: " + line);
+			return false;
+		}
+		if (chat) {
+			return relay(con, ChatMessage.fromLine(line, msg));
+		}
+		return dispatch(con, type, msg);
+	}
+
+	/**
+	 * Dispatches a message which has already been decoded, such as one read from
+	 * a binary frame. Returns true if the connection should close.
+	 */
+	public boolean dispatch(Connection con, JSONObject msg) {
+		if (msg.containsKey(Strings.MESSAGE) && chatHandler != null) {
+			return relay(con, ChatMessage.of(msg));
+		}
+		Registration type = null;
+		for (Object key : msg.keySet()) {
+			Registration registration = handlers.get(key);
+			if (registration != null && (type == null || registration.priority < type.priority)) {
+				type = registration;
+			}
+		}
+		return dispatch(con, type, msg);
+	}
+
+	/** Relays a chat message. Returns true if the connection should close. */
+	public boolean relay(Connection con, ChatMessage msg) {
+		if (chatHandler == null) {
+			return false;
+		}
+		return chatHandler.relay(con, msg);
+	}
+
+	private boolean dispatch(final Connection con, final Registration type, final JSONObject msg) {
+		if (type == null) {
+			log.debug("no handler for message " + msg);
+			return false;
+		}
+		if (type.direct) {
+			if (type.role == null || registry.hasRole(con, type.role)) {
+				type.handler.handle(con, msg);
+			}
+			return false;
+		}
+		controlPlane.execute(new Runnable() {
+			public void run() {
+				if (log.isDebugEnabled()) {
+					log.debug("Message " + msg);
+				}
+				if (type.role == null || registry.hasRole(con, type.role)) {
+					type.handler.handle(con, msg);
+				}
+			}
+		});
+		return false;
+	}
+
+	/** Reads a value into the same types json-simple would have parsed it to */
+	@SuppressWarnings("unchecked")
+	private static Object readValue(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+		case BEGIN_OBJECT:
+			JSONObject object = new JSONObject();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String key = reader.nextName();
+				object.put(key, readValue(reader));
+			}
+			reader.endObject();
+			return object;
+		case BEGIN_ARRAY:
+			List<Object> array = new JSONArray();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				array.add(readValue(reader));
+			}
+			reader.endArray();
+			return array;
+		case NUMBER:
+			return BinaryCodec.parseNumber(reader.nextString());
+		case BOOLEAN:
+			return reader.nextBoolean();
+		case NULL:
+			reader.nextNull();
+			return null;
+		default:
+			return reader.nextString();
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package activitystreamer.server;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Handles one type of control message, registered with the
+ * {@link MessageDispatcher} under the key which identifies the type. Runs on
+ * the control plane.
+ */
+public interface MessageHandler {
+	/**
+	 * @param msg holds only the fields the handler was registered for
+	 */
+	void handle(Connection con, JSONObject msg);
+}
@@ -0,0 +1,61 @@
+package activitystreamer.server;
+
+import java.util.Map;
+import java.util.UUID;
+
+import activitystreamer.util.Strings;
+
+/**
+ * Identifies a chat message across the network: the UUID of the server it
+ * entered the network at, and a sequence number assigned by that server.
+ */
+public final class MessageId {
+	private final UUID origin;
+	private final long seq;
+
+	public MessageId(UUID origin, long seq) {
+		this.origin = origin;
+		this.seq = seq;
+	}
+
+	/** Reads the id from the fields of a message, or returns null if it has none */
+	public static MessageId from(Map<?, ?> fields) {
+		Object origin = fields.get(Strings.ORIGIN);
+		Object seq = fields.get(Strings.SEQ);
+		if (!(origin instanceof String) || !(seq instanceof Number)) {
+			return null;
+		}
+		try {
+			return new MessageId(UUID.fromString((String) origin), ((Number) seq).longValue());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public UUID getOrigin() {
+		return origin;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MessageId)) {
+			return false;
+		}
+		MessageId other = (MessageId) o;
+		return seq == other.seq && origin.equals(other.origin);
+	}
+
+	@Override
+	public int hashCode() {
+		return origin.hashCode() * 31 + Long.hashCode(seq);
+	}
+
+	@Override
+	public String toString() {
+		return origin + "#" + seq;
+	}
+}
@@ -0,0 +1,260 @@
+package activitystreamer.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.RateLimitPolicy;
+
+/**
+ * The metrics of one server: the traffic of each connection and of each role,
+ * the depth of the outbound queues, how long chat takes to fan out and waits
+ * on lagged links, how much chat clients send beyond their rate, and how the
+ * spanning tree changes.
+ *
+ * The hot paths only ever add to counters and histograms, without locks.
+ * Everything else, such as the queue depths and the per connection figures, is
+ * read from the registry when a snapshot is taken. Snapshots are exported as
+ * the attributes of an MBean, and as text by a {@link MetricsServer}.
+ */
+public class Metrics implements ConnectionRegistryListener, DynamicMBean {
+	private static final Logger log = LogManager.getLogger();
+
+	private final ConnectionRegistry registry;
+	private final VirtualClock clock;
+	// The traffic of connections which have closed, by the role they last had
+	private final Map<ConnectionRole, TrafficCounters> closed = new EnumMap<ConnectionRole, TrafficCounters>(
+			ConnectionRole.class);
+
+	private final Histogram fanOut = new Histogram();
+	private final Histogram lagDelay = new Histogram();
+	private final Histogram convergence = new Histogram();
+
+	// Chat beyond a client's rate, by what was done with it
+	private final Map<RateLimitPolicy, LongAdder> chatLimited = new EnumMap<RateLimitPolicy, LongAdder>(
+			RateLimitPolicy.class);
+	private final LongAdder levelChanges = new LongAdder();
+	private final LongAdder findTransitions = new LongAdder();
+	private final LongAdder foundTransitions = new LongAdder();
+	private volatile int level = 0;
+	private volatile NodeState state = null;
+	private volatile boolean converged = false;
+	// When the tree last stopped being converged, on the control plane only
+	private long divergedAt;
+
+	Metrics(ConnectionRegistry registry, VirtualClock clock) {
+		this.registry = registry;
+		this.clock = clock;
+		for (ConnectionRole role : ConnectionRole.values()) {
+			closed.put(role, new TrafficCounters());
+		}
+		for (RateLimitPolicy policy : RateLimitPolicy.values()) {
+			chatLimited.put(policy, new LongAdder());
+		}
+		divergedAt = nanoTime();
+	}
+
+	private long nanoTime() {
+		return clock != null ? clock.nanoTime() : System.nanoTime();
+	}
+
+	/** The time taken to hand a chat message to every connection it goes to */
+	public Histogram getFanOut() {
+		return fanOut;
+	}
+
+	/** The time chat waits on a lagged link before it is queued to be written */
+	public Histogram getLagDelay() {
+		return lagDelay;
+	}
+
+	/** Counts the chat messages from clients beyond their rate which were dealt with by the policy */
+	public LongAdder getChatLimited(RateLimitPolicy policy) {
+		return chatLimited.get(policy);
+	}
+
+	/** The time from the spanning tree changing until it has converged again */
+	public Histogram getConvergence() {
+		return convergence;
+	}
+
+	public void connectionRegistered(Connection con, ConnectionRole role) {
+	}
+
+	public void connectionUnregistered(Connection con, ConnectionRole role) {
+		closed.get(role).add(con.getTraffic());
+	}
+
+	/** Called on the control plane when the level of this node's fragment changes */
+	void levelChanged(int level) {
+		if (level != this.level) {
+			this.level = level;
+			levelChanges.increment();
+		}
+	}
+
+	/** Called on the control plane when this node starts or finishes a search */
+	void stateChanged(NodeState state) {
+		if (state == null || (this.state != null && state.getClass() == this.state.getClass())) {
+			return;
+		}
+		this.state = state;
+		if (state instanceof Find) {
+			findTransitions.increment();
+		} else {
+			foundTransitions.increment();
+		}
+	}
+
+	/** Called on the control plane when the spanning tree converges or changes again */
+	void convergedChanged(boolean converged) {
+		if (converged == this.converged) {
+			return;
+		}
+		this.converged = converged;
+		if (converged) {
+			convergence.record(nanoTime() - divergedAt);
+		} else {
+			divergedAt = nanoTime();
+		}
+	}
+
+	/**
+	 * Reads every metric, keyed by its name and any labels. Histograms are given
+	 * as cumulative buckets, and times are in nanoseconds. The totals for each
+	 * role, which count closed connections too, are named "role_" so that they
+	 * are not summed along with the connections.
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		for (ConnectionRole role : ConnectionRole.values()) {
+			String label = role.name().toLowerCase();
+			TrafficCounters total = new TrafficCounters();
+			total.add(closed.get(role));
+			long frames = 0;
+			long bytes = 0;
+			for (Connection con : registry.get(role)) {
+				total.add(con.getTraffic());
+				frames += con.getOutboundQueue().size();
+				bytes += con.getOutboundQueue().getQueuedBytes();
+			}
+			total.snapshot(metrics, "role_", "{role=\"" + label + "\"}");
+			metrics.put("connections{role=\"" + label + "\"}", (long) registry.get(role).size());
+			metrics.put("role_outbound_frames{role=\"" + label + "\"}", frames);
+			metrics.put("role_outbound_bytes{role=\"" + label + "\"}", bytes);
+		}
+		for (ConnectionRole role : ConnectionRole.values()) {
+			for (Connection con : registry.get(role)) {
+				String labels = "{connection=\"" + con.getAddress() + "\",role=\"" + role.name().toLowerCase() + "\"}";
+				con.getTraffic().snapshot(metrics, "", labels);
+				metrics.put("outbound_frames" + labels, (long) con.getOutboundQueue().size());
+				metrics.put("outbound_bytes" + labels, con.getOutboundQueue().getQueuedBytes());
+			}
+		}
+		fanOut.snapshot(metrics, "fanout_nanos");
+		lagDelay.snapshot(metrics, "lag_delay_nanos");
+		for (RateLimitPolicy policy : RateLimitPolicy.values()) {
+			metrics.put("chat_rate_limited{action=\"" + policy.toString().toLowerCase() + "\"}",
+					chatLimited.get(policy).sum());
+		}
+		NodeState state = this.state;
+		metrics.put("ghs_level", (long) level);
+		metrics.put("ghs_level_changes", levelChanges.sum());
+		metrics.put("ghs_state{state=\"find\"}", state instanceof Find ? 1L : 0L);
+		metrics.put("ghs_state{state=\"found\"}", state instanceof Found ? 1L : 0L);
+		metrics.put("ghs_transitions{state=\"find\"}", findTransitions.sum());
+		metrics.put("ghs_transitions{state=\"found\"}", foundTransitions.sum());
+		metrics.put("ghs_converged", converged ? 1L : 0L);
+		convergence.snapshot(metrics, "ghs_convergence_nanos");
+		return metrics;
+	}
+
+	/** A one line summary of the traffic and the tree, for the log */
+	public String summary() {
+		TrafficCounters total = new TrafficCounters();
+		for (TrafficCounters counters : closed.values()) {
+			total.add(counters);
+		}
+		for (ConnectionRole role : ConnectionRole.values()) {
+			for (Connection con : registry.get(role)) {
+				total.add(con.getTraffic());
+			}
+		}
+		return registry.size() + " connections, " + total.getMessagesIn() + " messages in, "
+				+ total.getMessagesOut() + " out, fan-out mean " + mean(fanOut) + "ns max " + fanOut.getMax()
+				+ "ns, level " + level + (converged ? " converged" : "");
+	}
+
+	private static long mean(Histogram histogram) {
+		long count = histogram.getCount();
+		return count == 0 ? 0 : histogram.getSum() / count;
+	}
+
+	/** Registers the metrics with the platform MBean server under the given name */
+	public void registerMBean(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+		} catch (JMException e) {
+			log.error("failed to register the metrics as " + name + ": " + e);
+		}
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> metrics = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (metrics.containsKey(attribute)) {
+				list.add(new Attribute(attribute, metrics.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "there are no operations");
+	}
+
+	/** Lists the metrics there are right now, which changes as connections come and go */
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Number> metrics = snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+		int i = 0;
+		for (String name : metrics.keySet()) {
+			attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "ActivityStreamer server metrics", attributes, null,
+				new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,54 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a server over HTTP on the loopback address, so they
+ * can be scraped. A GET of /metrics returns one metric per line, in the text
+ * format Prometheus reads, with every name prefixed by "activitystreamer_".
+ */
+public class MetricsServer {
+	private static final Logger log = LogManager.getLogger();
+	private static final String PREFIX = "activitystreamer_";
+
+	private final HttpServer server;
+
+	public MetricsServer(final Metrics metrics, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder text = new StringBuilder();
+				for (Map.Entry<String, Number> metric : metrics.snapshot().entrySet()) {
+					text.append(PREFIX).append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+				}
+				byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		// Scrapes are served one at a time by the server's own thread
+		server.setExecutor(null);
+		server.start();
+		log.info("serving metrics on http://" + server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/metrics");
+	}
+
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,186 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+/**
+ * A connection driven by an {@link EventLoop} rather than by its own thread.
+ * Incoming bytes are split into frames and each complete frame is handed to
+ * {@link Control} on the loop thread. Outgoing
+ * messages are queued and written when the channel is writable.
+ */
+public class NioConnection extends Connection {
+	private static final Logger log = LogManager.getLogger();
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private SelectionKey key;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	// Frames taken off the outbound queue by the loop, and the views being written out of them
+	private final ArrayList<SharedFrame> taken = new ArrayList<SharedFrame>();
+	private final ArrayDeque<SharedFrame> writing = new ArrayDeque<SharedFrame>();
+	private final ArrayDeque<ByteBuffer> writingViews = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_BATCH_FRAMES];
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			handleWrite();
+		}
+	};
+
+	NioConnection(Control control, SocketChannel channel, EventLoop loop) throws IOException {
+		super(control, channel.socket(), false);
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	EventLoop getLoop() {
+		return loop;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setSelectionKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/** Schedules the loop to write out the outbound queue */
+	@Override
+	protected void frameQueued() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(flushTask);
+		}
+	}
+
+	/** Called on the loop thread when the channel has data to read */
+	void handleRead() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			log.error("connection " + getAddress() + " closed with exception: " + e);
+			handleClose();
+			return;
+		}
+		if (read < 0) {
+			log.debug("connection closed to " + getAddress());
+			handleClose();
+			return;
+		}
+
+		traffic.bytesIn(read);
+		try {
+			if (decoder.feed(readBuffer.array(), 0, read, frameHandler)) {
+				closeCon();
+			}
+			decoder.trim();
+		} catch (ProtocolException e) {
+			log.error("connection " + getAddress() + " sent an invalid frame: " + e.getMessage());
+			closeCon();
+		}
+		readBuffer.clear();
+	}
+
+	/**
+	 * Called on the loop thread to write out as much of the queue as possible,
+	 * gathering many frames into each write.
+	 */
+	void handleWrite() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			while (true) {
+				if (writing.size() < MAX_BATCH_FRAMES) {
+					outbound.poll(taken, MAX_BATCH_FRAMES - writing.size(), Integer.MAX_VALUE);
+					for (SharedFrame frame : taken) {
+						writing.add(frame);
+						writingViews.add(frame.buffer());
+					}
+					taken.clear();
+				}
+				if (writing.isEmpty()) {
+					break;
+				}
+				int count = 0;
+				for (ByteBuffer view : writingViews) {
+					gather[count++] = view;
+				}
+				channel.write(gather, 0, count);
+				Arrays.fill(gather, 0, count, null);
+				while (!writingViews.isEmpty() && !writingViews.peek().hasRemaining()) {
+					writingViews.poll();
+					writing.poll().release();
+				}
+				if (!writing.isEmpty()) {
+					// The socket buffer is full, wait until the channel is writable again
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			if (outbound.isDrained()) {
+				handleClose();
+			}
+		} catch (IOException e) {
+			log.error("failed to write to " + getAddress() + ": " + e);
+			handleClose();
+		}
+	}
+
+	@Override
+	public void closeCon() {
+		if (isOpen()) {
+			log.info("closing connection " + getAddress());
+			loop.execute(new Runnable() {
+				public void run() {
+					// Give any queued messages a final chance to go out
+					handleWrite();
+					handleClose();
+				}
+			});
+		}
+	}
+
+	/** The connection has been closed by the other party, or has failed */
+	void handleClose() {
+		if (isOpen()) {
+			closeChannel();
+			control.connectionClosed(this);
+		}
+	}
+
+	private void closeChannel() {
+		setOpen(false);
+		outbound.close();
+		SharedFrame frame;
+		while ((frame = writing.poll()) != null) {
+			frame.release();
+		}
+		writingViews.clear();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.error("received exception closing the connection " + getAddress() + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Non-blocking sockets, driven by a fixed pool of {@link EventLoop}s.
+ */
+public class NioTransport implements Transport {
+	private EventLoopGroup eventLoops;
+
+	public void listen(Control control) throws IOException {
+		eventLoops = new EventLoopGroup(control, Settings.getEventLoopThreads());
+		eventLoops.bind(Settings.getLocalPort());
+	}
+
+	public Connection connect(Control control, String hostname, int port) throws IOException {
+		return eventLoops.connect(hostname, port);
+	}
+
+	public int getPort() {
+		return Settings.getLocalPort();
+	}
+
+	public void close() {
+		if (eventLoops != null) {
+			eventLoops.setTerm(true);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package activitystreamer.server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.SlowConsumerPolicy;
+
+/**
+ * The frames waiting to be written to a connection. Writers take whole batches
+ * at a time so they can be coalesced into large writes. When a policy is set,
+ * the queue is bounded: once the queued bytes pass the high watermark the
+ * connection is treated as a slow consumer, until the writer drains it below
+ * the low watermark again.
+ *
+ * Guarded by a lock rather than the monitor, so that a writer on a virtual
+ * thread waiting for frames does not pin its carrier thread.
+ */
+public class OutboundQueue {
+	private static final Logger log = LogManager.getLogger();
+
+	private final Connection connection;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled when frames are queued, a drain is requested or the queue is closed
+	private final Condition changed = lock.newCondition();
+	// Signalled when frames are taken or the queue is closed
+	private final Condition room = lock.newCondition();
+	private final ArrayDeque<SharedFrame> frames = new ArrayDeque<SharedFrame>();
+	private long queuedBytes = 0;
+	private boolean slow = false;
+	// No further frames are accepted, the remaining ones are written and then the connection closes
+	private boolean draining = false;
+	private boolean closed = false;
+
+	private SlowConsumerPolicy policy = null;
+	private long highWatermark = Long.MAX_VALUE;
+	private long lowWatermark = Long.MAX_VALUE;
+
+	OutboundQueue(Connection connection) {
+		this.connection = connection;
+	}
+
+	/** Bounds the queue, applying the policy to the connection if it gets too long */
+	public void setLimits(long highWatermark, long lowWatermark, SlowConsumerPolicy policy) {
+		lock.lock();
+		try {
+			this.highWatermark = highWatermark;
+			this.lowWatermark = Math.min(lowWatermark, highWatermark);
+			this.policy = policy;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a frame, taking over the caller's reference to it. Returns false if
+	 * the frame was not queued.
+	 */
+	public boolean offer(SharedFrame frame) {
+		SlowConsumerPolicy action = null;
+		lock.lock();
+		try {
+			if (closed || draining) {
+				frame.release();
+				return false;
+			}
+			if (policy != null && (slow || queuedBytes + frame.length() > highWatermark)) {
+				if (!slow) {
+					slow = true;
+					log.warn("slow consumer on connection " + connection.getId() + " with " + queuedBytes
+							+ " bytes queued, applying " + policy);
+				}
+				if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+					while (!frames.isEmpty() && queuedBytes + frame.length() > lowWatermark) {
+						SharedFrame dropped = frames.poll();
+						queuedBytes -= dropped.length();
+						dropped.release();
+					}
+				} else {
+					action = policy;
+				}
+			}
+			if (action == null) {
+				frames.add(frame);
+				queuedBytes += frame.length();
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (action != null) {
+			frame.release();
+			connection.slowConsumer(action);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Discards everything queued, writes the given frame, and then closes the
+	 * connection once it has been written.
+	 */
+	public void drainWith(SharedFrame last) {
+		lock.lock();
+		try {
+			if (closed || draining) {
+				last.release();
+				return;
+			}
+			discard();
+			frames.add(last);
+			queuedBytes = last.length();
+			draining = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to maxFrames frames, or maxBytes of frames, into the batch, always
+	 * taking at least one frame if any are queued. Does not block.
+	 */
+	public int poll(List<SharedFrame> batch, int maxFrames, int maxBytes) {
+		lock.lock();
+		try {
+			int taken = 0;
+			int bytes = 0;
+			while (!frames.isEmpty() && taken < maxFrames
+					&& (taken == 0 || bytes + frames.peek().length() <= maxBytes)) {
+				SharedFrame frame = frames.poll();
+				bytes += frame.length();
+				batch.add(frame);
+				taken++;
+			}
+			queuedBytes -= bytes;
+			if (slow && queuedBytes <= lowWatermark) {
+				slow = false;
+			}
+			if (taken > 0) {
+				room.signalAll();
+			}
+			return taken;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until there are frames to write, then moves a batch of them. Returns
+	 * false once the queue has been closed, or has finished draining.
+	 */
+	public boolean take(List<SharedFrame> batch, int maxFrames, int maxBytes) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (frames.isEmpty() && !closed && !draining) {
+				changed.await();
+			}
+			if (closed) {
+				return false;
+			}
+			return poll(batch, maxFrames, maxBytes) > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until no more than the given number of bytes are queued. Returns
+	 * false if the queue was closed instead.
+	 */
+	public boolean awaitQueuedBytes(long limit) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (queuedBytes > limit && !closed) {
+				room.await();
+			}
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** True once a drain has been requested and every frame has been taken */
+	public boolean isDrained() {
+		lock.lock();
+		try {
+			return draining && frames.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Releases every queued frame and wakes up any writer */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			discard();
+			changed.signalAll();
+			room.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Called holding the lock */
+	private void discard() {
+		SharedFrame frame;
+		while ((frame = frames.poll()) != null) {
+			frame.release();
+		}
+		queuedBytes = 0;
+	}
+}
@@ -0,0 +1,67 @@
+package activitystreamer.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Settings;
+import activitystreamer.util.Strings;
+
+/**
+ * Streams the chat in a {@link HistoryLog} to a client which asked to catch
+ * up, then tells it the offset to ask for next time. Each record is written
+ * as the line it was relayed as, without being parsed.
+ *
+ * In real time the replay waits whenever the client has more than the low
+ * watermark queued, so that it is never treated as a slow consumer for
+ * history it asked for. Chat relayed while the replay runs goes to the client
+ * as normal, so a message may arrive both live and replayed.
+ */
+class Replay implements Runnable {
+	private static final Logger log = LogManager.getLogger();
+
+	private final Connection con;
+	private final HistoryLog.Cursor cursor;
+	private final long nextOffset;
+	private final boolean throttled;
+
+	Replay(Connection con, HistoryLog.Cursor cursor, long nextOffset, boolean throttled) {
+		this.con = con;
+		this.cursor = cursor;
+		this.nextOffset = nextOffset;
+		this.throttled = throttled;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void run() {
+		long count = 0;
+		try {
+			// Only up to the end of the log when it was asked for, so a busy
+			// server cannot keep the replay going for ever
+			while (cursor.next() && cursor.getOffset() < nextOffset) {
+				if (throttled && !waitForRoom()) {
+					return;
+				}
+				// Framed straight from the mapped segment, without copying the record
+				if (!con.writeFrame(SharedFrame.wrap(cursor.getMessage()))) {
+					return;
+				}
+				count++;
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+		log.debug("replayed " + count + " messages to " + con.getAddress());
+		JSONObject replayed = new JSONObject();
+		replayed.put(Strings.OFFSET, nextOffset);
+		replayed.put(Strings.COUNT, count);
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.REPLAYED, replayed);
+		con.writeMsg(jobj);
+	}
+
+	/** Waits for the client's queue to drain, returning false if it is closed */
+	private boolean waitForRoom() throws InterruptedException {
+		return con.getOutboundQueue().awaitQueuedBytes(Settings.getOutboundLowWatermark()) && con.isOpen();
+	}
+}
@@ -0,0 +1,42 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of where chat messages are sent. Published by the
+ * control plane whenever the connections change, and read without locking by
+ * the threads that fan out chat messages.
+ */
+public class RoutingTable {
+	public static final RoutingTable EMPTY = new RoutingTable(Collections.<Connection>emptyList(),
+			Collections.<Connection>emptyList(), false);
+
+	private final List<Connection> clients;
+	private final List<Connection> servers;
+	private final boolean tree;
+
+	/**
+	 * @param servers the servers chat is forwarded to
+	 * @param tree    true if the servers are the branches of a converged spanning
+	 *                tree, rather than every server connection
+	 */
+	RoutingTable(List<Connection> clients, List<Connection> servers, boolean tree) {
+		this.clients = Collections.unmodifiableList(new ArrayList<Connection>(clients));
+		this.servers = Collections.unmodifiableList(new ArrayList<Connection>(servers));
+		this.tree = tree;
+	}
+
+	public List<Connection> getClients() {
+		return clients;
+	}
+
+	public List<Connection> getServers() {
+		return servers;
+	}
+
+	public boolean isTree() {
+		return tree;
+	}
+}
@@ -11,8 +11,8 @@ public class ServerConnection extends Connection {
 	private int lag;
 	private Identifier ident;
 
-	ServerConnection(Socket socket) throws IOException {
-		super(socket);
+	ServerConnection(Control control, Socket socket) throws IOException {
+		super(control, socket);
 
 		// Make the default lag the same as the lag defined in the settings.
 		lag = Settings.LAG;		
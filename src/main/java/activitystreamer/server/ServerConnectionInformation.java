@@ -4,15 +4,32 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.UUID;
 
+import activitystreamer.util.LinkModel;
 import activitystreamer.util.Settings;
 
 public class ServerConnectionInformation extends ConnectionInformation{
-	private int lag;
+	// How much of the round trip time each new sample makes up
+	private static final double RTT_SMOOTHING = 0.25;
+
+	// The simulated lag of messages we send on this link
+	private volatile int lag;
+	// How the link is impaired beyond the lag
+	private volatile LinkModel linkModel;
 	private Identifier ident;
+	private LaggedLink laggedLink;
+
+	// Updated by the thread reading the link, read by the control plane
+	private double averageRtt = -1; // microseconds
+	private int rttSamples = 0;
+	// The latency both ends have agreed on for the edge weight, or -1 until then
+	private volatile long latency = -1; // microseconds
+	// Rounds of probes in a row which have drifted from the latency
+	private int driftRounds = 0;
 
 	ServerConnectionInformation() {
 		// Make the default lag the same as the lag defined in the settings.
-		lag = Settings.LAG;		
+		lag = Settings.getLag();
+		linkModel = Settings.getLinkModel();
 	}
 	
 	public void setIdentifier(UUID nodeUUID, UUID otherUUID) {
@@ -26,8 +43,65 @@ public class ServerConnectionInformation extends ConnectionInformation{
 	public void setLag(int newLag) {
 		lag = newLag;
 	}
+
+	public LinkModel getLinkModel() {
+		return linkModel;
+	}
+
+	public void setLinkModel(LinkModel linkModel) {
+		this.linkModel = linkModel;
+	}
 	
 	public Identifier getIdentifier() {
 		return ident;
 	}
+
+	/** Adds a measured round trip time to the moving average */
+	public synchronized void recordRtt(long rttNanos) {
+		double rtt = rttNanos / 1000.0;
+		averageRtt = averageRtt < 0 ? rtt : averageRtt + RTT_SMOOTHING * (rtt - averageRtt);
+		rttSamples++;
+	}
+
+	/** The moving average of the round trip time in microseconds, or -1 if none has been measured */
+	public synchronized long getAverageRtt() {
+		return Math.round(averageRtt);
+	}
+
+	public synchronized int getRttSamples() {
+		return rttSamples;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/** Counts the rounds of probes in a row which have drifted, returning the count */
+	public int recordDrift(boolean drifting) {
+		driftRounds = drifting ? driftRounds + 1 : 0;
+		return driftRounds;
+	}
+
+	/**
+	 * The weight of the edge in the spanning tree, or null until both ends have
+	 * agreed on its latency.
+	 */
+	public EdgeWeight getWeight() {
+		if (ident == null || latency < 0) {
+			return null;
+		}
+		return new EdgeWeight(latency, ident);
+	}
+
+	public LaggedLink getLaggedLink() {
+		return laggedLink;
+	}
+
+	public void setLaggedLink(LaggedLink laggedLink) {
+		this.laggedLink = laggedLink;
+	}
 }
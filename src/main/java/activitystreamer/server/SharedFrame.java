@@ -0,0 +1,100 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A message encoded once, as a newline terminated line or a binary frame, so
+ * the same bytes can be handed to every connection it is sent on. The frame is reference counted:
+ * it starts with one reference held by its creator, each connection or link it
+ * is handed to holds another, and each holder releases its reference once the
+ * bytes have been written. Using a frame after its last release is an error.
+ */
+public final class SharedFrame {
+	// From position 0 to the limit, never read through anything but a duplicate
+	private final ByteBuffer bytes;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	private SharedFrame(ByteBuffer bytes) {
+		this.bytes = bytes;
+	}
+
+	public static SharedFrame of(String line) {
+		byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+		byte[] bytes = new byte[encoded.length + 1];
+		System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+		bytes[encoded.length] = '\n';
+		return new SharedFrame(ByteBuffer.wrap(bytes));
+	}
+
+	public static SharedFrame of(JSONObject message) {
+		return of(message.toJSONString());
+	}
+
+	/** Wraps bytes which are already a complete frame, such as a binary frame */
+	public static SharedFrame wrap(byte[] frame) {
+		return new SharedFrame(ByteBuffer.wrap(frame));
+	}
+
+	/**
+	 * Wraps the remaining bytes of a buffer which are already a complete frame,
+	 * such as a record mapped from the history, without copying them. The bytes
+	 * must not change while the frame is live.
+	 */
+	public static SharedFrame wrap(ByteBuffer frame) {
+		return new SharedFrame(frame.slice());
+	}
+
+	/** Takes another reference to the frame */
+	public SharedFrame retain() {
+		int count;
+		do {
+			count = refCount.get();
+			if (count <= 0) {
+				throw new IllegalStateException("frame has already been released");
+			}
+		} while (!refCount.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/** Gives up a reference. Returns true if it was the last one */
+	public boolean release() {
+		int count = refCount.decrementAndGet();
+		if (count < 0) {
+			throw new IllegalStateException("frame released more times than it was retained");
+		}
+		return count == 0;
+	}
+
+	/** A read only view of the bytes, with its own position for partial writes */
+	public ByteBuffer buffer() {
+		checkLive();
+		return bytes.asReadOnlyBuffer();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		checkLive();
+		if (bytes.hasArray()) {
+			out.write(bytes.array(), bytes.arrayOffset(), bytes.limit());
+		} else {
+			Channels.newChannel(out).write(bytes.duplicate());
+		}
+	}
+
+	/** The number of bytes in the frame, including any newline or header */
+	public int length() {
+		return bytes.limit();
+	}
+
+	private void checkLive() {
+		if (refCount.get() <= 0) {
+			throw new IllegalStateException("frame has already been released");
+		}
+	}
+}
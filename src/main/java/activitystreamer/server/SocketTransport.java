@@ -0,0 +1,54 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Blocking sockets, with a thread reading and a thread writing each
+ * connection.
+ */
+public class SocketTransport implements Transport {
+	private static final Logger log = LogManager.getLogger();
+
+	// Runs the readers and writers of the connections
+	private final Executor connectionExecutor = Settings.getExecutionMode().newExecutor("connection");
+	private Listener listener;
+	private Control control;
+
+	public void listen(Control control) throws IOException {
+		this.control = control;
+		listener = new Listener(this);
+	}
+
+	public Connection connect(Control control, String hostname, int port) throws IOException {
+		return start(new Connection(control, new Socket(hostname, port)));
+	}
+
+	/** A connection has been accepted by the listener */
+	void accepted(Socket s) throws IOException {
+		log.debug("incomming connection: " + Settings.socketAddress(s));
+		start(control.incomingConnection(new Connection(control, s)));
+	}
+
+	private Connection start(Connection c) {
+		connectionExecutor.execute(c);
+		connectionExecutor.execute(c.getWriter());
+		return c;
+	}
+
+	public int getPort() {
+		return Settings.getLocalPort();
+	}
+
+	public void close() {
+		if (listener != null) {
+			listener.setTerm(true);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package activitystreamer.server;
+
+/**
+ * A token bucket: tokens accrue at a fixed rate up to a capacity, and are
+ * spent on what the bucket limits. Times are in nanoseconds on whichever
+ * clock the caller uses, real or virtual, so the bucket keeps no clock of its
+ * own.
+ */
+public class TokenBucket {
+	private final double rate; // tokens per second
+	private final double capacity;
+	private double tokens;
+	private long updated;
+
+	/** A full bucket */
+	public TokenBucket(double rate, double capacity, long now) {
+		this.rate = rate;
+		this.capacity = capacity;
+		tokens = capacity;
+		updated = now;
+	}
+
+	private void refill(long now) {
+		if (now > updated) {
+			tokens = Math.min(capacity, tokens + (now - updated) * rate / 1e9);
+			updated = now;
+		}
+	}
+
+	/** Takes the given number of tokens if there are that many, returning whether it did */
+	public synchronized boolean tryTake(double amount, long now) {
+		refill(now);
+		if (tokens < amount) {
+			return false;
+		}
+		tokens -= amount;
+		return true;
+	}
+
+	/** The time at which the bucket will hold the given number of tokens */
+	public synchronized long availableAt(double amount, long now) {
+		refill(now);
+		if (tokens >= amount) {
+			return now;
+		}
+		return now + (long) Math.ceil((amount - tokens) / rate * 1e9);
+	}
+
+	/**
+	 * Takes the given number of tokens whether or not there are that many,
+	 * running into debt if need be. Returns the time at which the bucket will
+	 * have accrued them, which is now if it already had them, so whatever is
+	 * limited can wait until then.
+	 */
+	public synchronized long reserve(double amount, long now) {
+		refill(now);
+		tokens -= amount;
+		if (tokens >= 0) {
+			return now;
+		}
+		return now + (long) Math.ceil(-tokens / rate * 1e9);
+	}
+}
@@ -0,0 +1,48 @@
+package activitystreamer.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Strings;
+
+/**
+ * A traced message waiting on a {@link LaggedLink}. Its frame is only built
+ * once the lag has passed, so that the record of this hop includes the time
+ * it was sent.
+ */
+public class TraceHop {
+	private static final Logger log = LogManager.getLogger();
+
+	private final Tracer tracer;
+	// The message without its trace, shared by every link it is forwarded on
+	private final JSONObject message;
+	private final JSONArray trace;
+	private final long received;
+	private final long enqueued;
+
+	TraceHop(Tracer tracer, JSONObject message, JSONArray trace, long received, long enqueued) {
+		this.tracer = tracer;
+		this.message = message;
+		this.trace = trace;
+		this.received = received;
+		this.enqueued = enqueued;
+	}
+
+	/** The frame to send now, with this hop appended to the trace, or null if it cannot be encoded */
+	@SuppressWarnings("unchecked")
+	SharedFrame sent(WireFormat format) {
+		JSONArray trace = new JSONArray();
+		trace.addAll(this.trace);
+		trace.add(tracer.hop(received, enqueued, tracer.now()));
+		JSONObject copy = new JSONObject(message);
+		copy.put(Strings.TRACE, trace);
+		try {
+			return format.encode(copy);
+		} catch (IllegalArgumentException e) {
+			log.error("could not convert traced chat message to " + format + ": " + e.getMessage());
+			return null;
+		}
+	}
+}
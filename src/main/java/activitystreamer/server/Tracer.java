@@ -0,0 +1,110 @@
+package activitystreamer.server;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Settings;
+import activitystreamer.util.Strings;
+
+/**
+ * Traces a sample of chat messages hop by hop. A traced message carries a
+ * "trace" field, an array with one record per server it has passed through:
+ *
+ * [server UUID, received, enqueued, sent]
+ *
+ * where received is when the server relayed it, enqueued when it was queued
+ * on the lagged link, and sent when the lag had passed and it was queued to
+ * be written. Times are in microseconds since the epoch, or of virtual time.
+ *
+ * Each server which receives a traced message writes the whole path so far to
+ * the "activitystreamer.trace" logger, one JSON object per line, with the time
+ * spent processing, lagged and on the wire worked out for each hop.
+ */
+public class Tracer {
+	private static final Logger traceLog = LogManager.getLogger("activitystreamer.trace");
+
+	private final UUID server;
+	private final VirtualClock clock;
+	// Trace one in every this many messages entering the network here, or none if 0
+	private final int interval;
+	// The wall clock, in microseconds, at the time of baseNanos
+	private final long baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+	private final long baseNanos = System.nanoTime();
+
+	Tracer(UUID server, VirtualClock clock) {
+		this.server = server;
+		this.clock = clock;
+		interval = Settings.getTraceInterval();
+	}
+
+	/** Whether the message entering the network with this sequence number is traced */
+	boolean sampled(long seq) {
+		return interval > 0 && seq % interval == 0;
+	}
+
+	/**
+	 * The time in microseconds: virtual time, or the wall clock advanced by the
+	 * monotonic clock so that the times of one server are always in order.
+	 */
+	long now() {
+		if (clock != null) {
+			return TimeUnit.NANOSECONDS.toMicros(clock.nanoTime());
+		}
+		return baseMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - baseNanos);
+	}
+
+	/** The record of this server's hop, once the message has been sent on */
+	@SuppressWarnings("unchecked")
+	JSONArray hop(long received, long enqueued, long sent) {
+		JSONArray hop = new JSONArray();
+		hop.add(server.toString());
+		hop.add(received);
+		hop.add(enqueued);
+		hop.add(sent);
+		return hop;
+	}
+
+	/** Logs the path a traced message took to reach this server */
+	@SuppressWarnings("unchecked")
+	void arrived(MessageId id, JSONArray trace, long received) {
+		if (trace.isEmpty() || !traceLog.isInfoEnabled()) {
+			return;
+		}
+		JSONArray hops = new JSONArray();
+		long first = received;
+		try {
+			for (int i = 0; i < trace.size(); i++) {
+				JSONArray record = (JSONArray) trace.get(i);
+				long hopReceived = ((Number) record.get(1)).longValue();
+				long enqueued = ((Number) record.get(2)).longValue();
+				long sent = ((Number) record.get(3)).longValue();
+				long next = i + 1 < trace.size() ? ((Number) ((JSONArray) trace.get(i + 1)).get(1)).longValue() : received;
+				if (i == 0) {
+					first = hopReceived;
+				}
+				JSONObject hop = new JSONObject();
+				hop.put(Strings.SERVER, record.get(0));
+				hop.put("received", hopReceived);
+				hop.put("process", enqueued - hopReceived);
+				hop.put("lag", sent - enqueued);
+				hop.put("wire", next - sent);
+				hops.add(hop);
+			}
+		} catch (ClassCastException | IndexOutOfBoundsException | NullPointerException e) {
+			traceLog.warn("malformed trace on message " + id + ": " + trace);
+			return;
+		}
+		JSONObject line = new JSONObject();
+		line.put("id", String.valueOf(id));
+		line.put(Strings.SERVER, server.toString());
+		line.put("received", received);
+		line.put("latency", received - first);
+		line.put("hops", hops);
+		traceLog.info(line.toJSONString());
+	}
+}
@@ -0,0 +1,64 @@
+package activitystreamer.server;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the messages and bytes which go in and out of a connection, or of
+ * every connection with one role. The counts are kept in adders, so the
+ * threads reading and writing the connection never contend for them.
+ */
+public class TrafficCounters {
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/** Counts a message which was read */
+	public void messageIn() {
+		messagesIn.increment();
+	}
+
+	/** Counts bytes which were read */
+	public void bytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	/** Counts a frame queued to be written */
+	public void messageOut(long bytes) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/** Adds the counts of another connection to these */
+	void add(TrafficCounters other) {
+		messagesIn.add(other.getMessagesIn());
+		bytesIn.add(other.getBytesIn());
+		messagesOut.add(other.getMessagesOut());
+		bytesOut.add(other.getBytesOut());
+	}
+
+	/** Adds the counts to a snapshot, with the given prefix on their names and labels */
+	void snapshot(Map<String, Number> metrics, String prefix, String labels) {
+		metrics.put(prefix + "messages_in" + labels, getMessagesIn());
+		metrics.put(prefix + "bytes_in" + labels, getBytesIn());
+		metrics.put(prefix + "messages_out" + labels, getMessagesOut());
+		metrics.put(prefix + "bytes_out" + labels, getBytesOut());
+	}
+}
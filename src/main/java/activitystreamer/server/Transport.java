@@ -0,0 +1,22 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+
+/**
+ * How a server accepts connections and opens them to other servers. Accepted
+ * connections are handed to {@link Control#incomingConnection(Connection)}
+ * before they start reading.
+ */
+public interface Transport {
+	/** Starts accepting connections for the server */
+	void listen(Control control) throws IOException;
+
+	/** Opens a connection from the server to another */
+	Connection connect(Control control, String hostname, int port) throws IOException;
+
+	/** The port the server accepts connections on, which other servers may send clients to */
+	int getPort();
+
+	/** Stops accepting connections */
+	void close();
+}
@@ -0,0 +1,118 @@
+package activitystreamer.server;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A discrete-event scheduler which runs servers in virtual time. Tasks are
+ * queued with the virtual time they are due at, and run one at a time on the
+ * thread which drives the clock, in order of due time and then of scheduling.
+ * Rather than waiting for a task to become due, the clock jumps straight to
+ * it, so a network with long delays runs as fast as its tasks can be run.
+ *
+ * Nothing else decides the order tasks run in, and the UUIDs of the servers
+ * come from a seeded random source, so the same seed gives the same run.
+ * Not to be confused with the virtual threads of {@link activitystreamer.util.ExecutionMode}.
+ */
+public class VirtualClock {
+	private static final Logger log = LogManager.getLogger();
+
+	private static class Event implements Comparable<Event> {
+		final long dueTime;
+		final long seq;
+		final Runnable task;
+
+		Event(long dueTime, long seq, Runnable task) {
+			this.dueTime = dueTime;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		public int compareTo(Event other) {
+			if (dueTime != other.dueTime) {
+				return dueTime < other.dueTime ? -1 : 1;
+			}
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private final Random random;
+	private long now = 0; // nanoseconds
+	private long nextSeq = 0;
+	private long executed = 0;
+
+	public VirtualClock(long seed) {
+		random = new Random(seed);
+	}
+
+	/** The virtual time in nanoseconds, which starts at 0 */
+	public synchronized long nanoTime() {
+		return now;
+	}
+
+	/** Runs a task at the current virtual time, after those already due */
+	public void execute(Runnable task) {
+		schedule(task, 0);
+	}
+
+	/** Runs a task once the delay in nanoseconds has passed */
+	public synchronized void schedule(Runnable task, long delay) {
+		events.add(new Event(now + Math.max(0, delay), nextSeq++, task));
+	}
+
+	/**
+	 * Runs every task due within the given number of nanoseconds, including any
+	 * they schedule, and leaves the clock that much later.
+	 */
+	public void advance(long duration) {
+		long until;
+		synchronized (this) {
+			until = now + duration;
+		}
+		while (true) {
+			Event event;
+			synchronized (this) {
+				event = events.peek();
+				if (event == null || event.dueTime > until) {
+					now = until;
+					return;
+				}
+				events.poll();
+				now = event.dueTime;
+				executed++;
+			}
+			try {
+				event.task.run();
+			} catch (RuntimeException e) {
+				log.error("virtual clock task failed", e);
+			}
+		}
+	}
+
+	/** The number of tasks run so far */
+	public synchronized long getExecuted() {
+		return executed;
+	}
+
+	/** The number of tasks waiting to run */
+	public synchronized int getPending() {
+		return events.size();
+	}
+
+	/** A random UUID drawn from the seeded source */
+	public synchronized UUID randomUUID() {
+		long most = (random.nextLong() & ~0xf000L) | 0x4000L;
+		long least = (random.nextLong() & ~(0xc000L << 48)) | (0x8000L << 48);
+		return new UUID(most, least);
+	}
+
+	/** The seeded random source, for anything else a simulation draws at random */
+	public Random getRandom() {
+		return random;
+	}
+}
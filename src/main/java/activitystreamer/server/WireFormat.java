@@ -0,0 +1,19 @@
+package activitystreamer.server;
+
+import org.json.simple.JSONObject;
+
+/**
+ * How messages are encoded when written to a connection. Every connection
+ * starts with newline delimited JSON, and server links switch to binary
+ * frames once both ends have agreed to it.
+ */
+public enum WireFormat {
+	JSON, BINARY;
+
+	public SharedFrame encode(JSONObject message) {
+		if (this == BINARY) {
+			return SharedFrame.wrap(BinaryCodec.encode(message));
+		}
+		return SharedFrame.of(message);
+	}
+}
@@ -0,0 +1,37 @@
+package activitystreamer.sim;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the chat messages delivered to the simulated clients.
+ */
+public class DeliveryStats {
+	private long[] latencies = new long[1024]; // nanoseconds
+	private int count = 0;
+
+	public synchronized void record(long latency) {
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = latency;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/** The latency below which the given fraction of deliveries fall, in nanoseconds */
+	public synchronized long percentile(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(fraction * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, rank))];
+	}
+
+	public synchronized void clear() {
+		count = 0;
+	}
+}
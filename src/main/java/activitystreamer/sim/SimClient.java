@@ -0,0 +1,73 @@
+package activitystreamer.sim;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import activitystreamer.server.Connection;
+import activitystreamer.server.FrameDecoder;
+import activitystreamer.server.MemoryNetwork;
+import activitystreamer.util.Strings;
+
+/**
+ * A chat client connected to one of the simulated servers. Each message it
+ * sends carries the time it was sent, by the clock of the network, so every
+ * client which receives it can tell how long it took to arrive.
+ */
+public class SimClient implements FrameDecoder.Handler {
+	private static final Logger log = LogManager.getLogger();
+
+	private final int index;
+	private final DeliveryStats stats;
+	private final JSONParser parser = new JSONParser();
+	private Connection connection;
+	private MemoryNetwork network;
+
+	public SimClient(int index, DeliveryStats stats) {
+		this.index = index;
+		this.stats = stats;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void connect(MemoryNetwork network, int port) throws IOException {
+		this.network = network;
+		connection = network.connectClient(port, this);
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.CONNECTION_TYPE, Strings.CLIENT);
+		connection.writeMsg(jobj);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void send(int seq) {
+		JSONObject jobj = new JSONObject();
+		jobj.put(Strings.MESSAGE, index + " " + seq + " " + network.nanoTime());
+		connection.writeMsg(jobj);
+	}
+
+	public boolean line(String line) {
+		long received = network.nanoTime();
+		try {
+			Object message = ((JSONObject) parser.parse(line)).get(Strings.MESSAGE);
+			if (message != null) {
+				String[] fields = message.toString().split(" ");
+				stats.record(received - Long.parseLong(fields[2]));
+			}
+		} catch (ParseException | ClassCastException | ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			log.error("client " + index + " received an invalid message: " + line);
+		}
+		return false;
+	}
+
+	public boolean frame(byte type, byte[] buf, int off, int len) {
+		// Servers only send JSON lines to clients
+		return false;
+	}
+
+	public void close() {
+		connection.closeCon();
+	}
+}
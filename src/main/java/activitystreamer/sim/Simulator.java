@@ -0,0 +1,433 @@
+package activitystreamer.sim;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import activitystreamer.server.Control;
+import activitystreamer.server.MemoryNetwork;
+import activitystreamer.server.MemoryTransport;
+import activitystreamer.server.VirtualClock;
+import activitystreamer.util.LinkModel;
+import activitystreamer.util.RoutingMode;
+import activitystreamer.util.Settings;
+
+/**
+ * Runs a network of servers in one JVM, joined by a {@link MemoryNetwork} in
+ * the shape of a generated topology. The spanning tree is built, chat is sent
+ * through it by simulated clients, and servers may then be failed to watch the
+ * tree repair itself. Convergence times, the frames sent between servers and
+ * the delivery latencies are reported for each phase.
+ *
+ * In virtual time the whole network runs on this thread, driven by a
+ * {@link VirtualClock}, so delays cost nothing to wait for and a run can be
+ * repeated exactly from its seed. Times are then reported in virtual time.
+ */
+public class Simulator {
+	private static final Logger log = LogManager.getLogger();
+	// How often the servers are polled while waiting for them
+	private static final long POLL_INTERVAL = 10; // milliseconds
+	// How often they are polled in virtual time, where polling costs no waiting
+	private static final long VIRTUAL_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+	// Indexed by frame type, with JSON lines at 0
+	private static final String[] FRAME_NAMES = { "json", "message", "connect", "initiate", "test", "report",
+			"object" };
+
+	private final Topology topology;
+	private final MemoryNetwork network;
+	// Runs the network in virtual time, if set
+	private final VirtualClock clock;
+	private final Control[] servers;
+	private final Set<Integer> failed = new HashSet<Integer>();
+	private final long timeout; // milliseconds
+	private long[] framesBefore = new long[FRAME_NAMES.length];
+	private long bytesBefore = 0;
+
+	/**
+	 * @param clock runs the network in virtual time if not null, otherwise it is
+	 *              run by the given number of threads
+	 */
+	public Simulator(Topology topology, int threads, VirtualClock clock, int latency, Random random, long timeout) {
+		this.topology = topology;
+		this.timeout = timeout;
+		this.clock = clock;
+		network = clock != null ? new MemoryNetwork(clock) : new MemoryNetwork(threads);
+		// Each link gets its own latency, so that the edge weights differ
+		for (int[] edge : topology.getEdges()) {
+			long micros = latency * 500L + (latency > 0 ? random.nextInt(latency * 1000) : 0);
+			network.setLatency(edge[0], edge[1], micros, TimeUnit.MICROSECONDS);
+		}
+		servers = new Control[topology.size()];
+	}
+
+	private static void help(Options options) {
+		String header = "Simulates a network of ActivityStream servers in one process\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.Simulator", header, options, "", true);
+		System.exit(-1);
+	}
+
+	private static int intOption(CommandLine cmd, Options options, String name, int defaultValue) {
+		if (!cmd.hasOption(name)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(cmd.getOptionValue(name));
+		} catch (NumberFormatException e) {
+			log.error("-" + name + " requires a number, parsed: " + cmd.getOptionValue(name));
+			help(options);
+			return defaultValue;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		Options options = new Options();
+		options.addOption("t", true, "topology: ring, grid, random or scalefree");
+		options.addOption("n", true, "number of servers");
+		options.addOption("d", true, "average degree of a random topology, or edges added per server of a scale-free one");
+		options.addOption("l", true, "mean one way latency of a link in milliseconds");
+		options.addOption("lm", true, "impairment of every link beyond its latency, such as dist=normal,jitter=5,drop=0.01");
+		options.addOption("lme", true, "impairment of one link in place of -lm, as server-server=model, such as "
+				+ "0-1=dist=pareto,jitter=20; may be given once per link");
+		options.addOption("c", true, "number of servers with a chat client");
+		options.addOption("m", true, "chat messages sent by each client");
+		options.addOption("i", true, "interval in milliseconds between the messages of a client");
+		options.addOption("cr", true, "chat messages per second each client may send before it is held back");
+		options.addOption("f", true, "number of servers to fail once chat has been sent");
+		options.addOption("rm", true, "routing mode for chat between servers: flood or tree");
+		options.addOption("pi", true, "interval in milliseconds between round trip probes of server links");
+		options.addOption("wd", true, "percentage a link's round trip time must drift by before its weight is changed");
+		options.addOption("dc", true, "number of recent message ids each server remembers");
+		options.addOption("tr", true, "trace one in every this many chat messages, written to trace.log");
+		options.addOption("th", true, "threads delivering frames between servers");
+		options.addOption("s", true, "seed for the topology, the link latencies and, in virtual time, the servers");
+		options.addOption("vt", false, "run in virtual time, which repeats exactly for the same seed");
+		options.addOption("to", true, "seconds to wait for each phase");
+		options.addOption("log", true, "log level of the servers");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+
+		int size = intOption(cmd, options, "n", 100);
+		int clients = Math.min(size, intOption(cmd, options, "c", 10));
+		int seed = intOption(cmd, options, "s", 1);
+		Random random = new Random(seed);
+		Configurator.setRootLevel(Level.toLevel(cmd.getOptionValue("log", "error"), Level.ERROR));
+		if (cmd.hasOption("rm")) {
+			try {
+				Settings.setRoutingMode(RoutingMode.fromString(cmd.getOptionValue("rm")));
+			} catch (IllegalArgumentException e) {
+				log.error("-rm requires flood or tree, parsed: " + cmd.getOptionValue("rm"));
+				help(options);
+			}
+		} else {
+			Settings.setRoutingMode(RoutingMode.TREE);
+		}
+		// The latency of the links is simulated by the network rather than the servers
+		Settings.setLag(0);
+		if (cmd.hasOption("lm")) {
+			try {
+				Settings.setLinkModel(LinkModel.parse(cmd.getOptionValue("lm")));
+			} catch (IllegalArgumentException e) {
+				log.error("-lm requires a link model such as dist=normal,jitter=5, parsed: " + cmd.getOptionValue("lm")
+						+ ": " + e.getMessage());
+				help(options);
+			}
+		}
+		Settings.setProbeInterval(intOption(cmd, options, "pi", 100));
+		// The simulated latencies do not change, so by default only a drift far
+		// beyond the delays of a busy simulator changes a weight
+		Settings.setWeightDriftThreshold(intOption(cmd, options, "wd", 10000));
+		Settings.setDuplicateCacheSize(intOption(cmd, options, "dc", 4096));
+		Settings.setTraceInterval(intOption(cmd, options, "tr", 0));
+		Settings.setClientRate(intOption(cmd, options, "cr", 0));
+		Settings.setRemoteHostname(null);
+
+		Topology topology;
+		try {
+			topology = Topology.create(cmd.getOptionValue("t", "ring"), size, intOption(cmd, options, "d", 3), random);
+		} catch (IllegalArgumentException e) {
+			log.error(e.getMessage());
+			help(options);
+			return;
+		}
+		VirtualClock clock = cmd.hasOption("vt") ? new VirtualClock(seed) : null;
+		Simulator simulator = new Simulator(topology, intOption(cmd, options, "th", 4), clock,
+				intOption(cmd, options, "l", 10), random, intOption(cmd, options, "to", 60) * 1000L);
+		int impaired = 0;
+		if (cmd.hasOption("lme")) {
+			for (String link : cmd.getOptionValues("lme")) {
+				try {
+					simulator.setLinkModel(link);
+					impaired++;
+				} catch (IllegalArgumentException e) {
+					log.error("-lme requires server-server=model such as 0-1=dist=normal,jitter=5, parsed: " + link
+							+ ": " + e.getMessage());
+					help(options);
+				}
+			}
+		}
+		System.out.println(cmd.getOptionValue("t", "ring") + " topology of " + size + " servers and "
+				+ topology.getEdges().size() + " links, routing by " + Settings.getRoutingMode()
+				+ (Settings.getLinkModel() != LinkModel.NONE ? ", links impaired by " + Settings.getLinkModel() : "")
+				+ (impaired > 0 ? ", " + impaired + " links impaired on their own" : "")
+				+ (clock != null ? ", in virtual time" : ""));
+		long start = System.nanoTime();
+
+		simulator.converge();
+		simulator.chat(clients, intOption(cmd, options, "m", 10), intOption(cmd, options, "i", 10));
+		int failures = intOption(cmd, options, "f", 0);
+		if (failures > 0) {
+			simulator.fail(failures, clients, random);
+		}
+		if (clock != null) {
+			System.out.printf("%.1fs of virtual time in %.1fs, %d tasks%n", clock.nanoTime() / 1e9,
+					(System.nanoTime() - start) / 1e9, clock.getExecuted());
+		}
+		simulator.shutdown();
+		System.exit(0);
+	}
+
+	/**
+	 * Impairs one link, written as server-server=model, in place of the link
+	 * model in the settings. Throws IllegalArgumentException if it is invalid or
+	 * there is no such link.
+	 */
+	public void setLinkModel(String link) {
+		String[] pair = link.split("=", 2);
+		String[] ends = pair[0].split("-");
+		if (pair.length != 2 || ends.length != 2) {
+			throw new IllegalArgumentException("expected server-server=model");
+		}
+		int from = Integer.parseInt(ends[0].trim());
+		int to = Integer.parseInt(ends[1].trim());
+		if (from < 0 || from >= servers.length || !topology.getNeighbours(from).contains(to)) {
+			throw new IllegalArgumentException("there is no link between " + from + " and " + to);
+		}
+		network.setLinkModel(from, to, LinkModel.parse(pair[1]));
+	}
+
+	/** Starts every server, joins them along the edges, and waits for the spanning tree */
+	public void converge() throws InterruptedException, ExecutionException {
+		long start = network.nanoTime();
+		markFrames();
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new Control(new MemoryTransport(network, i), clock);
+			servers[i].start();
+		}
+		for (int[] edge : topology.getEdges()) {
+			servers[edge[0]].connect("memory", edge[1]);
+		}
+		boolean converged = await(new Condition() {
+			public boolean holds() {
+				return allConverged();
+			}
+		});
+		report("convergence", start, converged);
+		if (!converged) {
+			describeUnconverged();
+		}
+		int branches = 0;
+		for (Control server : servers) {
+			branches += server.getBranchCount();
+		}
+		System.out.println("  spanning tree has " + branches / 2 + " edges, expected " + (servers.length - 1));
+	}
+
+	/**
+	 * Connects clients to evenly spread servers, has each send its messages, and
+	 * waits until every client has received every message.
+	 */
+	public void chat(int clients, int messages, int interval) throws InterruptedException {
+		final DeliveryStats stats = new DeliveryStats();
+		final List<SimClient> simClients = new ArrayList<SimClient>();
+		for (int i = 0; i < clients; i++) {
+			final int server = clientServer(i, clients);
+			SimClient client = new SimClient(i, stats);
+			try {
+				client.connect(network, server);
+			} catch (IOException e) {
+				log.error("failed to connect client " + i + ": " + e);
+				continue;
+			}
+			simClients.add(client);
+		}
+		await(new Condition() {
+			public boolean holds() {
+				int connected = 0;
+				for (int i = 0; i < servers.length; i++) {
+					connected += servers[i].getConnections().getClients().size();
+				}
+				return connected == simClients.size();
+			}
+		});
+
+		long start = network.nanoTime();
+		markFrames();
+		for (int seq = 0; seq < messages; seq++) {
+			for (SimClient client : simClients) {
+				client.send(seq);
+			}
+			sleep(TimeUnit.MILLISECONDS.toNanos(interval));
+		}
+		final int expected = simClients.size() * simClients.size() * messages;
+		boolean delivered = await(new Condition() {
+			public boolean holds() {
+				return stats.getCount() >= expected;
+			}
+		});
+		report("chat", start, delivered);
+		System.out.printf("  delivered %d of %d, latency p50 %.2fms p90 %.2fms p99 %.2fms max %.2fms%n",
+				stats.getCount(), expected, stats.percentile(0.5) / 1e6, stats.percentile(0.9) / 1e6,
+				stats.percentile(0.99) / 1e6, stats.percentile(1) / 1e6);
+		for (SimClient client : simClients) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Fails servers without clients, chosen at random, and waits until the
+	 * survivors have noticed and repaired their spanning trees.
+	 */
+	public void fail(int count, int clients, Random random) throws InterruptedException {
+		Set<Integer> withClients = new HashSet<Integer>();
+		for (int i = 0; i < clients; i++) {
+			withClients.add(clientServer(i, clients));
+		}
+		long start = network.nanoTime();
+		markFrames();
+		while (failed.size() < Math.min(count, servers.length - withClients.size())) {
+			int server = random.nextInt(servers.length);
+			if (!withClients.contains(server) && failed.add(server)) {
+				servers[server].shutdown();
+			}
+		}
+		boolean repaired = await(new Condition() {
+			public boolean holds() {
+				for (int i = 0; i < servers.length; i++) {
+					if (failed.contains(i)) {
+						continue;
+					}
+					int links = 0;
+					for (int neighbour : topology.getNeighbours(i)) {
+						if (!failed.contains(neighbour)) {
+							links++;
+						}
+					}
+					if (servers[i].getConnections().getServers().size() != links) {
+						return false;
+					}
+				}
+				return allConverged();
+			}
+		});
+		report("repair after " + failed.size() + " failures", start, repaired);
+		if (!repaired) {
+			describeUnconverged();
+		}
+	}
+
+	public void shutdown() {
+		for (int i = 0; i < servers.length; i++) {
+			if (servers[i] != null && !failed.contains(i)) {
+				servers[i].shutdown();
+			}
+		}
+		network.shutdown();
+	}
+
+	private int clientServer(int client, int clients) {
+		return (int) ((long) client * servers.length / clients);
+	}
+
+	private boolean allConverged() {
+		for (int i = 0; i < servers.length; i++) {
+			if (!failed.contains(i) && !servers[i].isConverged()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void describeUnconverged() {
+		for (int i = 0; i < servers.length; i++) {
+			if (!failed.contains(i) && !servers[i].isConverged()) {
+				try {
+					System.out.println("  server " + i + " " + servers[i].getUUID() + ": " + servers[i].describeTree());
+				} catch (InterruptedException | ExecutionException e) {
+					System.out.println("  server " + i + " did not respond: " + e);
+				}
+			}
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	/** Waits for the condition, returning false if the timeout passes first */
+	private boolean await(Condition condition) throws InterruptedException {
+		long deadline = network.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (!condition.holds()) {
+			if (network.nanoTime() > deadline) {
+				return false;
+			}
+			sleep(clock != null ? VIRTUAL_POLL_INTERVAL : TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL));
+		}
+		return true;
+	}
+
+	/** Lets the network run for the given nanoseconds, in virtual time if there is a clock */
+	private void sleep(long nanos) throws InterruptedException {
+		if (clock != null) {
+			clock.advance(nanos);
+		} else {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+	}
+
+	private void markFrames() {
+		for (int i = 0; i < FRAME_NAMES.length; i++) {
+			framesBefore[i] = network.getFrames(i);
+		}
+		bytesBefore = network.getBytes();
+	}
+
+	/** Prints how long a phase took and the frames sent between servers during it */
+	private void report(String phase, long start, boolean completed) {
+		long elapsed = network.nanoTime() - start;
+		StringBuilder frames = new StringBuilder();
+		long total = 0;
+		for (int i = 0; i < FRAME_NAMES.length; i++) {
+			long count = network.getFrames(i) - framesBefore[i];
+			total += count;
+			if (count > 0) {
+				frames.append(' ').append(FRAME_NAMES[i]).append('=').append(count);
+			}
+		}
+		System.out.printf("%s %s in %.1fms%n", phase, completed ? "completed" : "timed out", elapsed / 1e6);
+		System.out.printf("  %d frames, %d bytes between servers:%s%n", total, network.getBytes() - bytesBefore,
+				frames);
+	}
+}
@@ -0,0 +1,134 @@
+package activitystreamer.sim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * An undirected graph of servers, numbered from 0. Every topology built here
+ * is connected.
+ */
+public class Topology {
+	private final int size;
+	private final List<int[]> edges = new ArrayList<int[]>();
+	private final Set<Long> edgeSet = new HashSet<Long>();
+	private final List<List<Integer>> neighbours = new ArrayList<List<Integer>>();
+
+	private Topology(int size) {
+		this.size = size;
+		for (int i = 0; i < size; i++) {
+			neighbours.add(new ArrayList<Integer>());
+		}
+	}
+
+	/**
+	 * Builds a topology by name: ring, grid, random or scalefree.
+	 * 
+	 * @param degree the average degree of a random graph, or the number of edges
+	 *               each new server adds to a scale-free one
+	 */
+	public static Topology create(String kind, int size, int degree, Random random) {
+		switch (kind.trim().toLowerCase()) {
+		case "ring":
+			return ring(size);
+		case "grid":
+			return grid(size);
+		case "random":
+			return random(size, degree, random);
+		case "scalefree":
+			return scaleFree(size, degree, random);
+		default:
+			throw new IllegalArgumentException("unknown topology " + kind);
+		}
+	}
+
+	/** Each server is joined to the next, and the last to the first */
+	public static Topology ring(int size) {
+		Topology topology = new Topology(size);
+		for (int i = 0; i + 1 < size; i++) {
+			topology.add(i, i + 1);
+		}
+		if (size > 2) {
+			topology.add(size - 1, 0);
+		}
+		return topology;
+	}
+
+	/** The servers fill the rows of a square grid, joined to their neighbours */
+	public static Topology grid(int size) {
+		Topology topology = new Topology(size);
+		int width = (int) Math.ceil(Math.sqrt(size));
+		for (int i = 0; i < size; i++) {
+			if ((i + 1) % width != 0 && i + 1 < size) {
+				topology.add(i, i + 1);
+			}
+			if (i + width < size) {
+				topology.add(i, i + width);
+			}
+		}
+		return topology;
+	}
+
+	/**
+	 * A random spanning tree, so that the graph is connected, with random edges
+	 * added until the average degree is reached.
+	 */
+	public static Topology random(int size, int degree, Random random) {
+		Topology topology = new Topology(size);
+		for (int i = 1; i < size; i++) {
+			topology.add(i, random.nextInt(i));
+		}
+		long target = Math.min((long) size * degree / 2, (long) size * (size - 1) / 2);
+		while (topology.edges.size() < target) {
+			topology.add(random.nextInt(size), random.nextInt(size));
+		}
+		return topology;
+	}
+
+	/**
+	 * Barabasi-Albert preferential attachment: each new server is joined to up to
+	 * the given number of existing servers, chosen in proportion to their degree.
+	 */
+	public static Topology scaleFree(int size, int edgesPerServer, Random random) {
+		Topology topology = new Topology(size);
+		// Each server appears once for every edge it has
+		List<Integer> endpoints = new ArrayList<Integer>();
+		for (int i = 1; i < size; i++) {
+			int wanted = Math.min(Math.max(1, edgesPerServer), i);
+			Set<Integer> chosen = new HashSet<Integer>();
+			while (chosen.size() < wanted) {
+				chosen.add(endpoints.isEmpty() ? 0 : endpoints.get(random.nextInt(endpoints.size())));
+			}
+			for (int j : chosen) {
+				topology.add(i, j);
+				endpoints.add(i);
+				endpoints.add(j);
+			}
+		}
+		return topology;
+	}
+
+	/** Adds an edge, unless it is a loop or already present */
+	private void add(int a, int b) {
+		if (a == b || !edgeSet.add(((long) Math.min(a, b) << 32) | Math.max(a, b))) {
+			return;
+		}
+		edges.add(new int[] { a, b });
+		neighbours.get(a).add(b);
+		neighbours.get(b).add(a);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public List<int[]> getEdges() {
+		return edges;
+	}
+
+	public List<Integer> getNeighbours(int server) {
+		return neighbours.get(server);
+	}
+}
@@ -0,0 +1,80 @@
+package activitystreamer.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * How the server runs its blocking tasks, such as connection readers. Each
+ * task gets its own thread, either a platform thread or, on a JVM which
+ * supports them, a virtual thread.
+ */
+public enum ExecutionMode {
+	PLATFORM, VIRTUAL;
+
+	private static final Logger log = LogManager.getLogger();
+
+	/**
+	 * Creates an executor that starts a new thread, named after the given prefix,
+	 * for every task. Falls back to platform threads if virtual threads are not
+	 * available on this JVM.
+	 */
+	public Executor newExecutor(String name) {
+		ThreadFactory factory = null;
+		if (this == VIRTUAL) {
+			factory = virtualThreadFactory(name);
+			if (factory == null) {
+				log.warn("virtual threads are not supported by this JVM, using platform threads for " + name);
+			}
+		}
+		if (factory == null) {
+			factory = platformThreadFactory(name);
+		}
+		return new ThreadPerTaskExecutor(factory);
+	}
+
+	public static ExecutionMode fromString(String mode) {
+		return valueOf(mode.trim().toUpperCase());
+	}
+
+	private static ThreadFactory platformThreadFactory(final String name) {
+		final AtomicLong count = new AtomicLong();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + "-" + count.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * Virtual threads are only available from Java 21, so they are looked up
+	 * reflectively to keep the server running on older JVMs.
+	 */
+	private static ThreadFactory virtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+			builder = nameMethod.invoke(builder, name + "-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static class ThreadPerTaskExecutor implements Executor {
+		private final ThreadFactory factory;
+
+		ThreadPerTaskExecutor(ThreadFactory factory) {
+			this.factory = factory;
+		}
+
+		public void execute(Runnable task) {
+			factory.newThread(task).start();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package activitystreamer.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a simulated link to another server is impaired: how the delay of each
+ * message varies about the base delay of the link, how fast the link carries
+ * bytes, and how often it drops or duplicates a message. Written as comma separated settings,
+ * any of which may be left out, such as:
+ *
+ * dist=normal,jitter=20,bw=1000000,burst=65536,drop=0.01,dup=0.001
+ *
+ * where jitter is in milliseconds and bw and burst are in bytes per second and
+ * bytes. Messages still leave in the order they were sent, as they would on a
+ * TCP connection, so a message delayed by jitter holds back those behind it.
+ *
+ * On sockets the base delay is the lag, as the wire's own latency is out of
+ * reach. In the simulator it is the latency of the link in the network, so the
+ * jitter is centred on the delay the link really has.
+ */
+public class LinkModel {
+	/** The distribution of the delay of each message about the base delay of the link */
+	public enum Distribution {
+		/** Always the base delay */
+		FIXED,
+		/** Uniformly within the jitter either side of the base delay */
+		UNIFORM,
+		/** Normally about the base delay, with the jitter as its standard deviation */
+		NORMAL,
+		/** The base delay plus a long tailed Pareto delay, whose mean is the jitter */
+		PARETO;
+
+		public static Distribution fromString(String distribution) {
+			return valueOf(distribution.trim().toUpperCase());
+		}
+	}
+
+	// The shape of the Pareto tail. Lower is heavier, and at 2 the variance is unbounded
+	private static final double PARETO_SHAPE = 2;
+
+	/** An unimpaired link, on which every message is delayed by exactly the base delay */
+	public static final LinkModel NONE = new LinkModel(Distribution.FIXED, 0, 0, 0, 0, 0);
+
+	private final Distribution distribution;
+	private final double jitter; // milliseconds
+	private final long bandwidth; // bytes per second, 0 for unlimited
+	private final long burst; // bytes
+	private final double dropRate;
+	private final double duplicateRate;
+
+	public LinkModel(Distribution distribution, double jitter, long bandwidth, long burst, double dropRate,
+			double duplicateRate) {
+		if (jitter < 0 || bandwidth < 0 || burst < 0) {
+			throw new IllegalArgumentException("jitter, bandwidth and burst must not be negative");
+		}
+		if (dropRate < 0 || dropRate > 1 || duplicateRate < 0 || duplicateRate > 1) {
+			throw new IllegalArgumentException("drop and duplicate rates must be between 0 and 1");
+		}
+		this.distribution = distribution;
+		this.jitter = jitter;
+		this.bandwidth = bandwidth;
+		this.burst = burst;
+		this.dropRate = dropRate;
+		this.duplicateRate = duplicateRate;
+	}
+
+	/** Reads a model written as described above, throwing IllegalArgumentException if it is invalid */
+	public static LinkModel parse(String spec) {
+		Distribution distribution = Distribution.FIXED;
+		double jitter = 0;
+		long bandwidth = 0;
+		long burst = -1;
+		double dropRate = 0;
+		double duplicateRate = 0;
+		for (String setting : spec.split(",")) {
+			if (setting.trim().isEmpty()) {
+				continue;
+			}
+			String[] pair = setting.split("=", 2);
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("expected name=value, parsed: " + setting);
+			}
+			String name = pair[0].trim();
+			String value = pair[1].trim();
+			if (name.equals("dist")) {
+				distribution = Distribution.fromString(value);
+			} else if (name.equals("jitter")) {
+				jitter = Double.parseDouble(value);
+			} else if (name.equals("bw")) {
+				bandwidth = Long.parseLong(value);
+			} else if (name.equals("burst")) {
+				burst = Long.parseLong(value);
+			} else if (name.equals("drop")) {
+				dropRate = Double.parseDouble(value);
+			} else if (name.equals("dup")) {
+				duplicateRate = Double.parseDouble(value);
+			} else {
+				throw new IllegalArgumentException("unknown link setting " + name);
+			}
+		}
+		if (burst < 0) {
+			// By default the link can send a tenth of a second's worth at once
+			burst = Math.max(bandwidth / 10, 1);
+		}
+		return new LinkModel(distribution, jitter, bandwidth, burst, dropRate, duplicateRate);
+	}
+
+	/**
+	 * The delay in nanoseconds of the next message, drawn about the base delay
+	 * of the link in nanoseconds. A draw below zero is sent straight away, so for
+	 * the jitter to stay centred the base must be the whole delay of the link.
+	 */
+	public long delay(long base, Random random) {
+		double millis = base / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		switch (distribution) {
+		case UNIFORM:
+			millis += (random.nextDouble() * 2 - 1) * jitter;
+			break;
+		case NORMAL:
+			millis += random.nextGaussian() * jitter;
+			break;
+		case PARETO:
+			double scale = jitter * (PARETO_SHAPE - 1) / PARETO_SHAPE;
+			millis += scale / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE);
+			break;
+		default:
+			break;
+		}
+		return Math.max(0, (long) (millis * TimeUnit.MILLISECONDS.toNanos(1)));
+	}
+
+	/** Whether the next message is dropped */
+	public boolean drop(Random random) {
+		return dropRate > 0 && random.nextDouble() < dropRate;
+	}
+
+	/** Whether the next message is sent twice */
+	public boolean duplicate(Random random) {
+		return duplicateRate > 0 && random.nextDouble() < duplicateRate;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	public long getBurst() {
+		return burst;
+	}
+
+	@Override
+	public String toString() {
+		return "dist=" + distribution.toString().toLowerCase() + ",jitter=" + jitter + ",bw=" + bandwidth + ",burst="
+				+ burst + ",drop=" + dropRate + ",dup=" + duplicateRate;
+	}
+}
@@ -0,0 +1,17 @@
+package activitystreamer.util;
+
+/**
+ * What a server does with chat from a client which has used up its rate.
+ */
+public enum RateLimitPolicy {
+	/** Hold the message back until the client's rate allows it, up to a limit */
+	QUEUE,
+	/** Drop the message */
+	DROP,
+	/** Close the connection */
+	DISCONNECT;
+
+	public static RateLimitPolicy fromString(String policy) {
+		return valueOf(policy.trim().toUpperCase());
+	}
+}
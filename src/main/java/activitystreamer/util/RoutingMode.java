@@ -0,0 +1,18 @@
+package activitystreamer.util;
+
+/**
+ * How chat messages are forwarded between servers.
+ */
+public enum RoutingMode {
+	/** Forward to every other server connection */
+	FLOOD,
+	/**
+	 * Forward only over the branches of the minimum spanning tree, once it has
+	 * converged. Floods until then.
+	 */
+	TREE;
+
+	public static RoutingMode fromString(String mode) {
+		return valueOf(mode.trim().toUpperCase());
+	}
+}
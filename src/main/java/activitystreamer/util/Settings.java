@@ -19,6 +19,30 @@ public class Settings {
 	private static int activityInterval = 5000; // milliseconds
 	private static String secret = null;
 	private static String username = "anonymous";
+	private static boolean nonBlockingIO = false;
+	private static int eventLoopThreads = 2;
+	private static ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	private static long outboundHighWatermark = 1024 * 1024; // bytes
+	private static long outboundLowWatermark = 256 * 1024; // bytes
+	private static SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+	private static boolean binaryFraming = true;
+	private static RoutingMode routingMode = RoutingMode.FLOOD;
+	private static int duplicateCacheSize = 65536; // message ids
+	private static int probeInterval = 500; // milliseconds
+	private static int weightDriftThreshold = 50; // percent
+	private static int metricsPort = 0; // 0 for no metrics endpoint
+	private static int traceInterval = 0; // messages, 0 to trace none
+	private static int redirectThreshold = 0; // clients, 0 to never redirect
+	private static LinkModel linkModel = LinkModel.NONE;
+	private static int clientRate = 0; // chat messages per second, 0 for no limit
+	private static int clientBurst = 10; // chat messages
+	private static int clientQueueLimit = 100; // chat messages
+	private static int maxClientWeight = 1; // chat messages per round
+	private static RateLimitPolicy rateLimitPolicy = RateLimitPolicy.QUEUE;
+	private static String historyDir = null; // null to keep no history
+	private static int historySegmentBytes = 16 * 1024 * 1024;
+	private static long historyRetentionBytes = 1024L * 1024 * 1024;
+	private static long historyRetentionMinutes = 7 * 24 * 60;
 	
 
 	
@@ -86,6 +110,276 @@ public class Settings {
 		Settings.username = username;
 	}
 	
+	public static boolean isNonBlockingIO() {
+		return nonBlockingIO;
+	}
+
+	public static void setNonBlockingIO(boolean nonBlockingIO) {
+		Settings.nonBlockingIO = nonBlockingIO;
+	}
+
+	public static int getProbeInterval() {
+		return probeInterval;
+	}
+
+	public static void setProbeInterval(int probeInterval) {
+		if (probeInterval < 1) {
+			log.error("supplied probe interval " + probeInterval + " must be positive, using " + getProbeInterval());
+		} else {
+			Settings.probeInterval = probeInterval;
+		}
+	}
+
+	public static int getWeightDriftThreshold() {
+		return weightDriftThreshold;
+	}
+
+	public static void setWeightDriftThreshold(int weightDriftThreshold) {
+		if (weightDriftThreshold < 1) {
+			log.error("supplied weight drift threshold " + weightDriftThreshold + " must be positive, using "
+					+ getWeightDriftThreshold());
+		} else {
+			Settings.weightDriftThreshold = weightDriftThreshold;
+		}
+	}
+
+	public static int getDuplicateCacheSize() {
+		return duplicateCacheSize;
+	}
+
+	public static void setDuplicateCacheSize(int duplicateCacheSize) {
+		if (duplicateCacheSize < 1) {
+			log.error("supplied duplicate cache size " + duplicateCacheSize + " must be positive, using "
+					+ getDuplicateCacheSize());
+		} else {
+			Settings.duplicateCacheSize = duplicateCacheSize;
+		}
+	}
+
+	public static RoutingMode getRoutingMode() {
+		return routingMode;
+	}
+
+	public static void setRoutingMode(RoutingMode routingMode) {
+		Settings.routingMode = routingMode;
+	}
+
+	public static boolean isBinaryFraming() {
+		return binaryFraming;
+	}
+
+	public static void setBinaryFraming(boolean binaryFraming) {
+		Settings.binaryFraming = binaryFraming;
+	}
+
+	public static int getEventLoopThreads() {
+		return eventLoopThreads;
+	}
+
+	public static void setEventLoopThreads(int eventLoopThreads) {
+		if (eventLoopThreads < 1) {
+			log.error("supplied event loop count " + eventLoopThreads + " must be positive, using " + getEventLoopThreads());
+		} else {
+			Settings.eventLoopThreads = eventLoopThreads;
+		}
+	}
+
+	public static ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public static void setExecutionMode(ExecutionMode executionMode) {
+		Settings.executionMode = executionMode;
+	}
+
+	public static int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public static void setMetricsPort(int metricsPort) {
+		if (metricsPort < 0 || metricsPort > 65535) {
+			log.error("supplied metrics port " + metricsPort + " is out of range, using " + getMetricsPort());
+		} else {
+			Settings.metricsPort = metricsPort;
+		}
+	}
+
+	public static int getRedirectThreshold() {
+		return redirectThreshold;
+	}
+
+	public static void setRedirectThreshold(int redirectThreshold) {
+		if (redirectThreshold < 0) {
+			log.error("supplied redirect threshold " + redirectThreshold + " must not be negative, using "
+					+ getRedirectThreshold());
+		} else {
+			Settings.redirectThreshold = redirectThreshold;
+		}
+	}
+
+	public static int getClientRate() {
+		return clientRate;
+	}
+
+	public static void setClientRate(int clientRate) {
+		if (clientRate < 0) {
+			log.error("supplied client rate " + clientRate + " must not be negative, using " + getClientRate());
+		} else {
+			Settings.clientRate = clientRate;
+		}
+	}
+
+	public static int getClientBurst() {
+		return clientBurst;
+	}
+
+	public static void setClientBurst(int clientBurst) {
+		if (clientBurst <= 0) {
+			log.error("supplied client burst " + clientBurst + " must be positive, using " + getClientBurst());
+		} else {
+			Settings.clientBurst = clientBurst;
+		}
+	}
+
+	public static int getClientQueueLimit() {
+		return clientQueueLimit;
+	}
+
+	public static void setClientQueueLimit(int clientQueueLimit) {
+		if (clientQueueLimit < 0) {
+			log.error("supplied client queue limit " + clientQueueLimit + " must not be negative, using "
+					+ getClientQueueLimit());
+		} else {
+			Settings.clientQueueLimit = clientQueueLimit;
+		}
+	}
+
+	public static int getMaxClientWeight() {
+		return maxClientWeight;
+	}
+
+	public static void setMaxClientWeight(int maxClientWeight) {
+		if (maxClientWeight < 1) {
+			log.error("supplied maximum client weight " + maxClientWeight + " must be positive, using "
+					+ getMaxClientWeight());
+		} else {
+			Settings.maxClientWeight = maxClientWeight;
+		}
+	}
+
+	public static RateLimitPolicy getRateLimitPolicy() {
+		return rateLimitPolicy;
+	}
+
+	public static void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+		Settings.rateLimitPolicy = rateLimitPolicy;
+	}
+
+	public static LinkModel getLinkModel() {
+		return linkModel;
+	}
+
+	public static void setLinkModel(LinkModel linkModel) {
+		if (linkModel == null) {
+			log.error("supplied link model must not be null, using " + getLinkModel());
+		} else {
+			Settings.linkModel = linkModel;
+		}
+	}
+
+	public static String getHistoryDir() {
+		return historyDir;
+	}
+
+	public static void setHistoryDir(String historyDir) {
+		Settings.historyDir = historyDir;
+	}
+
+	public static int getHistorySegmentBytes() {
+		return historySegmentBytes;
+	}
+
+	public static void setHistorySegmentBytes(int historySegmentBytes) {
+		if (historySegmentBytes < 1024) {
+			log.error("supplied history segment size " + historySegmentBytes + " must be at least 1024 bytes, using "
+					+ getHistorySegmentBytes());
+		} else {
+			Settings.historySegmentBytes = historySegmentBytes;
+		}
+	}
+
+	public static long getHistoryRetentionBytes() {
+		return historyRetentionBytes;
+	}
+
+	public static void setHistoryRetentionBytes(long historyRetentionBytes) {
+		if (historyRetentionBytes <= 0) {
+			log.error("supplied history retention " + historyRetentionBytes + " bytes must be positive, using "
+					+ getHistoryRetentionBytes());
+		} else {
+			Settings.historyRetentionBytes = historyRetentionBytes;
+		}
+	}
+
+	public static long getHistoryRetentionMinutes() {
+		return historyRetentionMinutes;
+	}
+
+	public static void setHistoryRetentionMinutes(long historyRetentionMinutes) {
+		if (historyRetentionMinutes <= 0) {
+			log.error("supplied history retention " + historyRetentionMinutes + " minutes must be positive, using "
+					+ getHistoryRetentionMinutes());
+		} else {
+			Settings.historyRetentionMinutes = historyRetentionMinutes;
+		}
+	}
+
+	public static int getTraceInterval() {
+		return traceInterval;
+	}
+
+	public static void setTraceInterval(int traceInterval) {
+		if (traceInterval < 0) {
+			log.error("supplied trace interval " + traceInterval + " must not be negative, using " + getTraceInterval());
+		} else {
+			Settings.traceInterval = traceInterval;
+		}
+	}
+
+	public static long getOutboundHighWatermark() {
+		return outboundHighWatermark;
+	}
+
+	public static void setOutboundHighWatermark(long outboundHighWatermark) {
+		if (outboundHighWatermark <= 0) {
+			log.error("supplied high watermark " + outboundHighWatermark + " must be positive, using "
+					+ getOutboundHighWatermark());
+		} else {
+			Settings.outboundHighWatermark = outboundHighWatermark;
+		}
+	}
+
+	public static long getOutboundLowWatermark() {
+		return outboundLowWatermark;
+	}
+
+	public static void setOutboundLowWatermark(long outboundLowWatermark) {
+		if (outboundLowWatermark < 0) {
+			log.error("supplied low watermark " + outboundLowWatermark + " must not be negative, using "
+					+ getOutboundLowWatermark());
+		} else {
+			Settings.outboundLowWatermark = outboundLowWatermark;
+		}
+	}
+
+	public static SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	public static void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		Settings.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
 	public static String getLocalHostname() {
 		return localHostname;
 	}
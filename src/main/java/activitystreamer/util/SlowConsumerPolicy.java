@@ -0,0 +1,18 @@
+package activitystreamer.util;
+
+/**
+ * What a server does with a client whose outbound queue has grown past its
+ * high watermark.
+ */
+public enum SlowConsumerPolicy {
+	/** Drop the oldest queued messages until the queue is below its low watermark */
+	DROP_OLDEST,
+	/** Close the connection */
+	DISCONNECT,
+	/** Tell the client to reconnect to another server, then close the connection */
+	REDIRECT;
+
+	public static SlowConsumerPolicy fromString(String policy) {
+		return valueOf(policy.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -22,5 +22,33 @@ public class Strings {
 	public static String CLIENT = "client";
 	public static String TEST = "test";
 	public static String REPORT = "report";
+	public static String COMMAND = "command";
+	public static String REDIRECT = "REDIRECT";
+	public static String HOSTNAME = "hostname";
+	public static String CAPABILITIES = "capabilities";
+	public static String BINARY = "binary";
+	public static String ACCEPT = "accept";
+	public static String REJECT = "reject";
+	public static String CHANGE_ROOT = "changeroot";
+	public static String CONVERGED = "converged";
+	public static String WEIGHT = "weight";
+	public static String ORIGIN = "origin";
+	public static String SEQ = "seq";
+	public static String PING = "ping";
+	public static String PONG = "pong";
+	public static String LINK_WEIGHT = "linkweight";
+	public static String FRAGMENT = "fragment";
+	public static String REBUILD = "rebuild";
+	public static String REBUILT = "rebuilt";
+	public static String TRACE = "trace";
+	public static String LOAD = "load";
+	public static String CLIENTS = "clients";
+	public static String QUEUED = "queued";
+	public static String CPU = "cpu";
+	public static String REPLAY = "replay";
+	public static String REPLAYED = "replayed";
+	public static String OFFSET = "offset";
+	public static String SINCE = "since";
+	public static String COUNT = "count";
 
 }